@@ -0,0 +1,68 @@
+package com.ncalderini.geocell.benchmark;
+
+import com.ncalderini.geocell.model.Point;
+
+import java.util.Random;
+
+/**
+ * Deterministic point generators for the benchmarks.
+ */
+public final class BenchmarkData {
+
+    // Search centers and clusters are drawn around this point (Buenos Aires).
+    public static final Point ORIGIN = new Point(-34.6037, -58.3816);
+
+    // Half size, in degrees, of the area the uniform points are drawn in.
+    public static final double AREA_HALF_SIZE = 1.0;
+
+    private static final int CLUSTERS = 8;
+    private static final double CLUSTER_SIGMA = 0.01;
+
+    public enum Distribution {
+        UNIFORM,
+        CLUSTERED
+    }
+
+    private BenchmarkData() {
+        // no instantiation allowed
+    }
+
+    /**
+     * @param count number of points to generate
+     * @param distribution uniform in the area around {@link #ORIGIN}, or gaussian clusters inside it
+     * @param seed random seed
+     * @return the generated points
+     */
+    public static Point[] points(int count, Distribution distribution, long seed) {
+        Random random = new Random(seed);
+        Point[] points = new Point[count];
+        if (distribution == Distribution.UNIFORM) {
+            for (int i = 0; i < count; i++) {
+                points[i] = uniform(random);
+            }
+            return points;
+        }
+
+        Point[] clusters = new Point[CLUSTERS];
+        for (int i = 0; i < CLUSTERS; i++) {
+            clusters[i] = uniform(random);
+        }
+        for (int i = 0; i < count; i++) {
+            Point cluster = clusters[random.nextInt(CLUSTERS)];
+            points[i] = new Point(
+                    clamp(cluster.getLatitude() + random.nextGaussian() * CLUSTER_SIGMA, 90),
+                    clamp(cluster.getLongitude() + random.nextGaussian() * CLUSTER_SIGMA, 180));
+        }
+        return points;
+    }
+
+    private static Point uniform(Random random) {
+        return new Point(
+                ORIGIN.getLatitude() + (random.nextDouble() * 2 - 1) * AREA_HALF_SIZE,
+                ORIGIN.getLongitude() + (random.nextDouble() * 2 - 1) * AREA_HALF_SIZE);
+    }
+
+    private static double clamp(double value, double limit) {
+        return Math.max(-limit, Math.min(limit, value));
+    }
+}
@@ -0,0 +1,38 @@
+package com.ncalderini.geocell.benchmark;
+
+import com.ncalderini.geocell.GeocellManager;
+import com.ncalderini.geocell.model.LocationCapable;
+import com.ncalderini.geocell.model.Point;
+
+import java.util.List;
+
+/**
+ * Minimal searchable entity used by the benchmarks.
+ */
+public class BenchmarkEntity implements LocationCapable {
+
+    private final String key;
+    private final Point location;
+    private final List<String> geocells;
+
+    public BenchmarkEntity(long id, Point location) {
+        this.key = Long.toString(id);
+        this.location = location;
+        this.geocells = GeocellManager.generateGeoCell(location);
+    }
+
+    @Override
+    public Point getLocation() {
+        return location;
+    }
+
+    @Override
+    public String getKeyString() {
+        return key;
+    }
+
+    @Override
+    public List<String> getGeocells() {
+        return geocells;
+    }
+}
@@ -0,0 +1,82 @@
+package com.ncalderini.geocell.benchmark;
+
+import com.ncalderini.geocell.GeocellLogger;
+import com.ncalderini.geocell.GeocellManager;
+import com.ncalderini.geocell.GeocellUtils;
+import com.ncalderini.geocell.model.BoundingBox;
+import com.ncalderini.geocell.model.Point;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Benchmarks of bounding box coverings: bestBboxSearchCells, interpolate and interpolationCount.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CoveringBenchmark {
+
+    private static final int BOXES = 256;
+
+    // Size of the box side, in degrees.
+    @Param({"0.001", "0.01", "0.1", "1"})
+    public double bboxSize;
+
+    // Resolution of the interpolated corner cells.
+    @Param({"4", "8"})
+    public int resolution;
+
+    private BoundingBox[] boxes;
+    private String[] cellsNE;
+    private String[] cellsSW;
+    private int next;
+
+    @Setup
+    public void setup() {
+        GeocellLogger.get().setLevel(Level.WARNING);
+
+        Point[] centers = BenchmarkData.points(BOXES, BenchmarkData.Distribution.UNIFORM, 7);
+        boxes = new BoundingBox[BOXES];
+        cellsNE = new String[BOXES];
+        cellsSW = new String[BOXES];
+        for (int i = 0; i < BOXES; i++) {
+            double half = bboxSize / 2;
+            boxes[i] = new BoundingBox(centers[i].getLatitude() + half, centers[i].getLongitude() + half,
+                    centers[i].getLatitude() - half, centers[i].getLongitude() - half);
+            cellsNE[i] = GeocellUtils.compute(boxes[i].getNorthEast(), resolution);
+            cellsSW[i] = GeocellUtils.compute(boxes[i].getSouthWest(), resolution);
+        }
+    }
+
+    private int nextIndex() {
+        next = (next + 1) & (BOXES - 1);
+        return next;
+    }
+
+    @Benchmark
+    public List<String> bestBboxSearchCells() {
+        return GeocellManager.bestBboxSearchCells(boxes[nextIndex()], null);
+    }
+
+    @Benchmark
+    public List<String> interpolate() {
+        int i = nextIndex();
+        return GeocellUtils.interpolate(cellsNE[i], cellsSW[i]);
+    }
+
+    @Benchmark
+    public int interpolationCount() {
+        int i = nextIndex();
+        return GeocellUtils.interpolationCount(cellsNE[i], cellsSW[i]);
+    }
+}
@@ -0,0 +1,78 @@
+package com.ncalderini.geocell.benchmark;
+
+import com.ncalderini.geocell.DistanceCalculator;
+import com.ncalderini.geocell.GeocellUtils;
+import com.ncalderini.geocell.model.Point;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the distances from a search center to a batch of candidates, as filtered by a proximity search.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DistanceBenchmark {
+
+    private static final int POINTS = 4096;
+
+    // Maximum distance of the search, in meters.
+    @Param({"5000", "50000"})
+    public double maxDistance;
+
+    private Point[] points;
+    private double[] latitudes;
+    private double[] longitudes;
+    private int[] indexes;
+    private double[] distances;
+    private DistanceCalculator calculator;
+
+    @Setup
+    public void setup() {
+        points = BenchmarkData.points(POINTS, BenchmarkData.Distribution.UNIFORM, 42);
+        latitudes = new double[POINTS];
+        longitudes = new double[POINTS];
+        for (int i = 0; i < POINTS; i++) {
+            latitudes[i] = points[i].getLatitude();
+            longitudes[i] = points[i].getLongitude();
+        }
+        indexes = new int[POINTS];
+        distances = new double[POINTS];
+        calculator = new DistanceCalculator(BenchmarkData.ORIGIN);
+    }
+
+    @Benchmark
+    public int pointDistances() {
+        int found = 0;
+        for (Point point : points) {
+            if (GeocellUtils.distance(BenchmarkData.ORIGIN, point) <= maxDistance) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    @Benchmark
+    public int distanceWithin() {
+        int found = 0;
+        for (int i = 0; i < POINTS; i++) {
+            if (calculator.distanceWithin(latitudes[i], longitudes[i], maxDistance) != Double.POSITIVE_INFINITY) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    @Benchmark
+    public int filterWithin() {
+        return calculator.filterWithin(latitudes, longitudes, POINTS, maxDistance, indexes, distances);
+    }
+}
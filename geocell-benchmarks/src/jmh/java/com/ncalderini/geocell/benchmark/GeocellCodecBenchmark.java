@@ -0,0 +1,75 @@
+package com.ncalderini.geocell.benchmark;
+
+import com.ncalderini.geocell.GeocellUtils;
+import com.ncalderini.geocell.model.BoundingBox;
+import com.ncalderini.geocell.model.Point;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the geocell string codec: compute, computeBox, adjacency and distance.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GeocellCodecBenchmark {
+
+    private static final int POINTS = 1024;
+
+    @Param({"1", "5", "9", "13"})
+    public int resolution;
+
+    private Point[] points;
+    private String[] cells;
+    private int next;
+
+    @Setup
+    public void setup() {
+        points = BenchmarkData.points(POINTS, BenchmarkData.Distribution.UNIFORM, 42);
+        cells = new String[POINTS];
+        for (int i = 0; i < POINTS; i++) {
+            cells[i] = GeocellUtils.compute(points[i], resolution);
+        }
+    }
+
+    private int nextIndex() {
+        next = (next + 1) & (POINTS - 1);
+        return next;
+    }
+
+    @Benchmark
+    public String compute() {
+        return GeocellUtils.compute(points[nextIndex()], resolution);
+    }
+
+    @Benchmark
+    public BoundingBox computeBox() {
+        return GeocellUtils.computeBox(cells[nextIndex()]);
+    }
+
+    @Benchmark
+    public List<String> allAdjacents() {
+        return GeocellUtils.allAdjacents(cells[nextIndex()]);
+    }
+
+    @Benchmark
+    public double pointDistance() {
+        int i = nextIndex();
+        return GeocellUtils.pointDistance(cells[i], points[(i + 1) & (POINTS - 1)]);
+    }
+
+    @Benchmark
+    public double distance() {
+        int i = nextIndex();
+        return GeocellUtils.distance(points[i], points[(i + 1) & (POINTS - 1)]);
+    }
+}
@@ -0,0 +1,70 @@
+package com.ncalderini.geocell.benchmark;
+
+import com.ncalderini.geocell.GeocellQueryEngine;
+import com.ncalderini.geocell.model.GeocellQuery;
+import com.ncalderini.geocell.model.LocationCapable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Deterministic in-process GeocellQueryEngine, indexing entities by all their geocells
+ * like the datastore does. Base queries and ordering are not supported.
+ */
+public class InMemoryGeocellQueryEngine implements GeocellQueryEngine {
+
+    private final Map<String, List<LocationCapable>> index = new HashMap<String, List<LocationCapable>>();
+
+    private long queries;
+
+    public InMemoryGeocellQueryEngine(Collection<? extends LocationCapable> entities) {
+        for (LocationCapable entity : entities) {
+            for (String cell : entity.getGeocells()) {
+                List<LocationCapable> cellEntities = index.get(cell);
+                if (cellEntities == null) {
+                    cellEntities = new ArrayList<LocationCapable>();
+                    index.put(cell, cellEntities);
+                }
+                cellEntities.add(entity);
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> List<T> query(GeocellQuery baseQuery, String orderBy, List<String> curGeocellsUnique, Class<T> entityClass) {
+        queries++;
+        if (curGeocellsUnique.size() == 1) {
+            List<LocationCapable> cellEntities = index.get(curGeocellsUnique.get(0));
+            return cellEntities == null ? Collections.<T>emptyList() : (List<T>) new ArrayList<LocationCapable>(cellEntities);
+        }
+        // an entity matching several cells is returned once, like a datastore 'in' filter
+        Set<LocationCapable> seen = Collections.newSetFromMap(new IdentityHashMap<LocationCapable, Boolean>());
+        List<T> results = new ArrayList<T>();
+        for (String cell : curGeocellsUnique) {
+            List<LocationCapable> cellEntities = index.get(cell);
+            if (cellEntities == null) {
+                continue;
+            }
+            for (LocationCapable entity : cellEntities) {
+                if (seen.add(entity)) {
+                    results.add((T) entity);
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @return the number of queries (datastore round trips) executed so far
+     */
+    public long getQueries() {
+        return queries;
+    }
+}
@@ -0,0 +1,68 @@
+package com.ncalderini.geocell.benchmark;
+
+import com.ncalderini.geocell.GeocellLogger;
+import com.ncalderini.geocell.GeocellManager;
+import com.ncalderini.geocell.SearchResults;
+import com.ncalderini.geocell.model.Point;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of proximitySearch against an in-process query engine, so that only
+ * the cost of the search algorithm itself (covering, expansion, distance filtering) is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ProximitySearchBenchmark {
+
+    private static final int CENTERS = 256;
+
+    // Number of entities in the 2x2 degrees area.
+    @Param({"1000", "100000"})
+    public int density;
+
+    @Param({"UNIFORM", "CLUSTERED"})
+    public BenchmarkData.Distribution distribution;
+
+    @Param({"10", "100"})
+    public int maxResults;
+
+    // Maximum search distance in meters (0 for unlimited).
+    @Param({"0", "5000"})
+    public double maxDistance;
+
+    private InMemoryGeocellQueryEngine queryEngine;
+    private Point[] centers;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        GeocellLogger.get().setLevel(java.util.logging.Level.WARNING);
+
+        Point[] points = BenchmarkData.points(density, distribution, 13);
+        BenchmarkEntity[] entities = new BenchmarkEntity[density];
+        for (int i = 0; i < density; i++) {
+            entities[i] = new BenchmarkEntity(i, points[i]);
+        }
+        queryEngine = new InMemoryGeocellQueryEngine(Arrays.asList(entities));
+        centers = BenchmarkData.points(CENTERS, distribution, 17);
+    }
+
+    @Benchmark
+    public SearchResults<BenchmarkEntity> proximitySearch() {
+        next = (next + 1) & (CENTERS - 1);
+        return GeocellManager.proximitySearch(centers[next], maxResults, 0, maxDistance,
+                BenchmarkEntity.class, null, null, queryEngine, GeocellManager.MAX_GEOCELL_RESOLUTION);
+    }
+}
@@ -0,0 +1,106 @@
+package com.ncalderini.geocell;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * JDK Flight Recorder events of the searches.
+ *
+ * Compiled apart from the main sources, which must still build for Java 8: {@link SearchEvents} loads it
+ * by name, only when JFR is available.
+ */
+final class JfrSearchEvents implements SearchEvents.Sink {
+
+    private static final EventType PHASE_TYPE = EventType.getEventType(PhaseEvent.class);
+    private static final EventType SEARCH_TYPE = EventType.getEventType(SearchEvent.class);
+
+    @Override
+    public void phase(SearchStats.Type type, String phase, long nanos, int cells, int entities) {
+        if (!PHASE_TYPE.isEnabled()) {
+            return;
+        }
+        PhaseEvent event = new PhaseEvent();
+        event.search = type.name();
+        event.phase = phase;
+        event.phaseDuration = nanos;
+        event.cells = cells;
+        event.entities = entities;
+        event.commit();
+    }
+
+    @Override
+    public void search(SearchStats stats) {
+        if (!SEARCH_TYPE.isEnabled()) {
+            return;
+        }
+        SearchEvent event = new SearchEvent();
+        event.search = stats.getType().name();
+        event.searchDuration = stats.getTotalNanos();
+        event.steps = stats.getSteps();
+        event.roundTrips = stats.getRoundTrips();
+        event.cellsQueried = stats.getCellsQueried();
+        event.entitiesFetched = stats.getEntitiesFetched();
+        event.entitiesKept = stats.getEntitiesKept();
+        event.distanceEvaluations = stats.getDistanceEvaluations();
+        event.coveringDuration = stats.getCoveringNanos();
+        event.fetchDuration = stats.getFetchNanos();
+        event.filterDuration = stats.getFilterNanos();
+        event.commit();
+    }
+
+    @Name("com.ncalderini.geocell.SearchPhase")
+    @Label("Geocell Search Phase")
+    @Description("A covering, fetch or filter phase of a geocell search")
+    @Category("Geocell")
+    static final class PhaseEvent extends Event {
+        @Label("Search")
+        String search;
+        @Label("Phase")
+        String phase;
+        @Label("Phase Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long phaseDuration;
+        @Label("Cells")
+        int cells;
+        @Label("Entities")
+        int entities;
+    }
+
+    @Name("com.ncalderini.geocell.Search")
+    @Label("Geocell Search")
+    @Description("A completed geocell search")
+    @Category("Geocell")
+    static final class SearchEvent extends Event {
+        @Label("Search")
+        String search;
+        @Label("Search Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long searchDuration;
+        @Label("Steps")
+        int steps;
+        @Label("Round Trips")
+        int roundTrips;
+        @Label("Cells Queried")
+        int cellsQueried;
+        @Label("Entities Fetched")
+        long entitiesFetched;
+        @Label("Entities Kept")
+        long entitiesKept;
+        @Label("Distance Evaluations")
+        long distanceEvaluations;
+        @Label("Covering Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long coveringDuration;
+        @Label("Fetch Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long fetchDuration;
+        @Label("Filter Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long filterDuration;
+    }
+}
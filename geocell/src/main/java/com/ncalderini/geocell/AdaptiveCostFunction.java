@@ -0,0 +1,411 @@
+package com.ncalderini.geocell;
+
+import com.ncalderini.geocell.model.BoundingBox;
+import com.ncalderini.geocell.model.CostFunction;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Cost function estimating the latency of a query from the queries already run.
+ *
+ * The latency of a query is modelled as <code>perQuery + perCell * cells + perEntity * entities</code>:
+ * the coefficients are fitted on the measured latencies, and the number of entities a set of cells
+ * returns is estimated from the entities returned per cell, recorded by (resolution, region). Coarse
+ * cells cost few sub-queries but over-fetch in dense areas, fine cells the opposite, so a dense downtown
+ * area gets a covering of many fine cells and a sparse rural area a covering of a few coarse ones.
+ *
+ * Register the function with {@link GeocellManager#addSearchListener(com.ncalderini.geocell.SearchListener)}
+ * (or feed it with {@link #record(List, int, long)}), and pass it to the searches:
+ * <pre>
+ * AdaptiveCostFunction costFunction = new AdaptiveCostFunction();
+ * GeocellManager.addSearchListener(costFunction);
+ * GeocellManager.boundingBoxSearch(bbox, 0, MyEntity.class, null, null, queryEngine, costFunction);
+ * </pre>
+ * The statistics decay with a half-life (one hour by default), so the costs follow the changes of
+ * the data and of the backend. They are kept in immutable snapshots replaced by compare-and-set: recording
+ * and estimating never block. A region is the cell of {@link #DEFAULT_REGION_RESOLUTION} containing the
+ * center of the searched area; at most <code>maxRegions</code> (resolution, region) pairs are tracked, the
+ * others use the statistics of their resolution over all regions. When the pairs are all tracked, the ones
+ * whose statistics decayed away are forgotten, or else the least recently recorded ones.
+ *
+ * The statistics of every search are mixed: use this function for searches of the same kind of entities
+ * with similar base queries.
+ *
+ */
+public final class AdaptiveCostFunction implements CostFunction, SearchListener {
+
+    // Cells of resolution 5 are about 40km wide.
+    public static final int DEFAULT_REGION_RESOLUTION = 5;
+
+    public static final int DEFAULT_MAX_REGIONS = 65536;
+
+    public static final long DEFAULT_HALF_LIFE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    // Prior latency coefficients in nanoseconds, typical of the datastore until queries are measured:
+    // a 'geocells in' filter runs one sub-query per value.
+    static final double PRIOR_PER_QUERY = 20e6;
+    static final double PRIOR_PER_CELL = 4e6;
+    static final double PRIOR_PER_ENTITY = 0.1e6;
+
+    // Weight of the prior, in queries: it keeps the fit stable when the measured queries are all alike.
+    private static final double PRIOR_WEIGHT = 1;
+
+    // Number of cells (decayed) needed to trust the entities per cell of a resolution.
+    private static final double MIN_CELLS = 1;
+
+    // Fraction of maxRegions freed at least when the regions are all tracked, so that evictions are rare.
+    private static final int EVICTION_FRACTION = 16;
+
+    private static final int CHILDREN = GeocellUtils.GEOCELL_GRID_SIZE * GeocellUtils.GEOCELL_GRID_SIZE;
+
+    private final int regionResolution;
+    private final int maxRegions;
+    private final double halfLifeNanos;
+
+    private final AtomicReference<LatencyModel> latency;
+    // Entities per cell, by resolution over all regions.
+    private final AtomicReferenceArray<Density> densities;
+    // Entities per cell, by (resolution, region) key.
+    private final ConcurrentHashMap<Long, AtomicReference<Density>> regionDensities = new ConcurrentHashMap<Long, AtomicReference<Density>>();
+    // Set while a thread evicts regions.
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    /**
+     * Creates a cost function with the default region resolution, number of regions and half-life.
+     */
+    public AdaptiveCostFunction() {
+        this(DEFAULT_REGION_RESOLUTION, DEFAULT_MAX_REGIONS, DEFAULT_HALF_LIFE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param regionResolution the resolution of the cells statistics are kept for
+     * @param maxRegions the maximum number of (resolution, region) pairs tracked
+     * @param halfLife the time after which a measure weighs half as much
+     * @param unit the unit of halfLife
+     */
+    public AdaptiveCostFunction(int regionResolution, int maxRegions, long halfLife, TimeUnit unit) {
+        if (regionResolution < 1 || regionResolution > GeocellManager.MAX_GEOCELL_RESOLUTION) {
+            throw new IllegalArgumentException("regionResolution must be between 1 and " + GeocellManager.MAX_GEOCELL_RESOLUTION);
+        }
+        if (maxRegions < 0 || halfLife <= 0) {
+            throw new IllegalArgumentException("maxRegions must not be negative and halfLife must be positive");
+        }
+        this.regionResolution = regionResolution;
+        this.maxRegions = maxRegions;
+        this.halfLifeNanos = unit.toNanos(halfLife);
+        long now = System.nanoTime();
+        this.latency = new AtomicReference<LatencyModel>(LatencyModel.prior(now));
+        this.densities = new AtomicReferenceArray<Density>(GeocellManager.MAX_GEOCELL_RESOLUTION + 1);
+        for (int i = 0; i < densities.length(); i++) {
+            densities.set(i, new Density(0, 0, now));
+        }
+    }
+
+    /**
+     * Without the searched area, the entities are estimated from the statistics over all regions.
+     *
+     * @see CostFunction#defaultCostFunction(int, int)
+     */
+    @Override
+    public double defaultCostFunction(int numCells, int resolution) {
+        return latency.get().estimate(numCells, numCells * entitiesPerCell(resolution, PackedGeocellUtils.NO_CELL));
+    }
+
+    /**
+     * @return the estimated latency of the query, in nanoseconds
+     * @see CostFunction#cost(int, int, BoundingBox)
+     */
+    @Override
+    public double cost(int numCells, int resolution, BoundingBox bbox) {
+        double latitude = (bbox.getNorth() + bbox.getSouth()) / 2;
+        double longitude = (bbox.getEast() + bbox.getWest()) / 2;
+        if (bbox.getEast() < bbox.getWest()) {
+            longitude = longitude > 0 ? longitude - 180 : longitude + 180;
+        }
+        long region = PackedGeocellUtils.compute(latitude, longitude, regionResolution);
+        return latency.get().estimate(numCells, numCells * entitiesPerCell(resolution, region));
+    }
+
+    /**
+     * @see SearchListener#queryCompleted(SearchStats.Type, List, int, long)
+     */
+    @Override
+    public void queryCompleted(SearchStats.Type type, List<String> cells, int entitiesFetched, long nanos) {
+        record(cells, entitiesFetched, nanos);
+    }
+
+    /**
+     * Records a query.
+     *
+     * @param cells the cells of the query
+     * @param entitiesFetched the number of entities returned
+     * @param nanos the latency of the query, in nanoseconds
+     */
+    public void record(List<String> cells, int entitiesFetched, long nanos) {
+        if (cells.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        LatencyModel current;
+        do {
+            current = latency.get();
+        } while (!latency.compareAndSet(current, current.add(cells.size(), entitiesFetched, nanos, decay(current.time, now), now)));
+
+        // the entities of a query can't be told apart by cell: each cell is credited with the average
+        double entitiesPerCell = (double) entitiesFetched / cells.size();
+        for (String cell : cells) {
+            long packed = PackedGeocellUtils.fromString(cell);
+            int resolution = PackedGeocellUtils.resolution(packed);
+            add(resolution, entitiesPerCell, now);
+            AtomicReference<Density> regionDensity = regionDensity(key(packed, resolution), true);
+            if (regionDensity != null) {
+                add(regionDensity, entitiesPerCell, now);
+            }
+        }
+    }
+
+    /**
+     * @param resolution
+     * @param region the cell of the region resolution containing the searched area, {@link PackedGeocellUtils#NO_CELL} for all regions
+     * @return the estimated number of entities in a cell of the given resolution
+     */
+    double entitiesPerCell(int resolution, long region) {
+        long now = System.nanoTime();
+        if (region != PackedGeocellUtils.NO_CELL) {
+            double entities = entitiesPerCell(resolution, region, now);
+            if (entities >= 0) {
+                return entities;
+            }
+        }
+        double entities = entitiesPerCell(resolution, PackedGeocellUtils.NO_CELL, now);
+        return entities >= 0 ? entities : 0;
+    }
+
+    // Estimates from the nearest resolution having statistics, scaled by the ratio of the areas of the cells;
+    // returns -1 if there are no statistics.
+    private double entitiesPerCell(int resolution, long region, long now) {
+        for (int distance = 0; distance <= GeocellManager.MAX_GEOCELL_RESOLUTION; distance++) {
+            for (int other = resolution - distance; other <= resolution + distance; other += Math.max(1, 2 * distance)) {
+                if (other < 0 || other > GeocellManager.MAX_GEOCELL_RESOLUTION) {
+                    continue;
+                }
+                Density density;
+                if (region == PackedGeocellUtils.NO_CELL) {
+                    density = densities.get(other);
+                } else {
+                    AtomicReference<Density> regionDensity = regionDensity(key(region, other), false);
+                    if (regionDensity == null) {
+                        continue;
+                    }
+                    density = regionDensity.get();
+                }
+                if (density.cells * decay(density.time, now) >= MIN_CELLS) {
+                    return density.entities / density.cells * Math.pow(CHILDREN, other - resolution);
+                }
+            }
+        }
+        return -1;
+    }
+
+    // The region key: the cell of the region (or of the given resolution, if coarser), and the resolution in
+    // the free bits below the cell digits.
+    private long key(long cell, int resolution) {
+        long region = PackedGeocellUtils.parent(cell, Math.min(resolution, regionResolution));
+        return region | ((long) resolution << 8);
+    }
+
+    private AtomicReference<Density> regionDensity(long key, boolean create) {
+        AtomicReference<Density> density = regionDensities.get(key);
+        if (density == null && create && regionDensities.size() >= maxRegions) {
+            evictRegions(System.nanoTime());
+        }
+        if (density == null && create && regionDensities.size() < maxRegions) {
+            AtomicReference<Density> created = new AtomicReference<Density>(new Density(0, 0, System.nanoTime()));
+            density = regionDensities.putIfAbsent(key, created);
+            if (density == null) {
+                density = created;
+            }
+        }
+        return density;
+    }
+
+    // Forgets the regions whose statistics decayed below MIN_CELLS, and the least recently recorded ones if
+    // that is not enough. A thread finding another one evicting doesn't wait: its region is just not tracked.
+    private void evictRegions(long now) {
+        if (maxRegions == 0 || !evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long[] times = new long[regionDensities.size()];
+            int count = 0;
+            for (Iterator<AtomicReference<Density>> it = regionDensities.values().iterator(); it.hasNext(); ) {
+                Density density = it.next().get();
+                if (density.cells * decay(density.time, now) < MIN_CELLS) {
+                    it.remove();
+                } else if (count < times.length) {
+                    times[count++] = density.time;
+                }
+            }
+            int excess = regionDensities.size() - (maxRegions - Math.max(1, maxRegions / EVICTION_FRACTION));
+            if (excess <= 0 || count == 0) {
+                return;
+            }
+            Arrays.sort(times, 0, count);
+            long oldest = times[Math.min(excess, count) - 1];
+            for (Iterator<Map.Entry<Long, AtomicReference<Density>>> it = regionDensities.entrySet().iterator(); it.hasNext(); ) {
+                if (it.next().getValue().get().time - oldest <= 0) {
+                    it.remove();
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    private void add(int resolution, double entities, long now) {
+        Density current;
+        do {
+            current = densities.get(resolution);
+        } while (!densities.compareAndSet(resolution, current, current.add(entities, decay(current.time, now), now)));
+    }
+
+    private void add(AtomicReference<Density> density, double entities, long now) {
+        Density current;
+        do {
+            current = density.get();
+        } while (!density.compareAndSet(current, current.add(entities, decay(current.time, now), now)));
+    }
+
+    private double decay(long since, long now) {
+        return now - since <= 0 ? 1 : Math.pow(0.5, (now - since) / halfLifeNanos);
+    }
+
+    /**
+     * @return the number of (resolution, region) pairs tracked
+     */
+    public int getRegionCount() {
+        return regionDensities.size();
+    }
+
+    /**
+     * @return the fitted latency coefficients in nanoseconds: per query, per cell and per entity
+     */
+    public double[] getLatencyCoefficients() {
+        return latency.get().coefficients.clone();
+    }
+
+    // Decayed count of cells and of their entities.
+    private static final class Density {
+        private final double cells;
+        private final double entities;
+        private final long time;
+
+        Density(double cells, double entities, long time) {
+            this.cells = cells;
+            this.entities = entities;
+            this.time = time;
+        }
+
+        Density add(double cellEntities, double decay, long now) {
+            return new Density(cells * decay + 1, entities * decay + cellEntities, now);
+        }
+    }
+
+    // Decayed least squares fit of latency = perQuery + perCell * cells + perEntity * entities.
+    private static final class LatencyModel {
+        // Upper triangle of the sums of x * x^T, for x = (1, cells, entities), and sums of x * latency.
+        private final double[] xx;
+        private final double[] xy;
+        private final long time;
+        private final double[] coefficients;
+
+        private LatencyModel(double[] xx, double[] xy, long time) {
+            this.xx = xx;
+            this.xy = xy;
+            this.time = time;
+            this.coefficients = solve(xx, xy);
+        }
+
+        static LatencyModel prior(long now) {
+            return new LatencyModel(new double[6], new double[3], now);
+        }
+
+        LatencyModel add(int cells, int entities, long nanos, double decay, long now) {
+            double[] x = {1, cells, entities};
+            double[] newXx = new double[6];
+            double[] newXy = new double[3];
+            int k = 0;
+            for (int i = 0; i < 3; i++) {
+                for (int j = i; j < 3; j++) {
+                    newXx[k] = xx[k] * decay + x[i] * x[j];
+                    k++;
+                }
+                newXy[i] = xy[i] * decay + x[i] * nanos;
+            }
+            return new LatencyModel(newXx, newXy, now);
+        }
+
+        double estimate(int cells, double entities) {
+            return coefficients[0] + coefficients[1] * cells + coefficients[2] * entities;
+        }
+
+        // Solves the normal equations, pulled towards the prior coefficients (ridge regression).
+        private static double[] solve(double[] xx, double[] xy) {
+            double[] prior = {PRIOR_PER_QUERY, PRIOR_PER_CELL, PRIOR_PER_ENTITY};
+            // the scale of each term, so that the prior weighs as PRIOR_WEIGHT typical queries
+            double[] scale = {1, Math.max(1, xx[3] / Math.max(1, xx[0])), Math.max(1, xx[5] / Math.max(1, xx[0]))};
+            double[][] a = new double[3][4];
+            int k = 0;
+            for (int i = 0; i < 3; i++) {
+                for (int j = i; j < 3; j++) {
+                    a[i][j] = xx[k];
+                    a[j][i] = xx[k];
+                    k++;
+                }
+                a[i][i] += PRIOR_WEIGHT * scale[i];
+                a[i][3] = xy[i] + PRIOR_WEIGHT * scale[i] * prior[i];
+            }
+            // Gaussian elimination with partial pivoting
+            for (int column = 0; column < 3; column++) {
+                int pivot = column;
+                for (int row = column + 1; row < 3; row++) {
+                    if (Math.abs(a[row][column]) > Math.abs(a[pivot][column])) {
+                        pivot = row;
+                    }
+                }
+                double[] swap = a[column];
+                a[column] = a[pivot];
+                a[pivot] = swap;
+                for (int row = column + 1; row < 3; row++) {
+                    double factor = a[row][column] / a[column][column];
+                    for (int j = column; j < 4; j++) {
+                        a[row][j] -= factor * a[column][j];
+                    }
+                }
+            }
+            double[] result = new double[3];
+            for (int row = 2; row >= 0; row--) {
+                double sum = a[row][3];
+                for (int j = row + 1; j < 3; j++) {
+                    sum -= a[row][j] * result[j];
+                }
+                result[row] = sum / a[row][row];
+            }
+            // a negative cost would favour more cells or more entities
+            for (int i = 0; i < 3; i++) {
+                if (!(result[i] >= 0)) {
+                    result[i] = 0;
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.ncalderini.geocell;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.ncalderini.geocell.model.GeocellQuery;
+
+/**
+ * GeocellQueryEngine able to run queries without blocking the caller, so that
+ * several cell queries can be in flight at the same time.
+ *
+ * @see GeocellManager#proximitySearchAsync(com.ncalderini.geocell.model.Point, int, double, double, Class, GeocellQuery, String, AsyncGeocellQueryEngine, int)
+ */
+public interface AsyncGeocellQueryEngine extends GeocellQueryEngine {
+
+	<T> CompletableFuture<List<T>> queryAsync(GeocellQuery baseQuery, String orderBy, List<String> curGeocellsUnique, Class<T> entityClass);
+
+}
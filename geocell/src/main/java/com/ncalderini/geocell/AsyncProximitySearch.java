@@ -0,0 +1,146 @@
+package com.ncalderini.geocell;
+
+import com.ncalderini.geocell.model.GeocellQuery;
+import com.ncalderini.geocell.model.Point;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * State of an asynchronous proximity search: the expansion steps are chained on the
+ * completion of the cell queries, and the possible next steps are prefetched.
+ *
+ * @see GeocellManager#proximitySearchAsync(Point, int, double, double, Class, GeocellQuery, String, AsyncGeocellQueryEngine, int)
+ */
+final class AsyncProximitySearch<T> {
+
+    private static final Logger logger = GeocellLogger.get();
+
+    private final Point center;
+    private final int maxResults;
+    private final double minDistance;
+    private final double maxDistance;
+    private final Class<T> entityClass;
+    private final GeocellQuery baseQuery;
+    private final String orderBy;
+    private final AsyncGeocellQueryEngine queryEngine;
+
+    private final ProximityExpansion expansion;
+    private final DistanceCalculator calculator;
+    private final SearchRecorder recorder;
+    private final Set<T> results;
+    private final List<Double> distances;
+
+    // Speculative queries of the possible next steps, by sorted list of cells.
+    private final Map<List<String>, CompletableFuture<List<T>>> prefetched = new HashMap<List<String>, CompletableFuture<List<T>>>();
+
+    AsyncProximitySearch(Point center, int maxResults, double minDistance, double maxDistance, Class<T> entityClass,
+                         GeocellQuery baseQuery, String orderBy, AsyncGeocellQueryEngine queryEngine, int maxGeocellResolution) {
+        this.center = center;
+        this.maxResults = maxResults;
+        this.minDistance = minDistance;
+        this.maxDistance = maxDistance;
+        this.entityClass = entityClass;
+        this.baseQuery = baseQuery;
+        this.orderBy = orderBy;
+        this.queryEngine = queryEngine;
+        this.recorder = new SearchRecorder(SearchStats.Type.PROXIMITY_ASYNC);
+        this.expansion = new ProximityExpansion(center, maxGeocellResolution);
+        this.calculator = new DistanceCalculator(center);
+        this.results = new HashSet<T>();
+        this.distances = new ArrayList<Double>();
+    }
+
+    CompletableFuture<SearchResults<T>> run() {
+        if (!expansion.hasNext() || results.size() >= maxResults
+                || (maxDistance > 0 && expansion.getClosestPossibleNextResultDistance() > maxDistance)) {
+            discardPrefetched();
+            return CompletableFuture.completedFuture(finish());
+        }
+
+        long start = recorder.now();
+        final List<String> curGeocellsUnique = expansion.getUniqueCells();
+        CompletableFuture<List<T>> current = prefetched.remove(key(curGeocellsUnique));
+        if (current == null) {
+            current = query(curGeocellsUnique);
+        }
+        // speculative fetches of the previous step that were not used are discarded
+        discardPrefetched();
+        prefetchNextSteps();
+        recorder.stepped();
+        // the fetch time is the time spent waiting for the results
+        final long waitStart = recorder.covered(start);
+        if (current instanceof DeferredQueryEngine.Results) {
+            // the speculative queries are in flight: the results of the current step are read meanwhile
+            ((DeferredQueryEngine.Results<T>) current).read();
+        }
+
+        return current.thenCompose(queryResults -> {
+            recorder.fetched(waitStart, curGeocellsUnique, queryResults.size());
+            if (logger.isLoggable(Level.FINE)) {
+                logger.log(Level.FINE, "fetch complete for: " + StringUtils.join(curGeocellsUnique, ", "));
+            }
+            if (!GeocellManager.mergeStep(expansion, queryResults, calculator, maxResults, minDistance, maxDistance, results, distances, recorder)) {
+                discardPrefetched();
+                return CompletableFuture.completedFuture(finish());
+            }
+            return run();
+        });
+    }
+
+    private SearchResults<T> finish() {
+        SearchStats stats = recorder.finish(results.size(), calculator.getEvaluationCount());
+        return new SearchResults<T>(new ArrayList<T>(results), distances, expansion.getResolution(), null, stats);
+    }
+
+    private void discardPrefetched() {
+        recorder.discarded(prefetched.size());
+        for (CompletableFuture<List<T>> future : prefetched.values()) {
+            // a query whose results are not read yet is not read at all
+            future.cancel(false);
+        }
+        prefetched.clear();
+    }
+
+    // Speculatively starts the queries of the next step, for both outcomes of the current one.
+    private void prefetchNextSteps() {
+        if (expansion.isDone()) {
+            return;
+        }
+        for (boolean hadResults : new boolean[] {true, false}) {
+            ProximityExpansion next = expansion.copy();
+            next.markSearched();
+            next.expand(hadResults);
+            if (!next.hasNext() || (maxDistance > 0 && next.getClosestPossibleNextResultDistance() > maxDistance)) {
+                continue;
+            }
+            List<String> cells = next.getUniqueCells();
+            List<String> key = key(cells);
+            if (!cells.isEmpty() && !prefetched.containsKey(key)) {
+                prefetched.put(key, query(cells));
+            }
+        }
+    }
+
+    private CompletableFuture<List<T>> query(List<String> cells) {
+        if (queryEngine instanceof DeferredQueryEngine) {
+            return ((DeferredQueryEngine) queryEngine).queryDeferred(baseQuery, orderBy, cells, entityClass);
+        }
+        return queryEngine.queryAsync(baseQuery, orderBy, cells, entityClass);
+    }
+
+    private static List<String> key(List<String> cells) {
+        List<String> key = new ArrayList<String>(cells);
+        Collections.sort(key);
+        return key;
+    }
+}
@@ -0,0 +1,220 @@
+package com.ncalderini.geocell;
+
+import com.ncalderini.geocell.model.GeocellQuery;
+import com.ncalderini.geocell.model.Point;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * State of a batch of k-nearest searches sharing their cell fetches.
+ *
+ * Each center runs its own expansion, as in {@link GeocellManager#nearestSearch(Point, int, double, double, Class, GeocellQuery, String, GeocellQueryEngine, int)}.
+ * At each round, the cells the active centers need and that were not fetched yet are fetched together, and
+ * the entities are routed to the fetched cells containing them; each center then takes the
+ * entities of its own cells. A cell is fetched once per batch, however many centers need it, and a cell
+ * whose ancestor was already fetched is not fetched at all: its entities are taken from the ancestor's.
+ *
+ * @see GeocellManager#nearestSearchBatch(List, int[], double[], Class, GeocellQuery, String, GeocellQueryEngine, int)
+ */
+final class BatchNearestSearch<T> {
+
+    private final Class<T> entityClass;
+    private final GeocellQuery baseQuery;
+    private final String orderBy;
+    private final GeocellQueryEngine queryEngine;
+    private final SearchRecorder recorder = new SearchRecorder(SearchStats.Type.NEAREST_BATCH);
+
+    private final int count;
+    private final int[] maxResults;
+    private final double[] maxDistances;
+    private final ProximityExpansion[] expansions;
+    private final DistanceCalculator[] calculators;
+    private final List<NearestCollector<T>> collectors;
+    private final boolean[] finished;
+
+    // Entities of the cells fetched so far.
+    private final Map<String, List<T>> fetched = new HashMap<String, List<T>>();
+
+    BatchNearestSearch(List<Point> centers, int[] maxResults, double[] maxDistances, Class<T> entityClass,
+                       GeocellQuery baseQuery, String orderBy, GeocellQueryEngine queryEngine, int maxGeocellResolution) {
+        this.entityClass = entityClass;
+        this.baseQuery = baseQuery;
+        this.orderBy = orderBy;
+        this.queryEngine = queryEngine;
+        this.count = centers.size();
+        this.maxResults = maxResults;
+        this.maxDistances = maxDistances;
+        this.expansions = new ProximityExpansion[count];
+        this.calculators = new DistanceCalculator[count];
+        this.collectors = new ArrayList<NearestCollector<T>>(count);
+        this.finished = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            expansions[i] = new ProximityExpansion(centers.get(i), maxGeocellResolution);
+            calculators[i] = new DistanceCalculator(centers.get(i));
+            collectors.add(new NearestCollector<T>(maxResults[i]));
+        }
+    }
+
+    List<SearchResults<T>> run() {
+        long start = recorder.now();
+        while (true) {
+            // the cells needed by the active centers this round
+            Set<String> needed = new LinkedHashSet<String>();
+            List<List<String>> cellsByCenter = new ArrayList<List<String>>(count);
+            boolean active = false;
+            for (int i = 0; i < count; i++) {
+                if (!finished[i] && isOver(i)) {
+                    finished[i] = true;
+                }
+                if (finished[i]) {
+                    cellsByCenter.add(null);
+                    continue;
+                }
+                active = true;
+                List<String> cells = expansions[i].getUniqueCells();
+                cellsByCenter.add(cells);
+                for (String cell : cells) {
+                    if (cached(cell) == null) {
+                        needed.add(cell);
+                    }
+                }
+            }
+            if (!active) {
+                break;
+            }
+            start = recorder.covered(start);
+
+            recorder.stepped();
+            // in queries of at most 30 cells, like the coverings of bounding box searches
+            for (List<String> cells : GeocellManager.chunks(new ArrayList<String>(needed), queryEngine)) {
+                List<T> queryResults = queryEngine.query(baseQuery, orderBy, cells, entityClass);
+                start = recorder.fetched(start, cells, queryResults.size());
+                route(queryResults, cells);
+            }
+
+            int kept = 0;
+            for (int i = 0; i < count; i++) {
+                List<String> cells = cellsByCenter.get(i);
+                if (cells != null) {
+                    kept += step(i, cells);
+                }
+            }
+            start = recorder.filtered(start, kept);
+        }
+
+        long evaluations = 0;
+        long results = 0;
+        for (int i = 0; i < count; i++) {
+            evaluations += calculators[i].getEvaluationCount();
+            results += collectors.get(i).size();
+        }
+        SearchStats stats = recorder.finish(results, evaluations);
+        List<SearchResults<T>> searchResults = new ArrayList<SearchResults<T>>(count);
+        for (int i = 0; i < count; i++) {
+            NearestCollector<T> nearest = collectors.get(i);
+            List<T> entities = new ArrayList<T>(nearest.size());
+            List<Double> distances = new ArrayList<Double>(nearest.size());
+            nearest.drainSorted(entities, distances);
+            searchResults.add(new SearchResults<T>(entities, distances, expansions[i].getResolution(), null, stats));
+        }
+        return searchResults;
+    }
+
+    // Same conditions as a single nearest search.
+    private boolean isOver(int i) {
+        ProximityExpansion expansion = expansions[i];
+        if (!expansion.hasNext()) {
+            return true;
+        }
+        double closestPossibleNextResultDist = expansion.getClosestPossibleNextResultDistance();
+        if (maxDistances[i] > 0 && closestPossibleNextResultDist > maxDistances[i]) {
+            return true;
+        }
+        NearestCollector<T> nearest = collectors.get(i);
+        return nearest.isFull() && nearest.getKthDistance() <= closestPossibleNextResultDist;
+    }
+
+    // Offers the entities of the cells of the center, and moves its expansion to the next cells.
+    private int step(int i, List<String> cells) {
+        ProximityExpansion expansion = expansions[i];
+        NearestCollector<T> nearest = collectors.get(i);
+        DistanceCalculator calculator = calculators[i];
+        double maxDistance = maxDistances[i];
+        expansion.markSearched();
+
+        int kept = 0;
+        boolean hadResults = false;
+        for (String cell : cells) {
+            List<T> cellResults = cached(cell);
+            hadResults |= !cellResults.isEmpty();
+            for (T entity : cellResults) {
+                double bound = Math.min(maxDistance > 0 ? maxDistance : Double.MAX_VALUE, nearest.getKthDistance());
+                Point location = GeocellUtils.getLocation(entity);
+                double distance = calculator.distanceWithin(location.getLatitude(), location.getLongitude(), bound);
+                if (distance == Double.POSITIVE_INFINITY) {
+                    continue;
+                }
+                if (nearest.offer(entity, GeocellUtils.getKeyString(entity), distance)) {
+                    kept++;
+                }
+            }
+        }
+
+        if (expansion.isDone()) {
+            finished[i] = true;
+        } else {
+            expansion.expand(hadResults);
+        }
+        return kept;
+    }
+
+    // Entities of a cell fetched so far, or of a cell whose ancestor was fetched; null if none was.
+    private List<T> cached(String cell) {
+        List<T> cellResults = fetched.get(cell);
+        if (cellResults != null) {
+            return cellResults;
+        }
+        for (int resolution = cell.length() - 1; resolution > 0; resolution--) {
+            List<T> ancestorResults = fetched.get(cell.substring(0, resolution));
+            if (ancestorResults == null) {
+                continue;
+            }
+            cellResults = new ArrayList<T>();
+            for (T entity : ancestorResults) {
+                if (GeocellUtils.getIndexedGeocells(entity).contains(cell)) {
+                    cellResults.add(entity);
+                }
+            }
+            fetched.put(cell, cellResults);
+            return cellResults;
+        }
+        return null;
+    }
+
+    // Dispatches the results of a multi-cell query to the cells fetched by the query.
+    private void route(List<T> queryResults, List<String> cells) {
+        Map<String, List<T>> resultsByCell = new HashMap<String, List<T>>();
+        for (String cell : cells) {
+            List<T> cellResults = new ArrayList<T>();
+            resultsByCell.put(cell, cellResults);
+            fetched.put(cell, cellResults);
+        }
+        if (cells.size() == 1) {
+            resultsByCell.get(cells.get(0)).addAll(queryResults);
+            return;
+        }
+        for (T entity : queryResults) {
+            for (String cell : GeocellUtils.getIndexedGeocells(entity)) {
+                List<T> cellResults = resultsByCell.get(cell);
+                if (cellResults != null) {
+                    cellResults.add(entity);
+                }
+            }
+        }
+    }
+}
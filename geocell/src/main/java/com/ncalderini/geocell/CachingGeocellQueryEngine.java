@@ -0,0 +1,286 @@
+package com.ncalderini.geocell;
+
+import com.ncalderini.geocell.model.GeocellQuery;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * GeocellQueryEngine decorator caching query results per cell.
+ *
+ * Results are cached by (entity class, base query and parameters, order, cell), so a multi-cell
+ * query is answered from the cache for the cells already known and from the backend for the others,
+ * in a single backend query. Entries are evicted when the cache is full (least recently used first)
+ * and when they are older than the time to live.
+ *
+ * The cache must be invalidated when entities are written: call {@link #invalidate(Object)} with the
+ * saved entity (and with its previous version if its location changed), or {@link #invalidateCells(Collection)}
+ * with its geocells.
+ *
+ * Each caller gets its own list of results, but the cached entities themselves are shared by every
+ * caller until they are evicted: they must be treated as read-only. To modify an entity, load it again
+ * from the datastore (or copy it), save it, then invalidate its cells.
+ *
+ * N.B. When an order is given, the results of each cell are ordered but the merged results are
+ * concatenated in cell order.
+ *
+ */
+public class CachingGeocellQueryEngine implements GeocellQueryEngine {
+
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final GeocellQueryEngine delegate;
+    private final int maxEntries;
+    private final long ttlNanos;
+
+    // Guarded by this.
+    private final LinkedHashMap<CacheKey, CacheEntry> entries;
+    // Cache keys by cell, to invalidate a cell for every query. Guarded by this.
+    private final Map<String, Set<CacheKey>> keysByCell = new HashMap<String, Set<CacheKey>>();
+    // Incremented on each invalidation, so that results fetched before it are not cached. Guarded by this.
+    private long generation;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a cache of {@link #DEFAULT_MAX_ENTRIES} cells expiring after {@link #DEFAULT_TTL_MILLIS}.
+     *
+     * @param delegate the engine queried on cache misses
+     */
+    public CachingGeocellQueryEngine(GeocellQueryEngine delegate) {
+        this(delegate, DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param delegate the engine queried on cache misses
+     * @param maxEntries the maximum number of cached cells
+     * @param ttl the time to live of a cached cell
+     * @param unit the unit of ttl
+     */
+    public CachingGeocellQueryEngine(GeocellQueryEngine delegate, int maxEntries, long ttl, TimeUnit unit) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.delegate = delegate;
+        this.maxEntries = maxEntries;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.entries = new LinkedHashMap<CacheKey, CacheEntry>(16, 0.75f, true);
+    }
+
+    /**
+     * @see GeocellQueryEngine#query(GeocellQuery, String, java.util.List, java.lang.Class)
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> List<T> query(GeocellQuery baseQuery, String orderBy, List<String> curGeocellsUnique, Class<T> entityClass) {
+        QuerySignature signature = new QuerySignature(entityClass, baseQuery, orderBy);
+        long now = System.nanoTime();
+
+        Map<String, List<?>> resultsByCell = new LinkedHashMap<String, List<?>>();
+        List<String> missedCells = new ArrayList<String>();
+        long fetchGeneration;
+        synchronized (this) {
+            fetchGeneration = generation;
+            for (String cell : curGeocellsUnique) {
+                CacheKey key = new CacheKey(signature, cell);
+                CacheEntry entry = entries.get(key);
+                if (entry != null && entry.expiresAt - now <= 0) {
+                    remove(key);
+                    entry = null;
+                }
+                if (entry == null) {
+                    missedCells.add(cell);
+                    resultsByCell.put(cell, null);
+                } else {
+                    resultsByCell.put(cell, entry.results);
+                }
+            }
+        }
+        hits.addAndGet(curGeocellsUnique.size() - missedCells.size());
+        misses.addAndGet(missedCells.size());
+
+        if (!missedCells.isEmpty()) {
+            List<T> fetched = delegate.query(baseQuery, orderBy, missedCells, entityClass);
+            Map<String, List<T>> fetchedByCell = routeToCells(fetched, missedCells);
+            synchronized (this) {
+                for (Map.Entry<String, List<T>> cellResults : fetchedByCell.entrySet()) {
+                    List<T> results = Collections.unmodifiableList(cellResults.getValue());
+                    resultsByCell.put(cellResults.getKey(), results);
+                    if (fetchGeneration == generation) {
+                        put(new CacheKey(signature, cellResults.getKey()), new CacheEntry(results, now + ttlNanos));
+                    }
+                }
+            }
+        }
+
+        if (resultsByCell.size() == 1) {
+            return new ArrayList<T>((List<T>) resultsByCell.values().iterator().next());
+        }
+        // an entity in several of the cells (of different resolutions) is returned once
+        Map<Object, T> merged = new LinkedHashMap<Object, T>();
+        for (List<?> results : resultsByCell.values()) {
+            for (Object entity : results) {
+                String key = GeocellUtils.getKeyString(entity);
+                merged.put(key == null ? new Object() : key, (T) entity);
+            }
+        }
+        return new ArrayList<T>(merged.values());
+    }
+
+    // Dispatches the results of a multi-cell query to the requested cells containing them.
+    private static <T> Map<String, List<T>> routeToCells(List<T> fetched, List<String> cells) {
+        Map<String, List<T>> resultsByCell = new LinkedHashMap<String, List<T>>();
+        for (String cell : cells) {
+            resultsByCell.put(cell, new ArrayList<T>());
+        }
+        if (cells.size() == 1) {
+            resultsByCell.get(cells.get(0)).addAll(fetched);
+            return resultsByCell;
+        }
+        for (T entity : fetched) {
+            for (String cell : GeocellUtils.getIndexedGeocells(entity)) {
+                List<T> cellResults = resultsByCell.get(cell);
+                if (cellResults != null) {
+                    cellResults.add(entity);
+                }
+            }
+        }
+        return resultsByCell;
+    }
+
+    /**
+     * Invalidates the cached cells containing the entity, for every query.
+     *
+     * @param entity an entity that was saved or deleted
+     */
+    public void invalidate(Object entity) {
+        invalidateCells(GeocellUtils.getIndexedGeocells(entity));
+    }
+
+    /**
+     * Invalidates the given cells, for every query.
+     *
+     * @param cells the cells to invalidate, e.g. the geocells of an entity that was saved or deleted
+     */
+    public synchronized void invalidateCells(Collection<String> cells) {
+        generation++;
+        for (String cell : cells) {
+            Set<CacheKey> keys = keysByCell.remove(cell);
+            if (keys != null) {
+                for (CacheKey key : keys) {
+                    entries.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Invalidates all the cached cells.
+     */
+    public synchronized void invalidateAll() {
+        generation++;
+        entries.clear();
+        keysByCell.clear();
+    }
+
+    /**
+     * @return the number of cells answered from the cache
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of cells queried from the backend
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of cached cells
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void put(CacheKey key, CacheEntry entry) {
+        entries.put(key, entry);
+        Set<CacheKey> keys = keysByCell.get(key.cell);
+        if (keys == null) {
+            keys = new HashSet<CacheKey>();
+            keysByCell.put(key.cell, keys);
+        }
+        keys.add(key);
+
+        // evict the least recently used cells
+        Iterator<CacheKey> eldest = entries.keySet().iterator();
+        while (entries.size() > maxEntries) {
+            CacheKey evicted = eldest.next();
+            eldest.remove();
+            removeFromCellIndex(evicted);
+        }
+    }
+
+    private void remove(CacheKey key) {
+        entries.remove(key);
+        removeFromCellIndex(key);
+    }
+
+    private void removeFromCellIndex(CacheKey key) {
+        Set<CacheKey> keys = keysByCell.get(key.cell);
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                keysByCell.remove(key.cell);
+            }
+        }
+    }
+
+    private static final class CacheKey {
+        private final QuerySignature signature;
+        private final String cell;
+
+        CacheKey(QuerySignature signature, String cell) {
+            this.signature = signature;
+            this.cell = cell;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) o;
+            return cell.equals(other.cell) && signature.equals(other.signature);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * signature.hashCode() + cell.hashCode();
+        }
+    }
+
+    private static final class CacheEntry {
+        private final List<?> results;
+        private final long expiresAt;
+
+        CacheEntry(List<?> results, long expiresAt) {
+            this.results = results;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.ncalderini.geocell;
+
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+ * Sorting and binary search of points by packed geocell, in the unsigned order of the cells
+ * (see {@link PackedGeocellUtils}), shared by the in-memory indexes.
+ *
+ * The sort is a least significant digit radix sort on the bytes of the cells: it is stable, takes
+ * O(n) time, allocates no object per point, and skips the bytes that all the cells share (e.g. the
+ * unused low bits of cells of maximum resolution).
+ *
+ */
+final class CellOrder {
+
+    private static final int RADIX_BITS = 8;
+    private static final int RADIX = 1 << RADIX_BITS;
+
+    private CellOrder() {
+        // no instantiation allowed
+    }
+
+    /**
+     * @param cells packed geocells
+     * @param count the number of cells to sort, from the first one
+     * @return the positions of the cells, in the unsigned order of the cells (equal cells keep their order)
+     */
+    static int[] sort(long[] cells, int count) {
+        int[] order = new int[count];
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+            keys[i] = cells[i];
+        }
+        int[] orderBuffer = new int[count];
+        long[] keysBuffer = new long[count];
+        int[] starts = new int[RADIX + 1];
+        for (int shift = 0; shift < Long.SIZE; shift += RADIX_BITS) {
+            Arrays.fill(starts, 0);
+            for (int i = 0; i < count; i++) {
+                starts[((int) (keys[i] >>> shift) & (RADIX - 1)) + 1]++;
+            }
+            if (count == 0 || starts[((int) (keys[0] >>> shift) & (RADIX - 1)) + 1] == count) {
+                // all the cells share this byte
+                continue;
+            }
+            for (int digit = 0; digit < RADIX; digit++) {
+                starts[digit + 1] += starts[digit];
+            }
+            for (int i = 0; i < count; i++) {
+                int position = starts[(int) (keys[i] >>> shift) & (RADIX - 1)]++;
+                orderBuffer[position] = order[i];
+                keysBuffer[position] = keys[i];
+            }
+            int[] swapOrder = order;
+            order = orderBuffer;
+            orderBuffer = swapOrder;
+            long[] swapKeys = keys;
+            keys = keysBuffer;
+            keysBuffer = swapKeys;
+        }
+        return order;
+    }
+
+    /**
+     * @param cells packed geocells, in unsigned order
+     * @param from the first position searched
+     * @param to the position following the last one searched
+     * @param cell a packed geocell
+     * @return the first position whose cell is not lower than the given one (unsigned), to if there is none
+     */
+    static int lowerBound(long[] cells, int from, int to, long cell) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (Long.compareUnsigned(cells[middle], cell) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @see #lowerBound(long[], int, int, long)
+     */
+    static int lowerBound(LongBuffer cells, int from, int to, long cell) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (Long.compareUnsigned(cells.get(middle), cell) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
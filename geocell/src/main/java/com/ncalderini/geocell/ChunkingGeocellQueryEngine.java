@@ -0,0 +1,172 @@
+package com.ncalderini.geocell;
+
+import com.ncalderini.geocell.model.GeocellQuery;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * GeocellQueryEngine decorator splitting large lists of cells into chunks queried concurrently.
+ *
+ * The datastore runs a <code>geocells in</code> filter as one serial sub-query per value, and limits
+ * the number of values of a single filter. Large coverings (e.g. the 16 top level cells of a proximity
+ * search, or up to 300 cells of a bounding box search) are split into chunks of at most
+ * <code>chunkSize</code> cells, at most <code>maxConcurrency</code> chunks are queried at the same time,
+ * and the results are merged and deduplicated by key ({@link GeocellUtils#getKeyString(Object)}).
+ *
+ * N.B. When an order is given, each chunk is ordered but the merged results are concatenated in chunk order.
+ *
+ * N.B. The chunks are queried on the threads of the executor, not on the calling thread: the delegate
+ * must be usable from them. With Objectify, or on App Engine standard environment, give an executor
+ * whose threads are created by <code>ThreadManager.currentRequestThreadFactory()</code>; the caller owns
+ * that executor and shuts it down. The default executor is shared by all the engines and never needs to
+ * be shut down.
+ *
+ */
+public class ChunkingGeocellQueryEngine implements AsyncGeocellQueryEngine {
+
+    // Maximum number of values of a datastore 'in' filter.
+    public static final int DEFAULT_CHUNK_SIZE = 30;
+
+    public static final int DEFAULT_MAX_CONCURRENCY = 8;
+
+    private final GeocellQueryEngine delegate;
+    private final int chunkSize;
+    private final Semaphore permits;
+    private final Executor executor;
+
+    /**
+     * Creates an engine with the default chunk size and concurrency, running chunks on the shared
+     * default executor.
+     *
+     * @param delegate the engine running the chunk queries
+     */
+    public ChunkingGeocellQueryEngine(GeocellQueryEngine delegate) {
+        this(delegate, DEFAULT_CHUNK_SIZE, DEFAULT_MAX_CONCURRENCY);
+    }
+
+    /**
+     * Creates an engine running chunks on the shared default executor: virtual threads when available
+     * (Java 21+), a pool of daemon threads otherwise.
+     *
+     * @param delegate the engine running the chunk queries
+     * @param chunkSize the maximum number of cells per query
+     * @param maxConcurrency the maximum number of chunk queries running at the same time
+     */
+    public ChunkingGeocellQueryEngine(GeocellQueryEngine delegate, int chunkSize, int maxConcurrency) {
+        this(delegate, chunkSize, maxConcurrency, DefaultExecutorHolder.EXECUTOR);
+    }
+
+    /**
+     * On App Engine standard environment, use an executor whose threads are created by
+     * <code>ThreadManager.currentRequestThreadFactory()</code>. The executor is not shut down by the engine.
+     *
+     * @param delegate the engine running the chunk queries
+     * @param chunkSize the maximum number of cells per query
+     * @param maxConcurrency the maximum number of chunk queries running at the same time
+     * @param executor the executor running the chunk queries
+     */
+    public ChunkingGeocellQueryEngine(GeocellQueryEngine delegate, int chunkSize, int maxConcurrency, Executor executor) {
+        if (chunkSize < 1 || maxConcurrency < 1) {
+            throw new IllegalArgumentException("chunkSize and maxConcurrency must be positive");
+        }
+        this.delegate = delegate;
+        this.chunkSize = chunkSize;
+        this.permits = new Semaphore(maxConcurrency);
+        this.executor = executor;
+    }
+
+    /**
+     * @see GeocellQueryEngine#query(GeocellQuery, String, java.util.List, java.lang.Class)
+     */
+    @Override
+    public <T> List<T> query(GeocellQuery baseQuery, String orderBy, List<String> curGeocellsUnique, Class<T> entityClass) {
+        if (curGeocellsUnique.size() <= chunkSize) {
+            return delegate.query(baseQuery, orderBy, curGeocellsUnique, entityClass);
+        }
+        try {
+            return queryAsync(baseQuery, orderBy, curGeocellsUnique, entityClass).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @see AsyncGeocellQueryEngine#queryAsync(GeocellQuery, String, java.util.List, java.lang.Class)
+     */
+    @Override
+    public <T> CompletableFuture<List<T>> queryAsync(final GeocellQuery baseQuery, final String orderBy, List<String> curGeocellsUnique, final Class<T> entityClass) {
+        final List<CompletableFuture<List<T>>> chunks = new ArrayList<CompletableFuture<List<T>>>();
+        for (int from = 0; from < curGeocellsUnique.size(); from += chunkSize) {
+            final List<String> chunk = new ArrayList<String>(
+                    curGeocellsUnique.subList(from, Math.min(from + chunkSize, curGeocellsUnique.size())));
+            chunks.add(CompletableFuture.supplyAsync(() -> queryChunk(baseQuery, orderBy, chunk, entityClass), executor));
+        }
+        if (chunks.size() == 1) {
+            return chunks.get(0);
+        }
+        return CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[chunks.size()]))
+                .thenApply(done -> merge(chunks));
+    }
+
+    private <T> List<T> queryChunk(GeocellQuery baseQuery, String orderBy, List<String> chunk, Class<T> entityClass) {
+        permits.acquireUninterruptibly();
+        try {
+            return delegate.query(baseQuery, orderBy, chunk, entityClass);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private static <T> List<T> merge(List<CompletableFuture<List<T>>> chunks) {
+        Map<Object, T> merged = new LinkedHashMap<Object, T>();
+        for (CompletableFuture<List<T>> chunk : chunks) {
+            for (T entity : chunk.join()) {
+                String key = GeocellUtils.getKeyString(entity);
+                // entities without key can't be deduplicated
+                merged.put(key == null ? new Object() : key, entity);
+            }
+        }
+        return new ArrayList<T>(merged.values());
+    }
+
+    // Created on first use only, by the engines without executor.
+    private static final class DefaultExecutorHolder {
+        static final ExecutorService EXECUTOR = newDefaultExecutor();
+    }
+
+    /**
+     * @return a virtual thread per task executor if available, a cached pool of daemon threads otherwise;
+     * the concurrency is bounded by each engine
+     */
+    static ExecutorService newDefaultExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            // not available before Java 21
+        }
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "geocell-query-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
@@ -0,0 +1,185 @@
+package com.ncalderini.geocell;
+
+import com.ncalderini.geocell.model.GeocellQuery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * GeocellQueryEngine decorator coalescing concurrent identical queries.
+ *
+ * Queries are identified by (entity class, base query and parameters, order, cells in any order). When a
+ * query arrives while an identical one is running on the backend, it waits for the running one instead of
+ * querying the backend again: under a burst of searches around the same place, a single backend query
+ * serves all of them. Only running queries are shared, nothing is kept once they complete (see
+ * {@link CachingGeocellQueryEngine} to keep results).
+ *
+ * Each caller gets its own list of results; the entities themselves are shared between the callers.
+ * A failure of the backend query is thrown to every caller waiting for it.
+ *
+ */
+public class CoalescingGeocellQueryEngine implements AsyncGeocellQueryEngine {
+
+    private final GeocellQueryEngine delegate;
+
+    // Running backend queries, removed before they complete.
+    private final ConcurrentMap<FlightKey, CompletableFuture<List<?>>> inFlight = new ConcurrentHashMap<FlightKey, CompletableFuture<List<?>>>();
+
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * @param delegate the engine running the backend queries; its asynchronous queries are used when it is
+     *                 an {@link AsyncGeocellQueryEngine}
+     */
+    public CoalescingGeocellQueryEngine(GeocellQueryEngine delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * @see GeocellQueryEngine#query(GeocellQuery, String, java.util.List, java.lang.Class)
+     */
+    @Override
+    public <T> List<T> query(GeocellQuery baseQuery, String orderBy, List<String> curGeocellsUnique, Class<T> entityClass) {
+        FlightKey key = new FlightKey(new QuerySignature(entityClass, baseQuery, orderBy), curGeocellsUnique);
+        CompletableFuture<List<?>> flight = new CompletableFuture<List<?>>();
+        CompletableFuture<List<?>> running = inFlight.putIfAbsent(key, flight);
+        if (running != null) {
+            coalesced.incrementAndGet();
+            return copy(join(running));
+        }
+
+        queries.incrementAndGet();
+        List<T> results;
+        try {
+            results = delegate.query(baseQuery, orderBy, curGeocellsUnique, entityClass);
+        } catch (RuntimeException | Error e) {
+            inFlight.remove(key, flight);
+            flight.completeExceptionally(e);
+            throw e;
+        }
+        inFlight.remove(key, flight);
+        // the waiters copy a snapshot, the caller keeps the list of the delegate
+        flight.complete(Collections.unmodifiableList(new ArrayList<T>(results)));
+        return results;
+    }
+
+    /**
+     * Runs the query asynchronously if the delegate is an {@link AsyncGeocellQueryEngine}, in the calling
+     * thread otherwise.
+     *
+     * @see AsyncGeocellQueryEngine#queryAsync(GeocellQuery, String, java.util.List, java.lang.Class)
+     */
+    @Override
+    public <T> CompletableFuture<List<T>> queryAsync(GeocellQuery baseQuery, String orderBy, List<String> curGeocellsUnique, Class<T> entityClass) {
+        if (!(delegate instanceof AsyncGeocellQueryEngine)) {
+            try {
+                return CompletableFuture.completedFuture(query(baseQuery, orderBy, curGeocellsUnique, entityClass));
+            } catch (RuntimeException e) {
+                CompletableFuture<List<T>> failed = new CompletableFuture<List<T>>();
+                failed.completeExceptionally(e);
+                return failed;
+            }
+        }
+
+        final FlightKey key = new FlightKey(new QuerySignature(entityClass, baseQuery, orderBy), curGeocellsUnique);
+        final CompletableFuture<List<?>> flight = new CompletableFuture<List<?>>();
+        CompletableFuture<List<?>> running = inFlight.putIfAbsent(key, flight);
+        if (running != null) {
+            coalesced.incrementAndGet();
+            return running.thenApply(CoalescingGeocellQueryEngine::copy);
+        }
+
+        queries.incrementAndGet();
+        CompletableFuture<List<T>> backend;
+        try {
+            backend = ((AsyncGeocellQueryEngine) delegate).queryAsync(baseQuery, orderBy, curGeocellsUnique, entityClass);
+        } catch (RuntimeException e) {
+            backend = new CompletableFuture<List<T>>();
+            backend.completeExceptionally(e);
+        }
+        backend.whenComplete((results, failure) -> {
+            inFlight.remove(key, flight);
+            if (failure != null) {
+                flight.completeExceptionally(failure);
+            } else {
+                flight.complete(Collections.unmodifiableList(new ArrayList<T>(results)));
+            }
+        });
+        return flight.thenApply(CoalescingGeocellQueryEngine::copy);
+    }
+
+    private static List<?> join(CompletableFuture<List<?>> flight) {
+        try {
+            return flight.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> List<T> copy(List<?> results) {
+        return new ArrayList<T>((List<T>) results);
+    }
+
+    /**
+     * @return the number of queries run on the backend
+     */
+    public long getQueryCount() {
+        return queries.get();
+    }
+
+    /**
+     * @return the number of queries answered by a query already running on the backend
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return the number of queries running on the backend
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    private static final class FlightKey {
+        private final QuerySignature signature;
+        private final List<String> cells;
+        private final int hashCode;
+
+        FlightKey(QuerySignature signature, List<String> cells) {
+            this.signature = signature;
+            List<String> sorted = new ArrayList<String>(cells);
+            Collections.sort(sorted);
+            this.cells = sorted;
+            this.hashCode = 31 * signature.hashCode() + sorted.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FlightKey)) {
+                return false;
+            }
+            FlightKey other = (FlightKey) o;
+            return hashCode == other.hashCode && signature.equals(other.signature) && cells.equals(other.cells);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
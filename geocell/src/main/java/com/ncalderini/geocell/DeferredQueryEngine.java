@@ -0,0 +1,64 @@
+package com.ncalderini.geocell;
+
+import com.ncalderini.geocell.model.GeocellQuery;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous engine able to start a query on the calling thread and leave its results unread, so
+ * that an asynchronous search can have several queries in flight even when nothing else reads them.
+ *
+ * @see AsyncProximitySearch
+ */
+interface DeferredQueryEngine extends AsyncGeocellQueryEngine {
+
+    /**
+     * Starts a query.
+     *
+     * @return either {@link Results}, completed when they are read, or a future completing on its own
+     * @see AsyncGeocellQueryEngine#queryAsync(GeocellQuery, String, java.util.List, java.lang.Class)
+     */
+    <T> CompletableFuture<List<T>> queryDeferred(GeocellQuery baseQuery, String orderBy, List<String> curGeocellsUnique, Class<T> entityClass);
+
+    /**
+     * The results of a started query, read on the thread calling {@link #read()}, {@link #join()} or
+     * {@link #get()}. Results cancelled before being read are never read.
+     */
+    final class Results<T> extends CompletableFuture<List<T>> {
+
+        private final Supplier<List<T>> reader;
+
+        Results(Supplier<List<T>> reader) {
+            this.reader = reader;
+        }
+
+        /**
+         * Reads the results, waiting for them if needed, unless they were already read or cancelled.
+         */
+        void read() {
+            if (isDone()) {
+                return;
+            }
+            try {
+                complete(reader.get());
+            } catch (RuntimeException e) {
+                completeExceptionally(e);
+            }
+        }
+
+        @Override
+        public List<T> join() {
+            read();
+            return super.join();
+        }
+
+        @Override
+        public List<T> get() throws InterruptedException, ExecutionException {
+            read();
+            return super.get();
+        }
+    }
+}
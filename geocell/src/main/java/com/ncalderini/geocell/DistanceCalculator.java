@@ -0,0 +1,190 @@
+package com.ncalderini.geocell;
+
+import com.ncalderini.geocell.model.Point;
+
+/**
+ * Great circle distances from a fixed center, on a sphere of radius {@link GeocellUtils#RADIUS}.
+ *
+ * The trigonometric terms of the center are computed once, and distances use the haversine formula,
+ * which stays accurate for short distances. When only the points within a maximum distance matter,
+ * {@link #distanceWithin(double, double, double)} first rejects the points whose latitude alone puts them
+ * too far (the distance is never shorter than the arc along the meridian), then compares the haversine
+ * term to its precomputed threshold, so the inverse sine is only computed for the points kept.
+ *
+ * Instances are not thread-safe: use one per search, or one per thread moved with {@link #setCenter(double, double)}.
+ *
+ */
+public final class DistanceCalculator {
+
+    private static final double RADIANS_PER_DEGREE = Math.PI / 180;
+
+    private double latitude;
+    private double longitude;
+    private double latitudeRadians;
+    private double cosLatitude;
+
+    // Threshold cache of distanceWithin: most callers use the same max distance for every point.
+    private double maxDistance = Double.NaN;
+    private double maxLatitudeDelta;
+    private double maxHaversine;
+
+    private long evaluationCount;
+
+    /**
+     * @param center the center the distances are measured from
+     */
+    public DistanceCalculator(Point center) {
+        this(center.getLatitude(), center.getLongitude());
+    }
+
+    /**
+     * @param latitude the latitude of the center
+     * @param longitude the longitude of the center
+     */
+    public DistanceCalculator(double latitude, double longitude) {
+        setCenter(latitude, longitude);
+    }
+
+    /**
+     * Moves the center, e.g. to measure from many centers in turn without allocating a calculator for each.
+     * The threshold of {@link #distanceWithin(double, double, double)} and the evaluation count are kept.
+     *
+     * @param latitude the latitude of the new center
+     * @param longitude the longitude of the new center
+     */
+    public void setCenter(double latitude, double longitude) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.latitudeRadians = latitude * RADIANS_PER_DEGREE;
+        this.cosLatitude = Math.cos(latitudeRadians);
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    /**
+     * @param point
+     * @return the distance from the center to the point, in meters
+     */
+    public double distance(Point point) {
+        return distance(point.getLatitude(), point.getLongitude());
+    }
+
+    /**
+     * @param latitude
+     * @param longitude
+     * @return the distance from the center to the point, in meters
+     */
+    public double distance(double latitude, double longitude) {
+        return toDistance(haversine(latitude, longitude));
+    }
+
+    /**
+     * @param latitude
+     * @param longitude
+     * @param maxDistance the maximum distance, in meters
+     * @return the distance from the center to the point in meters, or positive infinity if it is greater than maxDistance
+     */
+    public double distanceWithin(double latitude, double longitude, double maxDistance) {
+        if (maxDistance != this.maxDistance) {
+            setMaxDistance(maxDistance);
+        }
+        if (Math.abs(latitude * RADIANS_PER_DEGREE - latitudeRadians) > maxLatitudeDelta) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double haversine = haversine(latitude, longitude);
+        if (haversine > maxHaversine) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double distance = toDistance(haversine);
+        return distance > maxDistance ? Double.POSITIVE_INFINITY : distance;
+    }
+
+    /**
+     * Computes the distances from the center to a batch of points.
+     *
+     * @param latitudes the latitudes of the points
+     * @param longitudes the longitudes of the points
+     * @param count the number of points
+     * @param result receives the distances, in meters
+     */
+    public void distances(double[] latitudes, double[] longitudes, int count, double[] result) {
+        for (int i = 0; i < count; i++) {
+            result[i] = toDistance(haversine(latitudes[i], longitudes[i]));
+        }
+    }
+
+    /**
+     * Finds the points of a batch within a maximum distance of the center.
+     *
+     * @param latitudes the latitudes of the points
+     * @param longitudes the longitudes of the points
+     * @param count the number of points
+     * @param maxDistance the maximum distance, in meters
+     * @param indexes receives the indexes of the points within maxDistance, in increasing order
+     * @param distances receives the distances of these points, aligned with indexes
+     * @return the number of points within maxDistance
+     */
+    public int filterWithin(double[] latitudes, double[] longitudes, int count, double maxDistance, int[] indexes, double[] distances) {
+        int found = 0;
+        for (int i = 0; i < count; i++) {
+            double distance = distanceWithin(latitudes[i], longitudes[i], maxDistance);
+            if (distance != Double.POSITIVE_INFINITY) {
+                indexes[found] = i;
+                distances[found++] = distance;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return the number of exact distances computed by this calculator (points rejected by the latitude bound are not counted)
+     */
+    public long getEvaluationCount() {
+        return evaluationCount;
+    }
+
+    /**
+     * @return the great circle distance between the two points, in meters
+     */
+    public static double distance(double latitude1, double longitude1, double latitude2, double longitude2) {
+        double latitudeRadians1 = latitude1 * RADIANS_PER_DEGREE;
+        double latitudeRadians2 = latitude2 * RADIANS_PER_DEGREE;
+        double sinLatitude = Math.sin((latitudeRadians2 - latitudeRadians1) / 2);
+        double sinLongitude = Math.sin((longitude2 - longitude1) * RADIANS_PER_DEGREE / 2);
+        return toDistance(sinLatitude * sinLatitude
+                + Math.cos(latitudeRadians1) * Math.cos(latitudeRadians2) * sinLongitude * sinLongitude);
+    }
+
+    // sin^2(d / 2R), for the distance d from the center to the point
+    private double haversine(double latitude, double longitude) {
+        evaluationCount++;
+        double otherLatitudeRadians = latitude * RADIANS_PER_DEGREE;
+        double sinLatitude = Math.sin((otherLatitudeRadians - latitudeRadians) / 2);
+        double sinLongitude = Math.sin((longitude - this.longitude) * RADIANS_PER_DEGREE / 2);
+        return sinLatitude * sinLatitude + cosLatitude * Math.cos(otherLatitudeRadians) * sinLongitude * sinLongitude;
+    }
+
+    private static double toDistance(double haversine) {
+        return 2 * GeocellUtils.RADIUS * Math.asin(Math.sqrt(Math.min(1, haversine)));
+    }
+
+    private void setMaxDistance(double maxDistance) {
+        this.maxDistance = maxDistance;
+        double angle = maxDistance / GeocellUtils.RADIUS;
+        if (angle >= Math.PI) {
+            maxLatitudeDelta = Double.POSITIVE_INFINITY;
+            maxHaversine = Double.POSITIVE_INFINITY;
+        } else {
+            // the margins keep the points the exact distance may accept, despite rounding
+            maxLatitudeDelta = angle * (1 + 1e-12) + 1e-15;
+            double sin = Math.sin(angle / 2);
+            maxHaversine = sin * sin * (1 + 1e-12) + 1e-18;
+        }
+    }
+}
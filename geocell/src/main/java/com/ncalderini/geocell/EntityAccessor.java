@@ -0,0 +1,174 @@
+package com.ncalderini.geocell;
+
+import com.googlecode.objectify.annotation.Id;
+import com.ncalderini.geocell.annotations.Geocells;
+import com.ncalderini.geocell.annotations.Location;
+import com.ncalderini.geocell.model.Point;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.util.List;
+
+/**
+ * Accessors to the <code>@Location</code>, <code>@Geocells</code> and <code>@Id</code> fields of an entity class.
+ *
+ * Fields are looked up once per class (walking up the class hierarchy) and cached,
+ * so reading an entity on the hot path is a single method handle invocation.
+ *
+ * @see GeocellUtils#getLocation(Object)
+ * @see GeocellUtils#getKeyString(Object)
+ * @see GeocellUtils#getGeocellsFieldName(Class)
+ */
+final class EntityAccessor {
+
+    private static final ClassValue<EntityAccessor> ACCESSORS = new ClassValue<EntityAccessor>() {
+        @Override
+        protected EntityAccessor computeValue(Class<?> type) {
+            return new EntityAccessor(type);
+        }
+    };
+
+    private final Class<?> type;
+    private final MethodHandle locationGetter;
+    private final MethodHandle idGetter;
+    private final MethodHandle geocellsGetter;
+    private final MethodHandle geocellsSetter;
+    private final String geocellsFieldName;
+    private final String locationFieldName;
+
+    private EntityAccessor(Class<?> type) {
+        this.type = type;
+        Field locationField = findField(type, Location.class);
+        Field idField = findField(type, Id.class);
+        Field geocellsField = findField(type, Geocells.class);
+
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            this.locationGetter = locationField == null ? null : lookup.unreflectGetter(locationField);
+            this.idGetter = idField == null ? null : lookup.unreflectGetter(idField);
+            this.geocellsGetter = geocellsField == null ? null : lookup.unreflectGetter(geocellsField);
+            this.geocellsSetter = geocellsField == null ? null : lookup.unreflectSetter(geocellsField);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException("Cannot access geocell fields of " + type.getName(), e);
+        }
+        this.geocellsFieldName = geocellsField == null ? null : geocellsField.getName();
+        this.locationFieldName = locationField == null ? null : locationField.getName();
+    }
+
+    /**
+     * @param type the entity class
+     * @return the cached accessor of the entity class
+     */
+    static EntityAccessor of(Class<?> type) {
+        return ACCESSORS.get(type);
+    }
+
+    /**
+     * @param entity
+     * @return the value of the <code>@Location</code> field (not a copy)
+     */
+    Point getLocation(Object entity) {
+        if (locationGetter == null) {
+            throw missing(Location.class);
+        }
+        try {
+            return (Point) locationGetter.invoke(entity);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * @param entity
+     * @return the value of the <code>@Id</code> field, or null if it is not set
+     */
+    Object getId(Object entity) {
+        if (idGetter == null) {
+            throw missing(Id.class);
+        }
+        try {
+            return idGetter.invoke(entity);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * @param entity
+     * @return the value of the <code>@Geocells</code> field
+     */
+    @SuppressWarnings("unchecked")
+    List<String> getGeocells(Object entity) {
+        if (geocellsGetter == null) {
+            throw missing(Geocells.class);
+        }
+        try {
+            return (List<String>) geocellsGetter.invoke(entity);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * @param entity
+     * @param geocells the new value of the <code>@Geocells</code> field
+     */
+    void setGeocells(Object entity, List<String> geocells) {
+        if (geocellsSetter == null) {
+            throw missing(Geocells.class);
+        }
+        try {
+            geocellsSetter.invoke(entity, geocells);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * @return the name of the <code>@Geocells</code> field
+     */
+    String getGeocellsFieldName() {
+        if (geocellsFieldName == null) {
+            throw missing(Geocells.class);
+        }
+        return geocellsFieldName;
+    }
+
+    /**
+     * @return the name of the <code>@Location</code> field
+     */
+    String getLocationFieldName() {
+        if (locationFieldName == null) {
+            throw missing(Location.class);
+        }
+        return locationFieldName;
+    }
+
+    private IllegalArgumentException missing(Class<? extends Annotation> annotation) {
+        return new IllegalArgumentException("No @" + annotation.getSimpleName() + " field in " + type.getName());
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException) {
+            return (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return new IllegalStateException(t);
+    }
+
+    private static Field findField(Class<?> type, Class<? extends Annotation> annotation) {
+        for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+            for (Field field : current.getDeclaredFields()) {
+                if (field.isAnnotationPresent(annotation)) {
+                    field.setAccessible(true);
+                    return field;
+                }
+            }
+        }
+        return null;
+    }
+}
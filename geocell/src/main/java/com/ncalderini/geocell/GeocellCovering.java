@@ -0,0 +1,119 @@
+package com.ncalderini.geocell;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A set of geocells covering a {@link com.ncalderini.geocell.model.Region}, some of them known to be
+ * entirely inside the region (interior cells).
+ *
+ * The entities of an interior cell don't need to be tested against the region:
+ * {@link #isInterior(double, double)} finds whether a point lies in one of them with a binary search
+ * over the packed cell ranges.
+ *
+ * @see RegionCoverer
+ */
+public final class GeocellCovering {
+
+    private static final GeocellCovering EMPTY = new GeocellCovering(new long[0], new boolean[0], 0);
+
+    // Packed cells, sorted as their string forms.
+    private final long[] cells;
+    // Packed ranges of the interior cells, as signed-comparable values (sign bit flipped), sorted.
+    private final long[] interiorMin;
+    private final long[] interiorMax;
+
+    GeocellCovering(long[] cells, boolean[] interior, int count) {
+        int interiorCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (interior[i]) {
+                interiorCount++;
+            }
+        }
+        int[] order = CellOrder.sort(cells, count);
+
+        this.cells = new long[count];
+        this.interiorMin = new long[interiorCount];
+        this.interiorMax = new long[interiorCount];
+        int j = 0;
+        for (int i = 0; i < count; i++) {
+            long cell = cells[order[i]];
+            this.cells[i] = cell;
+            // the cells are disjoint, so their ranges are sorted as the cells
+            if (interior[order[i]]) {
+                interiorMin[j] = PackedGeocellUtils.rangeMin(cell) ^ Long.MIN_VALUE;
+                interiorMax[j++] = PackedGeocellUtils.rangeMax(cell) ^ Long.MIN_VALUE;
+            }
+        }
+    }
+
+    static GeocellCovering empty() {
+        return EMPTY;
+    }
+
+    /**
+     * @return the number of cells of the covering
+     */
+    public int size() {
+        return cells.length;
+    }
+
+    /**
+     * @return whether the covering has no cell, i.e. the region doesn't intersect the world
+     */
+    public boolean isEmpty() {
+        return cells.length == 0;
+    }
+
+    /**
+     * @return the cells of the covering, sorted
+     */
+    public List<String> getCells() {
+        List<String> result = new ArrayList<String>(cells.length);
+        for (long cell : cells) {
+            result.add(PackedGeocellUtils.toString(cell));
+        }
+        return result;
+    }
+
+    /**
+     * @return the cells of the covering as packed geocells, sorted
+     */
+    public long[] getPackedCells() {
+        return cells.clone();
+    }
+
+    /**
+     * @return the number of cells entirely inside the region
+     */
+    public int getInteriorCellCount() {
+        return interiorMin.length;
+    }
+
+    /**
+     * @param latitude
+     * @param longitude
+     * @return whether the point lies in a cell entirely inside the region
+     */
+    public boolean isInterior(double latitude, double longitude) {
+        if (interiorMin.length == 0) {
+            return false;
+        }
+        long cell = PackedGeocellUtils.computeMax(latitude, longitude) ^ Long.MIN_VALUE;
+        int index = Arrays.binarySearch(interiorMin, cell);
+        if (index < 0) {
+            // the last range starting before the cell
+            index = -index - 2;
+            if (index < 0) {
+                return false;
+            }
+        }
+        return cell <= interiorMax[index];
+    }
+
+    @Override
+    public String toString() {
+        return getCells().toString();
+    }
+}
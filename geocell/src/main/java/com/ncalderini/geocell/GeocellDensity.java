@@ -0,0 +1,206 @@
+package com.ncalderini.geocell;
+
+import com.ncalderini.geocell.model.Point;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory count pyramid of the entities, by cell, from resolution 1 to <code>maxResolution</code>.
+ *
+ * Proximity searches use it to start at the resolution whose cell around the center is expected to hold
+ * enough entities, instead of backing off one level (and one round trip) at a time from the maximum
+ * resolution. The counts of the cells finer than <code>maxResolution</code> are estimated from their
+ * ancestor, assuming a uniform distribution inside it. A stale pyramid only costs round trips: the searches
+ * still query every cell of their expansion.
+ *
+ * When created with <code>skipEmptyCells</code>, the searches also skip the cells the pyramid counts as
+ * empty. The pyramid must then follow the writes exactly: {@link #add(Point)} the location of each saved
+ * entity, and {@link #remove(Point)} the previous location of a moved or deleted one. An entity saved but
+ * not added yet is missed by the searches. It costs one counter per non-empty cell: up to
+ * <code>maxResolution</code> per entity in sparse areas, much fewer in dense ones.
+ *
+ * Instances are thread-safe.
+ *
+ * @see GeocellManager#proximitySearch(Point, int, double, double, Class, com.ncalderini.geocell.model.GeocellQuery, String, GeocellQueryEngine, int, GeocellDensity)
+ */
+public final class GeocellDensity {
+
+    // Cells of resolution 8 are about 600m wide.
+    public static final int DEFAULT_MAX_RESOLUTION = 8;
+
+    private static final int CHILDREN = GeocellUtils.GEOCELL_GRID_SIZE * GeocellUtils.GEOCELL_GRID_SIZE;
+
+    private final int maxResolution;
+    private final boolean skipEmptyCells;
+    // Entity count by packed cell; empty cells are absent.
+    private final ConcurrentHashMap<Long, Long> counts = new ConcurrentHashMap<Long, Long>();
+
+    /**
+     * Creates a pyramid of {@link #DEFAULT_MAX_RESOLUTION} levels.
+     */
+    public GeocellDensity() {
+        this(DEFAULT_MAX_RESOLUTION);
+    }
+
+    /**
+     * @param maxResolution the resolution of the finest counted cells
+     */
+    public GeocellDensity(int maxResolution) {
+        this(maxResolution, false);
+    }
+
+    /**
+     * @param maxResolution the resolution of the finest counted cells
+     * @param skipEmptyCells whether the searches skip the cells counted as empty, which requires the pyramid
+     *                       to be updated with every write
+     */
+    public GeocellDensity(int maxResolution, boolean skipEmptyCells) {
+        if (maxResolution < 1 || maxResolution > GeocellManager.MAX_GEOCELL_RESOLUTION) {
+            throw new IllegalArgumentException("maxResolution must be between 1 and " + GeocellManager.MAX_GEOCELL_RESOLUTION);
+        }
+        this.maxResolution = maxResolution;
+        this.skipEmptyCells = skipEmptyCells;
+    }
+
+    public int getMaxResolution() {
+        return maxResolution;
+    }
+
+    public boolean isSkipEmptyCells() {
+        return skipEmptyCells;
+    }
+
+    /**
+     * Counts an entity.
+     *
+     * @param location the location of the entity
+     */
+    public void add(Point location) {
+        long cell = PackedGeocellUtils.compute(location, maxResolution);
+        for (int resolution = 1; resolution <= maxResolution; resolution++) {
+            counts.merge(PackedGeocellUtils.parent(cell, resolution), 1L, Long::sum);
+        }
+    }
+
+    /**
+     * Uncounts an entity.
+     *
+     * @param location the location the entity was counted at
+     */
+    public void remove(Point location) {
+        long cell = PackedGeocellUtils.compute(location, maxResolution);
+        for (int resolution = 1; resolution <= maxResolution; resolution++) {
+            counts.computeIfPresent(PackedGeocellUtils.parent(cell, resolution), (key, count) -> count == 1 ? null : count - 1);
+        }
+    }
+
+    /**
+     * Counts entities.
+     *
+     * @param entities the entities, having a location (see {@link GeocellUtils#getLocation(Object)})
+     */
+    public void addAll(Iterable<?> entities) {
+        for (Object entity : entities) {
+            add(GeocellUtils.getLocation(entity));
+        }
+    }
+
+    /**
+     * Forgets all the entities.
+     */
+    public void clear() {
+        counts.clear();
+    }
+
+    /**
+     * @param cell a packed geocell, of resolution 1 to <code>maxResolution</code>
+     * @return the number of entities in the cell
+     */
+    public long count(long cell) {
+        int resolution = PackedGeocellUtils.resolution(cell);
+        if (resolution < 1 || resolution > maxResolution) {
+            throw new IllegalArgumentException("Cell resolution must be between 1 and " + maxResolution);
+        }
+        Long count = counts.get(cell);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * @param cell a packed geocell
+     * @return the number of entities in the cell: counted up to <code>maxResolution</code>, estimated from the
+     * ancestor of resolution <code>maxResolution</code> for finer cells
+     */
+    public double estimate(long cell) {
+        int resolution = PackedGeocellUtils.resolution(cell);
+        if (resolution == 0) {
+            long total = 0;
+            for (int digit = 0; digit < CHILDREN; digit++) {
+                total += count(PackedGeocellUtils.child(PackedGeocellUtils.ROOT, digit));
+            }
+            return total;
+        }
+        if (resolution <= maxResolution) {
+            return count(cell);
+        }
+        return count(PackedGeocellUtils.parent(cell, maxResolution)) / Math.pow(CHILDREN, resolution - maxResolution);
+    }
+
+    /**
+     * @param cell a packed geocell
+     * @return whether the cell is known to hold no entity
+     */
+    public boolean isEmpty(long cell) {
+        int resolution = PackedGeocellUtils.resolution(cell);
+        return resolution > 0 && count(PackedGeocellUtils.parent(cell, Math.min(resolution, maxResolution))) == 0;
+    }
+
+    /**
+     * Chooses the resolution a proximity search starts at: the finest one whose cell containing the center is
+     * expected to hold maxResults entities, or else the finest one whose cell containing the center is not empty.
+     *
+     * @param center the center of the search
+     * @param maxResults the number of results wanted
+     * @param maxGeocellResolution the finest resolution allowed
+     * @return the starting resolution, maxGeocellResolution if the world is empty
+     */
+    public int startingResolution(Point center, int maxResults, int maxGeocellResolution) {
+        long cell = PackedGeocellUtils.compute(center, maxGeocellResolution);
+        int nonEmpty = -1;
+        for (int resolution = maxGeocellResolution; resolution >= 1; resolution--) {
+            double expected = estimate(PackedGeocellUtils.parent(cell, resolution));
+            if (expected >= maxResults) {
+                return resolution;
+            }
+            if (nonEmpty < 0 && expected > 0) {
+                nonEmpty = resolution;
+            }
+        }
+        return nonEmpty < 0 ? maxGeocellResolution : nonEmpty;
+    }
+
+    /**
+     * @param cells geocells
+     * @return the cells not known to be empty, or all of them unless the pyramid skips empty cells
+     */
+    List<String> removeEmpty(List<String> cells) {
+        if (!skipEmptyCells) {
+            return cells;
+        }
+        List<String> result = new ArrayList<String>(cells.size());
+        for (String cell : cells) {
+            if (!isEmpty(PackedGeocellUtils.fromString(cell))) {
+                result.add(cell);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of non-empty cells counted
+     */
+    public int size() {
+        return counts.size();
+    }
+}
@@ -0,0 +1,156 @@
+package com.ncalderini.geocell;
+
+import com.ncalderini.geocell.model.Point;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+import java.util.stream.Stream;
+
+/**
+ * Bulk geocell generation, e.g. for ingestion pipelines.
+ *
+ * The cell of maximum resolution of each point is computed once, and the cells of lower resolutions are
+ * its prefixes, all read from the same characters. Batches are split across the cores with fork/join.
+ * Entities are indexed in place: their <code>@Geocells</code> field receives the geocells of their location,
+ * as computed by {@link GeocellManager#generateGeoCell(Point)}.
+ *
+ */
+public final class GeocellIndexer {
+
+    // Number of points below which a batch is processed by a single thread.
+    private static final int SEQUENTIAL_THRESHOLD = 2048;
+
+    private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+
+    private GeocellIndexer() {
+        // no instantiation allowed
+    }
+
+    /**
+     * @param cell a packed geocell
+     * @return the cell and all its ancestors, from resolution 1 to the resolution of the cell
+     */
+    public static List<String> geocells(long cell) {
+        int resolution = PackedGeocellUtils.resolution(cell);
+        char[] chars = new char[resolution];
+        for (int i = 0; i < resolution; i++) {
+            chars[i] = HEX_CHARS[PackedGeocellUtils.digit(cell, i + 1)];
+        }
+        List<String> geocells = new ArrayList<String>(resolution);
+        for (int i = 1; i <= resolution; i++) {
+            geocells.add(new String(chars, 0, i));
+        }
+        return geocells;
+    }
+
+    /**
+     * Computes the packed cells of maximum resolution of a batch of points, in the common fork/join pool.
+     *
+     * @param latitudes the latitudes of the points
+     * @param longitudes the longitudes of the points
+     * @return the packed cells of maximum resolution, aligned with the points
+     * @see #geocells(long)
+     */
+    public static long[] computeMaxCells(double[] latitudes, double[] longitudes) {
+        long[] cells = new long[latitudes.length];
+        computeMaxCells(latitudes, longitudes, cells, ForkJoinPool.commonPool());
+        return cells;
+    }
+
+    /**
+     * Computes the packed cells of maximum resolution of a batch of points.
+     *
+     * @param latitudes the latitudes of the points
+     * @param longitudes the longitudes of the points
+     * @param result receives the packed cells of maximum resolution, aligned with the points
+     * @param pool the pool running the computation
+     */
+    public static void computeMaxCells(final double[] latitudes, final double[] longitudes, final long[] result, ForkJoinPool pool) {
+        if (latitudes.length != longitudes.length || result.length < latitudes.length) {
+            throw new IllegalArgumentException("Latitudes, longitudes and result must have the same length");
+        }
+        run(latitudes.length, i -> result[i] = PackedGeocellUtils.computeMax(latitudes[i], longitudes[i]), pool);
+    }
+
+    /**
+     * Fills the <code>@Geocells</code> field of the entities with the geocells of their location,
+     * in the common fork/join pool. Entities without location are left unchanged.
+     *
+     * @param entities entities having a <code>@Location</code> (or implementing LocationCapable) and a <code>@Geocells</code> field
+     */
+    public static void index(List<?> entities) {
+        index(entities, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Fills the <code>@Geocells</code> field of the entities with the geocells of their location.
+     * Entities without location are left unchanged.
+     *
+     * @param entities entities having a <code>@Location</code> (or implementing LocationCapable) and a <code>@Geocells</code> field
+     * @param pool the pool running the computation
+     */
+    public static void index(final List<?> entities, ForkJoinPool pool) {
+        run(entities.size(), i -> index(entities.get(i)), pool);
+    }
+
+    /**
+     * Fills the <code>@Geocells</code> field of the streamed entities with the geocells of their location.
+     * The stream is consumed in parallel (in the common fork/join pool). Entities without location are left unchanged.
+     *
+     * @param entities entities having a <code>@Location</code> (or implementing LocationCapable) and a <code>@Geocells</code> field
+     * @return the number of entities indexed
+     */
+    public static long index(Stream<?> entities) {
+        // count() may skip the pipeline when it can size the stream: the side effect must not run in a filter
+        return entities.parallel().mapToLong(entity -> index(entity) ? 1 : 0).sum();
+    }
+
+    private static boolean index(Object entity) {
+        Point location = GeocellUtils.getLocation(entity);
+        if (location == null) {
+            return false;
+        }
+        GeocellUtils.setGeocells(entity, geocells(PackedGeocellUtils.computeMax(location.getLatitude(), location.getLongitude())));
+        return true;
+    }
+
+    private static void run(int size, IntConsumer body, ForkJoinPool pool) {
+        if (size <= SEQUENTIAL_THRESHOLD) {
+            for (int i = 0; i < size; i++) {
+                body.accept(i);
+            }
+        } else {
+            pool.invoke(new RangeTask(0, size, body));
+        }
+    }
+
+    private static final class RangeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final IntConsumer body;
+
+        RangeTask(int from, int to, IntConsumer body) {
+            this.from = from;
+            this.to = to;
+            this.body = body;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= SEQUENTIAL_THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    body.accept(i);
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new RangeTask(from, middle, body), new RangeTask(middle, to, body));
+            }
+        }
+    }
+}
@@ -6,6 +6,8 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.Validate;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -99,6 +101,26 @@ public class GeocellManager {
 
     private static final Logger logger = GeocellLogger.get();
 
+    /**
+     * Registers a listener receiving the statistics of every search.
+     *
+     * Searches don't pay for the listeners when none is registered.
+     *
+     * @param listener the listener
+     */
+    public static void addSearchListener(SearchListener listener) {
+        Validate.notNull(listener, "listener");
+        SearchRecorder.addListener(listener);
+    }
+
+    /**
+     * @param listener a listener registered with {@link #addSearchListener(SearchListener)}
+     * @return whether the listener was registered
+     */
+    public static boolean removeSearchListener(SearchListener listener) {
+        return SearchRecorder.removeListener(listener);
+    }
+
     /**
      * Returns the list of geocells (all resolutions) that are containing the point
      *
@@ -106,13 +128,8 @@ public class GeocellManager {
      * @return Returns the list of geocells (all resolutions) that are containing the point
      */
     public static List<String> generateGeoCell(Point point) {
-        List<String> geocells = new ArrayList<String>();
-        String geocellMax = GeocellUtils.compute(point, GeocellManager.MAX_GEOCELL_RESOLUTION);
-        for(int i = 1; i < GeocellManager.MAX_GEOCELL_RESOLUTION; i++) {
-            geocells.add(GeocellUtils.compute(point, i));
-        }
-        geocells.add(geocellMax);
-        return geocells;
+        // the cells of lower resolutions are the prefixes of the cell of max resolution
+        return GeocellIndexer.geocells(PackedGeocellUtils.compute(point, GeocellManager.MAX_GEOCELL_RESOLUTION));
     }
 
     /**
@@ -138,59 +155,319 @@ public class GeocellManager {
     		return antimeridianList;
     	}
     	
-        String cellNE = GeocellUtils.compute(bbox.getNorthEast(), GeocellManager.MAX_GEOCELL_RESOLUTION);
-        String cellSW = GeocellUtils.compute(bbox.getSouthWest(), GeocellManager.MAX_GEOCELL_RESOLUTION);
+        if(costFunction == null) {
+            costFunction = DEFAULT_COST_FUNCTION;
+        }
+
+        long cellNE = PackedGeocellUtils.computeMax(bbox.getNorth(), bbox.getEast());
+        long cellSW = PackedGeocellUtils.computeMax(bbox.getSouth(), bbox.getWest());
 
         // The current lowest BBOX-search cost found; start with practical infinity.
         double minCost = Double.MAX_VALUE;
 
-        // The set of cells having the lowest calculated BBOX-search cost.
-        List<String> minCostCellSet = new ArrayList<String>();
+        // The resolution having the lowest calculated BBOX-search cost.
+        int minCostResolution = -1;
 
         // First find the common prefix, if there is one.. this will be the base
         // resolution.. i.e. we don't have to look at any higher resolution cells.
         int minResolution = 0;
-        int maxResoltuion = Math.min(cellNE.length(), cellSW.length());
-        while(minResolution < maxResoltuion  && cellNE.substring(0, minResolution+1).startsWith(cellSW.substring(0, minResolution+1))) {
+        while(minResolution < GeocellManager.MAX_GEOCELL_RESOLUTION
+                && PackedGeocellUtils.parent(cellNE, minResolution + 1) == PackedGeocellUtils.parent(cellSW, minResolution + 1)) {
             minResolution++;
         }
 
         // Iteravely calculate all possible sets of cells that wholely contain
         // the requested bounding box.
         for(int curResolution = minResolution; curResolution < GeocellManager.MAX_GEOCELL_RESOLUTION + 1; curResolution++) {
-            String curNE = cellNE.substring(0, curResolution);
-            String curSW = cellSW.substring(0, curResolution);
+            long curNE = PackedGeocellUtils.parent(cellNE, curResolution);
+            long curSW = PackedGeocellUtils.parent(cellSW, curResolution);
 
-            int numCells = GeocellUtils.interpolationCount(curNE, curSW);
+            long numCells = PackedGeocellUtils.interpolationCount(curNE, curSW);
             if(numCells > MAX_FEASIBLE_BBOX_SEARCH_CELLS) {
                 continue;
             }
 
-            List<String> cellSet = GeocellUtils.interpolate(curNE, curSW);
-            Collections.sort(cellSet);
+            // Costs measured on the data (see AdaptiveCostFunction) don't always rise steadily with the
+            // resolution: every resolution is evaluated, and only the cells of the cheapest one are computed.
+            double cost = costFunction.cost((int) numCells, curResolution, bbox);
+            if(cost <= minCost || minCostResolution < 0) {
+                minCost = cost;
+                minCostResolution = curResolution;
+            }
+        }
+        List<String> minCostCellSet = toSortedStrings(PackedGeocellUtils.interpolate(
+                PackedGeocellUtils.parent(cellNE, minCostResolution), PackedGeocellUtils.parent(cellSW, minCostResolution)));
+        if (logger.isLoggable(Level.FINE)) {
+            logger.log(Level.FINE, "Calculate cells "+StringUtils.join(minCostCellSet, ", ")+" in box ("+bbox.getSouth()+","+bbox.getWest()+") ("+bbox.getNorth()+","+bbox.getEast()+")");
+        }
+        return minCostCellSet;
+    }
+   
+    // Packed cells sort as their string forms.
+    private static List<String> toSortedStrings(long[] cells) {
+        // flipping the sign bit makes the signed order of packed cells the order of their string forms
+        long[] sorted = new long[cells.length];
+        for (int i = 0; i < cells.length; i++) {
+            sorted[i] = cells[i] ^ Long.MIN_VALUE;
+        }
+        Arrays.sort(sorted);
+        List<String> result = new ArrayList<String>(cells.length);
+        for (long cell : sorted) {
+            result.add(PackedGeocellUtils.toString(cell ^ Long.MIN_VALUE));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the entities located inside a bounding box.
+     *
+     * The cells returned by {@link #bestBboxSearchCells(BoundingBox, CostFunction)} are fetched by queries of at
+     * most {@link ChunkingGeocellQueryEngine#DEFAULT_CHUNK_SIZE} cells, the datastore limit of an 'in' filter, run
+     * one after the other (wrap the query engine in a {@link ChunkingGeocellQueryEngine} to run them concurrently),
+     * and the entities outside of the box are filtered out. Boxes crossing the antimeridian (east &lt; west) are
+     * supported. When an order is given, each query is ordered but the results are concatenated in query order.
+     *
+     * @param bbox The bounding box, inclusive
+     * @param maxResults The maximum number of results, 0 for no limit
+     * @param entityClass The entity class
+     * @param baseQuery The base query
+     * @param orderBy The order by clause, may be null
+     * @param queryEngine The query engine to use
+     * @param costFunction The cost function used to choose the covering cells, null for the default one
+     * @return the entities inside the box
+     */
+    public static <T> List<T> boundingBoxSearch(BoundingBox bbox, int maxResults, Class<T> entityClass, GeocellQuery baseQuery, String orderBy, GeocellQueryEngine queryEngine, CostFunction costFunction) {
+        final List<T> results = new ArrayList<T>();
+        boundingBoxSearch(bbox, maxResults, entityClass, baseQuery, orderBy, queryEngine, costFunction, results::add);
+        return results;
+    }
+
+    /**
+     * Streams the entities located inside a bounding box to the given consumer, as they are filtered.
+     *
+     * @see #boundingBoxSearch(BoundingBox, int, Class, GeocellQuery, String, GeocellQueryEngine, CostFunction)
+     * @return the number of entities passed to the consumer
+     */
+    public static <T> int boundingBoxSearch(BoundingBox bbox, int maxResults, Class<T> entityClass, GeocellQuery baseQuery, String orderBy, GeocellQueryEngine queryEngine, CostFunction costFunction, Consumer<? super T> consumer) {
+        SearchRecorder recorder = new SearchRecorder(SearchStats.Type.BOUNDING_BOX);
+        long start = recorder.now();
+        List<String> cells = bestBboxSearchCells(bbox, costFunction);
+        start = recorder.covered(start);
+        if (cells.isEmpty()) {
+            recorder.finish(0, 0);
+            return 0;
+        }
 
-            double cost;
-            if(costFunction == null) {
-                cost = DEFAULT_COST_FUNCTION.defaultCostFunction(cellSet.size(), curResolution);
-            } else {
-                cost = costFunction.defaultCostFunction(cellSet.size(), curResolution);
+        double north = bbox.getNorth();
+        double south = bbox.getSouth();
+        double east = bbox.getEast();
+        double west = bbox.getWest();
+        boolean crossesAntimeridian = east < west;
+
+        // Cells of different resolutions (both sides of the antimeridian) may overlap on their edges.
+        Set<String> keys = hasSingleResolution(cells) ? null : new HashSet<String>();
+
+        int count = 0;
+        for (List<String> chunk : chunks(cells, queryEngine)) {
+            recorder.stepped();
+            List<T> queryResults = queryEngine.query(baseQuery, orderBy, chunk, entityClass);
+            start = recorder.fetched(start, chunk, queryResults.size());
+
+            int kept = 0;
+            for (T entity : queryResults) {
+                Point location = GeocellUtils.getLocation(entity);
+                double latitude = location.getLatitude();
+                double longitude = location.getLongitude();
+                if (latitude < south || latitude > north) {
+                    continue;
+                }
+                if (crossesAntimeridian ? (longitude < west && longitude > east) : (longitude < west || longitude > east)) {
+                    continue;
+                }
+                if (keys != null) {
+                    String key = GeocellUtils.getKeyString(entity);
+                    if (key != null && !keys.add(key)) {
+                        continue;
+                    }
+                }
+                consumer.accept(entity);
+                kept++;
+                if (++count == maxResults) {
+                    break;
+                }
+            }
+            start = recorder.filtered(start, kept);
+            if (maxResults > 0 && count == maxResults) {
+                break;
             }
+        }
+        recorder.finish(count, 0);
+        return count;
+    }
 
-            if(cost <= minCost) {
-                minCost = cost;
-                minCostCellSet = cellSet;
-            } else {
-                if(minCostCellSet.size() == 0) {
-                    minCostCellSet = cellSet;
+    /**
+     * Returns the entities located inside a region, e.g. a {@link Polygon} or a {@link Polyline} corridor.
+     *
+     * The cells of the {@link RegionCoverer} covering are fetched by queries of at most
+     * {@link ChunkingGeocellQueryEngine#DEFAULT_CHUNK_SIZE} cells, as in
+     * {@link #boundingBoxSearch(BoundingBox, int, Class, GeocellQuery, String, GeocellQueryEngine, CostFunction)}.
+     * Only the entities of the cells crossing the region boundary are tested with {@link Region#contains(double, double)}.
+     *
+     * @param region The region
+     * @param maxResults The maximum number of results, 0 for no limit
+     * @param entityClass The entity class
+     * @param baseQuery The base query
+     * @param orderBy The order by clause, may be null
+     * @param queryEngine The query engine to use
+     * @param costFunction The cost function used to choose the covering cells, null for the default one
+     * @return the entities inside the region
+     */
+    public static <T> List<T> regionSearch(Region region, int maxResults, Class<T> entityClass, GeocellQuery baseQuery, String orderBy, GeocellQueryEngine queryEngine, CostFunction costFunction) {
+        final List<T> results = new ArrayList<T>();
+        regionSearch(region, maxResults, entityClass, baseQuery, orderBy, queryEngine, costFunction, results::add);
+        return results;
+    }
+
+    /**
+     * Streams the entities located inside a region to the given consumer, as they are filtered.
+     *
+     * @see #regionSearch(Region, int, Class, GeocellQuery, String, GeocellQueryEngine, CostFunction)
+     * @return the number of entities passed to the consumer
+     */
+    public static <T> int regionSearch(Region region, int maxResults, Class<T> entityClass, GeocellQuery baseQuery, String orderBy, GeocellQueryEngine queryEngine, CostFunction costFunction, Consumer<? super T> consumer) {
+        SearchRecorder recorder = new SearchRecorder(SearchStats.Type.REGION);
+        long start = recorder.now();
+        GeocellCovering covering = RegionCoverer.cover(region, costFunction);
+        return regionSearch(region, covering, maxResults, entityClass, baseQuery, orderBy, queryEngine, consumer,
+                recorder, recorder.covered(start));
+    }
+
+    /**
+     * Returns the entities located inside a region, searching a covering of mixed resolutions: coarse cells
+     * inside the region and fine cells along its edges, within {@link RegionCoverer#DEFAULT_MIXED_MAX_CELLS}
+     * cells, i.e. a single datastore query (see {@link RegionCoverer#coverMixed(Region, int)}). For thin or
+     * diagonal regions, it usually fetches fewer entities outside of the region than
+     * {@link #regionSearch(Region, int, Class, GeocellQuery, String, GeocellQueryEngine, CostFunction)}.
+     *
+     * @param region The region
+     * @param maxResults The maximum number of results, 0 for no limit
+     * @param entityClass The entity class
+     * @param baseQuery The base query
+     * @param orderBy The order by clause, may be null
+     * @param queryEngine The query engine to use
+     * @return the entities inside the region
+     */
+    public static <T> List<T> regionSearchMixed(Region region, int maxResults, Class<T> entityClass, GeocellQuery baseQuery, String orderBy, GeocellQueryEngine queryEngine) {
+        final List<T> results = new ArrayList<T>();
+        regionSearchMixed(region, maxResults, entityClass, baseQuery, orderBy, queryEngine, results::add);
+        return results;
+    }
+
+    /**
+     * Streams the entities located inside a region to the given consumer, as they are filtered.
+     *
+     * @see #regionSearchMixed(Region, int, Class, GeocellQuery, String, GeocellQueryEngine)
+     * @return the number of entities passed to the consumer
+     */
+    public static <T> int regionSearchMixed(Region region, int maxResults, Class<T> entityClass, GeocellQuery baseQuery, String orderBy, GeocellQueryEngine queryEngine, Consumer<? super T> consumer) {
+        SearchRecorder recorder = new SearchRecorder(SearchStats.Type.REGION);
+        long start = recorder.now();
+        GeocellCovering covering = RegionCoverer.coverMixed(region, RegionCoverer.DEFAULT_MIXED_MAX_CELLS);
+        return regionSearch(region, covering, maxResults, entityClass, baseQuery, orderBy, queryEngine, consumer,
+                recorder, recorder.covered(start));
+    }
+
+    /**
+     * Returns the entities located inside a region, searching the cells of the given covering, e.g. a covering
+     * of mixed resolutions computed by {@link RegionCoverer#coverMixed(Region, int)}.
+     * Bounding boxes and {@link Circle}s are regions too.
+     *
+     * @param region The region
+     * @param covering The cells covering the region
+     * @param maxResults The maximum number of results, 0 for no limit
+     * @param entityClass The entity class
+     * @param baseQuery The base query
+     * @param orderBy The order by clause, may be null
+     * @param queryEngine The query engine to use
+     * @return the entities inside the region
+     */
+    public static <T> List<T> regionSearch(Region region, GeocellCovering covering, int maxResults, Class<T> entityClass, GeocellQuery baseQuery, String orderBy, GeocellQueryEngine queryEngine) {
+        final List<T> results = new ArrayList<T>();
+        regionSearch(region, covering, maxResults, entityClass, baseQuery, orderBy, queryEngine, results::add);
+        return results;
+    }
+
+    /**
+     * Streams the entities located inside a region to the given consumer, as they are filtered.
+     *
+     * @see #regionSearch(Region, GeocellCovering, int, Class, GeocellQuery, String, GeocellQueryEngine)
+     * @return the number of entities passed to the consumer
+     */
+    public static <T> int regionSearch(Region region, GeocellCovering covering, int maxResults, Class<T> entityClass, GeocellQuery baseQuery, String orderBy, GeocellQueryEngine queryEngine, Consumer<? super T> consumer) {
+        SearchRecorder recorder = new SearchRecorder(SearchStats.Type.REGION);
+        return regionSearch(region, covering, maxResults, entityClass, baseQuery, orderBy, queryEngine, consumer,
+                recorder, recorder.now());
+    }
+
+    private static <T> int regionSearch(Region region, GeocellCovering covering, int maxResults, Class<T> entityClass, GeocellQuery baseQuery, String orderBy, GeocellQueryEngine queryEngine, Consumer<? super T> consumer,
+                                        SearchRecorder recorder, long start) {
+        if (covering.isEmpty()) {
+            recorder.finish(0, 0);
+            return 0;
+        }
+
+        int count = 0;
+        for (List<String> chunk : chunks(covering.getCells(), queryEngine)) {
+            recorder.stepped();
+            List<T> queryResults = queryEngine.query(baseQuery, orderBy, chunk, entityClass);
+            start = recorder.fetched(start, chunk, queryResults.size());
+
+            int kept = 0;
+            for (T entity : queryResults) {
+                Point location = GeocellUtils.getLocation(entity);
+                double latitude = location.getLatitude();
+                double longitude = location.getLongitude();
+                if (!covering.isInterior(latitude, longitude) && !region.contains(latitude, longitude)) {
+                    continue;
+                }
+                consumer.accept(entity);
+                kept++;
+                if (++count == maxResults) {
+                    break;
                 }
-                // Once the cost starts rising, we won't be able to do better, so abort.
+            }
+            start = recorder.filtered(start, kept);
+            if (maxResults > 0 && count == maxResults) {
                 break;
             }
         }
-        logger.log(Level.INFO, "Calculate cells "+StringUtils.join(minCostCellSet, ", ")+" in box ("+bbox.getSouth()+","+bbox.getWest()+") ("+bbox.getNorth()+","+bbox.getEast()+")");
-        return minCostCellSet;
+        recorder.finish(count, 0);
+        return count;
     }
-   
+
+    // The queries of a covering: at most DEFAULT_CHUNK_SIZE cells each, unless the engine already splits them.
+    static List<List<String>> chunks(List<String> cells, GeocellQueryEngine queryEngine) {
+        int chunkSize = ChunkingGeocellQueryEngine.DEFAULT_CHUNK_SIZE;
+        if (cells.size() <= chunkSize || queryEngine instanceof ChunkingGeocellQueryEngine) {
+            return Collections.singletonList(cells);
+        }
+        List<List<String>> chunks = new ArrayList<List<String>>();
+        for (int from = 0; from < cells.size(); from += chunkSize) {
+            chunks.add(new ArrayList<String>(cells.subList(from, Math.min(from + chunkSize, cells.size()))));
+        }
+        return chunks;
+    }
+
+    private static boolean hasSingleResolution(List<String> cells) {
+        int resolution = cells.get(0).length();
+        for (String cell : cells) {
+            if (cell.length() != resolution) {
+                return false;
+            }
+        }
+        return true;
+    }
+
    public static <T> List<T> proximitySearch(Point center, int maxResults, double maxDistance, Class<T> entityClass, GeocellQuery baseQuery, String orderBy, int maxGeocellResolution) {
        ObjectifyGeocellQueryEngine ofySearch = new ObjectifyGeocellQueryEngine();
        return proximitySearch(center, maxResults, 0,  maxDistance, entityClass, baseQuery, orderBy, ofySearch, maxGeocellResolution).getResults();
@@ -209,6 +486,28 @@ public class GeocellManager {
     * @return
     */
    public static <T> SearchResults<T> proximitySearch(Point center, int maxResults, double minDistance, double maxDistance, Class<T> entityClass, GeocellQuery baseQuery, String orderBy, GeocellQueryEngine queryEngine, int maxGeocellResolution) {
+       return proximitySearch(center, maxResults, minDistance, maxDistance, entityClass, baseQuery, orderBy, queryEngine, maxGeocellResolution, null);
+   }
+
+   /**
+    * Perform a search from the center, using a count pyramid of the entities: the search starts at the
+    * resolution whose cell around the center is expected to hold maxResults entities, and, if the pyramid
+    * skips empty cells, the cells it counts as empty are not queried. In sparse areas, this saves most of
+    * the round trips spent backing off from the max resolution.
+    *
+    * @param center The point of origin
+    * @param maxResults The maximum number of results to include
+    * @param minDistance The minimum distance (inclusive)
+    * @param maxDistance The maximum distance (exclusive)
+    * @param entityClass The entity class
+    * @param baseQuery The base query
+    * @param orderBy The order by clause, may be null
+    * @param queryEngine The query engine to use
+    * @param maxGeocellResolution The max resolution to use when searching
+    * @param density The count pyramid of the entities, null to search from the max resolution
+    * @return the results
+    */
+   public static <T> SearchResults<T> proximitySearch(Point center, int maxResults, double minDistance, double maxDistance, Class<T> entityClass, GeocellQuery baseQuery, String orderBy, GeocellQueryEngine queryEngine, int maxGeocellResolution, GeocellDensity density) {
      
        Set<T> results = new HashSet<>(maxResults);
        List<Double> distances = new ArrayList<>(maxResults);
@@ -216,154 +515,400 @@ public class GeocellManager {
        Validate.isTrue(maxGeocellResolution < MAX_GEOCELL_RESOLUTION + 1,
                "Invalid max resolution parameter. Must be inferior to ", MAX_GEOCELL_RESOLUTION);
 
-       String curContainingGeocell = GeocellUtils.compute(center, maxGeocellResolution);
-       
-       // Set of already searched cells
-       Set<String> searchedCells = new HashSet<String>();
-
-       /*
-        * The currently-being-searched geocells.
-        * NOTES:
-        * Start with max possible.
-        * Must always be of the same resolution.
-        * Must always form a rectangular region.
-        * One of these must be equal to the cur_containing_geocell.
-        */
-       List<String> curGeocells = new ArrayList<String>();
-       
-       List<String> curGeocellsUnique = null;
-       curGeocells.add(curContainingGeocell);
-       double closestPossibleNextResultDist = 0;
-
-       /*
-        * Assumes both a and b are lists of (entity, dist) tuples, *sorted by dist*.
-        * NOTE: This is an in-place merge, and there are guaranteed no duplicates in the resulting list.
-        */
-
-       int noDirection [] = {0,0};
-       List<Tuple<int[], Double>> sortedEdgesDistances = Arrays.asList(new Tuple<int[], Double>(noDirection, 0d));
-       boolean done = false;
-
-       while (!curGeocells.isEmpty() && results.size() < maxResults) {
-           closestPossibleNextResultDist = sortedEdgesDistances.get(0).getSecond();
-           if (maxDistance > 0 && closestPossibleNextResultDist > maxDistance) {
+       SearchRecorder recorder = new SearchRecorder(SearchStats.Type.PROXIMITY);
+       long start = recorder.now();
+       ProximityExpansion expansion = new ProximityExpansion(center, startingResolution(center, maxResults, maxGeocellResolution, density));
+       DistanceCalculator calculator = new DistanceCalculator(center);
+
+       while (expansion.hasNext() && results.size() < maxResults) {
+           if (maxDistance > 0 && expansion.getClosestPossibleNextResultDistance() > maxDistance) {
                break;
            }
 
-           Set<String> curTempUnique = new HashSet<String>(curGeocells);
-           curTempUnique.removeAll(searchedCells);
-           curGeocellsUnique = new ArrayList<String>(curTempUnique);
+           List<String> curGeocellsUnique = uniqueCells(expansion, density);
+           start = recorder.covered(start);
 
-           List<T> queryResults = queryEngine.query(baseQuery, orderBy, curGeocellsUnique, entityClass);
+           recorder.stepped();
+           List<T> queryResults = fetch(curGeocellsUnique, entityClass, baseQuery, orderBy, queryEngine);
+           start = recorder.fetched(start, curGeocellsUnique, queryResults.size());
 
-           logger.log(Level.FINE, "fetch complete for: " + StringUtils.join(curGeocellsUnique, ", "));
+           if (logger.isLoggable(Level.FINE)) {
+               logger.log(Level.FINE, "fetch complete for: " + StringUtils.join(curGeocellsUnique, ", "));
+           }
+
+           boolean more = mergeStep(expansion, queryResults, calculator, maxResults, minDistance, maxDistance, results, distances, recorder);
+           start = recorder.now();
+           if (!more) {
+               break;
+           }
+       }
 
-           searchedCells.addAll(curGeocells);
+       SearchStats stats = recorder.finish(results.size(), calculator.getEvaluationCount());
+       return new SearchResults<T>(new ArrayList<>(results), distances, expansion.getResolution(), null, stats);
+   }
 
-           // Begin storing distance from the search result entity to the
-           // search center along with the search result itself, in a tuple.
-        
-          
-           // Merge new_results into results
+   /**
+    * Perform a k-nearest search from the center: returns the maxResults entities nearest to the center,
+    * with minDistance &lt;= distance &lt;= maxDistance, sorted by increasing distance (ties are broken by key).
+    *
+    * Unlike {@link #proximitySearch(Point, int, double, double, Class, GeocellQuery, String, GeocellQueryEngine, int)},
+    * which keeps the first maxResults entities found, the candidates are kept in a bounded max-heap, and the
+    * search only stops once maxResults entities were found and none of the cells not searched yet can contain
+    * a nearer one. The distances of the results are aligned with the results.
+    *
+    * @param center The point of origin
+    * @param maxResults The number of nearest entities to return (k)
+    * @param minDistance The minimum distance (inclusive)
+    * @param maxDistance The maximum distance (inclusive), 0 for no maximum
+    * @param entityClass The entity class
+    * @param baseQuery The base query
+    * @param orderBy The order by clause used by the query engine, may be null
+    * @param queryEngine The query engine to use
+    * @param maxGeocellResolution The max resolution to use when searching
+    * @return the nearest entities, sorted by distance
+    */
+   public static <T> SearchResults<T> nearestSearch(Point center, int maxResults, double minDistance, double maxDistance, Class<T> entityClass, GeocellQuery baseQuery, String orderBy, GeocellQueryEngine queryEngine, int maxGeocellResolution) {
+       return nearestSearch(center, maxResults, minDistance, maxDistance, entityClass, baseQuery, orderBy, queryEngine, maxGeocellResolution, null);
+   }
+
+   /**
+    * Perform a k-nearest search from the center, using a count pyramid of the entities to choose the starting
+    * resolution and, if the pyramid skips empty cells, to skip the cells it counts as empty.
+    *
+    * @see #nearestSearch(Point, int, double, double, Class, GeocellQuery, String, GeocellQueryEngine, int)
+    * @see #proximitySearch(Point, int, double, double, Class, GeocellQuery, String, GeocellQueryEngine, int, GeocellDensity)
+    * @param density The count pyramid of the entities, null to search from the max resolution
+    */
+   public static <T> SearchResults<T> nearestSearch(Point center, int maxResults, double minDistance, double maxDistance, Class<T> entityClass, GeocellQuery baseQuery, String orderBy, GeocellQueryEngine queryEngine, int maxGeocellResolution, GeocellDensity density) {
+       Validate.isTrue(maxGeocellResolution < MAX_GEOCELL_RESOLUTION + 1,
+               "Invalid max resolution parameter. Must be inferior to ", MAX_GEOCELL_RESOLUTION);
+
+       SearchRecorder recorder = new SearchRecorder(SearchStats.Type.NEAREST);
+       long start = recorder.now();
+       NearestCollector<T> nearest = new NearestCollector<T>(maxResults);
+       ProximityExpansion expansion = new ProximityExpansion(center, startingResolution(center, maxResults, maxGeocellResolution, density));
+       DistanceCalculator calculator = new DistanceCalculator(center);
+
+       while (expansion.hasNext()) {
+           double closestPossibleNextResultDist = expansion.getClosestPossibleNextResultDistance();
+           if (maxDistance > 0 && closestPossibleNextResultDist > maxDistance) {
+               break;
+           }
+           // None of the next cells can hold an entity nearer than the k-th one.
+           if (nearest.isFull() && nearest.getKthDistance() <= closestPossibleNextResultDist) {
+               break;
+           }
+
+           List<String> curGeocellsUnique = uniqueCells(expansion, density);
+           start = recorder.covered(start);
+           recorder.stepped();
+           List<T> queryResults = fetch(curGeocellsUnique, entityClass, baseQuery, orderBy, queryEngine);
+           start = recorder.fetched(start, curGeocellsUnique, queryResults.size());
+           expansion.markSearched();
+
+           int kept = 0;
            for (T entity : queryResults) {
-             double distance = GeocellUtils.distance(center, GeocellUtils.getLocation(entity));
-             
-             
-             //discard, it's too close or too far
-             if (distance < minDistance || (maxDistance != 0 && distance > maxDistance)) {
-               continue;
-             }
+               // entities farther than the k-th one can't be kept
+               double bound = Math.min(maxDistance > 0 ? maxDistance : Double.MAX_VALUE, nearest.getKthDistance());
+               Point location = GeocellUtils.getLocation(entity);
+               double distance = calculator.distanceWithin(location.getLatitude(), location.getLongitude(), bound);
+               if (distance < minDistance || distance == Double.POSITIVE_INFINITY) {
+                   continue;
+               }
+               if (nearest.offer(entity, GeocellUtils.getKeyString(entity), distance)) {
+                   kept++;
+               }
+           }
+           start = recorder.filtered(start, kept);
+
+           if (expansion.isDone()) {
+               break;
+           }
+           expansion.expand(!queryResults.isEmpty());
+       }
+
+       List<T> results = new ArrayList<T>(nearest.size());
+       List<Double> distances = new ArrayList<Double>(nearest.size());
+       nearest.drainSorted(results, distances);
+       SearchStats stats = recorder.finish(results.size(), calculator.getEvaluationCount());
+       return new SearchResults<T>(results, distances, expansion.getResolution(), null, stats);
+   }
 
-             if (results.size() < maxResults) {
-                 results.add(entity);
-                 distances.add(distance);
-             }
+   /**
+    * Perform k-nearest searches from many centers at once, sharing the cell fetches between them.
+    *
+    * Each center is searched as by {@link #nearestSearch(Point, int, double, double, Class, GeocellQuery, String, GeocellQueryEngine, int)},
+    * with its own number of results and maximum distance, but the searches advance in rounds: at each round,
+    * the cells needed by all the centers still searching are fetched together, and a cell fetched in
+    * a previous round, or whose ancestor was, is not fetched again. The backend load then grows with
+    * the area covered by the centers rather than with their number, e.g. to match many orders to couriers.
+    *
+    * The cells of a round are fetched by queries of at most 30 cells, as bounding box searches, unless the
+    * query engine is a {@link ChunkingGeocellQueryEngine}. The entities fetched are held until the end of the batch.
+    *
+    * @param centers The points of origin
+    * @param maxResults The number of nearest entities to return for each center
+    * @param maxDistances The maximum distance (inclusive) for each center, 0 for no maximum; null for no maximum at all
+    * @param entityClass The entity class
+    * @param baseQuery The base query
+    * @param orderBy The order by clause used by the query engine, may be null
+    * @param queryEngine The query engine to use
+    * @param maxGeocellResolution The max resolution to use when searching
+    * @return the nearest entities of each center, sorted by distance, in the order of the centers; all of them
+    * hold the statistics of the whole batch
+    */
+   public static <T> List<SearchResults<T>> nearestSearchBatch(List<Point> centers, int[] maxResults, double[] maxDistances, Class<T> entityClass, GeocellQuery baseQuery, String orderBy, GeocellQueryEngine queryEngine, int maxGeocellResolution) {
+       Validate.isTrue(maxGeocellResolution < MAX_GEOCELL_RESOLUTION + 1,
+               "Invalid max resolution parameter. Must be inferior to ", MAX_GEOCELL_RESOLUTION);
+       Validate.isTrue(maxResults.length == centers.size(), "One number of results per center expected, got ", maxResults.length);
+       Validate.isTrue(maxDistances == null || maxDistances.length == centers.size(),
+               "One maximum distance per center expected, got ", maxDistances == null ? 0 : maxDistances.length);
+
+       double[] distances = maxDistances == null ? new double[centers.size()] : maxDistances;
+       return new BatchNearestSearch<T>(centers, maxResults, distances, entityClass, baseQuery, orderBy, queryEngine, maxGeocellResolution).run();
+   }
+
+   /**
+    * Returns one page of a k-nearest search: the pageSize entities nearest to the center that come after
+    * the cursor, sorted by increasing distance (ties are broken by key, so entities must have a key).
+    *
+    * The search continues from where the previous page stopped instead of starting again: only the cells
+    * holding candidates that were fetched but not returned are queried again, then the expansion goes on
+    * with the cells not searched yet. Each page costs about the same, however deep the pagination is.
+    *
+    * @param center The point of origin
+    * @param pageSize The number of entities per page
+    * @param maxDistance The maximum distance (inclusive), 0 for no maximum
+    * @param entityClass The entity class
+    * @param baseQuery The base query
+    * @param orderBy The order by clause used by the query engine, may be null
+    * @param queryEngine The query engine to use
+    * @param maxGeocellResolution The max resolution to use when searching
+    * @param cursor The cursor returned with the previous page, or null for the first page
+    * @return the entities of the page, sorted by distance, and the cursor of the next page (null if it is the last page)
+    */
+   public static <T> SearchResults<T> nearestSearchPage(Point center, int pageSize, double maxDistance, Class<T> entityClass, GeocellQuery baseQuery, String orderBy, GeocellQueryEngine queryEngine, int maxGeocellResolution, SearchCursor cursor) {
+       Validate.isTrue(maxGeocellResolution < MAX_GEOCELL_RESOLUTION + 1,
+               "Invalid max resolution parameter. Must be inferior to ", MAX_GEOCELL_RESOLUTION);
+
+       SearchRecorder recorder = new SearchRecorder(SearchStats.Type.NEAREST_PAGE);
+       long start = recorder.now();
+       ProximityExpansion expansion;
+       boolean expansionFinished = false;
+       Tuple<Double, String> after = new Tuple<Double, String>(Double.NEGATIVE_INFINITY, null);
+       if (cursor == null) {
+           expansion = new ProximityExpansion(center, maxGeocellResolution);
+       } else {
+           expansion = cursor.toExpansion(center, maxGeocellResolution);
+           expansionFinished = cursor.isExpansionFinished();
+           after = new Tuple<Double, String>(cursor.getLastDistance(), cursor.getLastKey());
+       }
+
+       NearestCollector<T> nearest = new NearestCollector<T>(pageSize);
+       DistanceCalculator calculator = new DistanceCalculator(center);
+       // The farthest candidate of each fetched cell, to know which cells hold candidates not returned in this page.
+       Map<String, Tuple<Double, String>> farthestByCell = new HashMap<String, Tuple<Double, String>>();
+
+       if (cursor != null && !cursor.getFrontierCells().isEmpty()) {
+           List<String> frontierCells = cursor.getFrontierCells();
+           start = recorder.covered(start);
+           recorder.stepped();
+           List<T> queryResults = queryEngine.query(baseQuery, orderBy, frontierCells, entityClass);
+           start = recorder.fetched(start, frontierCells, queryResults.size());
+           int kept = collectPage(queryResults, frontierCells, calculator, maxDistance, after, nearest, farthestByCell);
+           start = recorder.filtered(start, kept);
+       }
+
+       while (!expansionFinished && expansion.hasNext()) {
+           double closestPossibleNextResultDist = expansion.getClosestPossibleNextResultDistance();
+           if (maxDistance > 0 && closestPossibleNextResultDist > maxDistance) {
+               expansionFinished = true;
+               break;
+           }
+           if (nearest.isFull() && nearest.getKthDistance() <= closestPossibleNextResultDist) {
+               break;
            }
-           
-           if (done) {
-             break;
+
+           List<String> curGeocellsUnique = expansion.getUniqueCells();
+           start = recorder.covered(start);
+           recorder.stepped();
+           List<T> queryResults = queryEngine.query(baseQuery, orderBy, curGeocellsUnique, entityClass);
+           start = recorder.fetched(start, curGeocellsUnique, queryResults.size());
+           expansion.markSearched();
+           int kept = collectPage(queryResults, curGeocellsUnique, calculator, maxDistance, after, nearest, farthestByCell);
+           start = recorder.filtered(start, kept);
+
+           if (expansion.isDone()) {
+               expansionFinished = true;
+               break;
            }
-         
-           sortedEdgesDistances = GeocellUtils.distanceSortedEdges(curGeocells, center);
-
-           if (queryResults.size() == 0 || curGeocells.size() == 4) {
-               /* Either no results (in which case we optimize by not looking at
-                       adjacents, go straight to the parent) or we've searched 4 adjacent
-                       geocells, in which case we should now search the parents of those
-                       geocells.*/
-               curContainingGeocell = curContainingGeocell.substring(0, Math.max(curContainingGeocell.length() - 1,0));
-               if (curContainingGeocell.length() == 0) {
-                 // final check - top level tiles
-                 curGeocells.clear();
-                 String[] items = "0123456789abcdef".split("(?!^)");
-                 for (String item : items) curGeocells.add(item);
-                 done = true;
-               } else {
-                   List<String> oldCurGeocells = new ArrayList<String>(curGeocells);
-                   curGeocells.clear();
-                   for (String cell : oldCurGeocells) {
-                       if (cell.length() > 0) {
-                           String newCell = cell.substring(0, cell.length() - 1);
-                           if (!curGeocells.contains(newCell)) {
-                               curGeocells.add(newCell);
-                           }
-                       }
-                   }
+           expansion.expand(!queryResults.isEmpty());
+       }
+
+       List<T> results = new ArrayList<T>(nearest.size());
+       List<Double> distances = new ArrayList<Double>(nearest.size());
+       nearest.drainSorted(results, distances);
+
+       SearchCursor nextCursor = null;
+       if (results.size() == pageSize) {
+           double lastDistance = distances.get(pageSize - 1);
+           String lastKey = GeocellUtils.getKeyString(results.get(pageSize - 1));
+           List<String> frontierCells = new ArrayList<String>();
+           for (Map.Entry<String, Tuple<Double, String>> farthest : farthestByCell.entrySet()) {
+               if (NearestCollector.compare(farthest.getValue().getFirst(), farthest.getValue().getSecond(), lastDistance, lastKey) > 0) {
+                   frontierCells.add(farthest.getKey());
                }
-           } else if(curGeocells.size() == 1) {
-               // Get adjacent in one direction.
-               // TODO(romannurik): Watch for +/- 90 degree latitude edge case geocells.
-               for (int i = 0; i < sortedEdgesDistances.size(); i ++){
-                 
-                 int nearestEdge[] = sortedEdgesDistances.get(i).getFirst();
-                 String edge = GeocellUtils.adjacent(curGeocells.get(0), nearestEdge);
-                 
-                 //we're at the edge of the world, search in a different direction
-                 if (edge == null) {
+           }
+           frontierCells = removeDescendants(frontierCells);
+           if (!frontierCells.isEmpty() || !expansionFinished) {
+               nextCursor = new SearchCursor(expansion, expansionFinished, lastDistance, lastKey, frontierCells);
+           }
+       }
+       SearchStats stats = recorder.finish(results.size(), calculator.getEvaluationCount());
+       return new SearchResults<T>(results, distances, expansion.getResolution(), nextCursor, stats);
+   }
+
+   private static int startingResolution(Point center, int maxResults, int maxGeocellResolution, GeocellDensity density) {
+       return density == null ? maxGeocellResolution : density.startingResolution(center, maxResults, maxGeocellResolution);
+   }
+
+   // The cells of the current step to query: not searched yet, and not counted as empty if the pyramid skips them.
+   private static List<String> uniqueCells(ProximityExpansion expansion, GeocellDensity density) {
+       List<String> cells = expansion.getUniqueCells();
+       return density == null ? cells : density.removeEmpty(cells);
+   }
+
+   // Cells known to be empty are not queried: the step goes on as if the query returned nothing.
+   private static <T> List<T> fetch(List<String> cells, Class<T> entityClass, GeocellQuery baseQuery, String orderBy, GeocellQueryEngine queryEngine) {
+       if (cells.isEmpty()) {
+           return new ArrayList<T>();
+       }
+       return queryEngine.query(baseQuery, orderBy, cells, entityClass);
+   }
+
+   // Offers the entities after the given (distance, key) to the page, and records the farthest one of each cell.
+   // Returns the number of entities kept in the page so far.
+   private static <T> int collectPage(List<T> queryResults, List<String> cells, DistanceCalculator calculator, double maxDistance,
+                                      Tuple<Double, String> after, NearestCollector<T> nearest,
+                                      Map<String, Tuple<Double, String>> farthestByCell) {
+       Set<String> queriedCells = new HashSet<String>(cells);
+       int kept = 0;
+       for (T entity : queryResults) {
+           Point location = GeocellUtils.getLocation(entity);
+           double distance = calculator.distanceWithin(location.getLatitude(), location.getLongitude(),
+                   maxDistance > 0 ? maxDistance : Double.MAX_VALUE);
+           if (distance == Double.POSITIVE_INFINITY) {
+               continue;
+           }
+           String key = GeocellUtils.getKeyString(entity);
+           if (NearestCollector.compare(distance, key, after.getFirst(), after.getSecond()) <= 0) {
+               // already returned in a previous page
+               continue;
+           }
+           if (nearest.offer(entity, key, distance)) {
+               kept++;
+           }
+
+           for (String cell : GeocellUtils.getIndexedGeocells(entity)) {
+               if (!queriedCells.contains(cell)) {
                    continue;
-                 }
-                 
-                 curGeocells.add(edge);
-                 break;
-               }
-               
-           } else if (curGeocells.size() == 2) {
-               // Get adjacents in perpendicular direction.
-               int nearestEdge[] = GeocellUtils.distanceSortedEdges(Arrays.asList(curContainingGeocell), center).get(0).getFirst();
-               int[] perpendicularNearestEdge = {0,0};
-               if (nearestEdge[0] == 0) {
-                   // Was vertical, perpendicular is horizontal.
-                   for (Tuple<int[], Double> edgeDistance : sortedEdgesDistances) {
-                       if (edgeDistance.getFirst()[0] != 0) {
-                           perpendicularNearestEdge = edgeDistance.getFirst();
-                           break;
-                       }
-                   }
-               } else {
-                   // Was horizontal, perpendicular is vertical.
-                   for (Tuple<int[], Double> edgeDistance : sortedEdgesDistances) {
-                       if (edgeDistance.getFirst()[0] == 0) {
-                           perpendicularNearestEdge = edgeDistance.getFirst();
-                           break;
-                       }
-                   }
                }
-               List<String> tempCells = new ArrayList<String>();
-               for (String cell : curGeocells) {
-                   tempCells.add(GeocellUtils.adjacent(cell, perpendicularNearestEdge));
+               Tuple<Double, String> farthest = farthestByCell.get(cell);
+               if (farthest == null || NearestCollector.compare(distance, key, farthest.getFirst(), farthest.getSecond()) > 0) {
+                   farthestByCell.put(cell, new Tuple<Double, String>(distance, key));
                }
-               curGeocells.addAll(tempCells);
            }
+       }
+       return kept;
+   }
 
-           // We don't have enough items yet, keep searching.
-           if (results.size() < maxResults) {
-               logger.log(Level.FINE,  results.size()+" results found but want "+maxResults+" results, continuing search.");
+   // Removes the cells having an ancestor in the list.
+   private static List<String> removeDescendants(List<String> cells) {
+       Collections.sort(cells);
+       List<String> result = new ArrayList<String>();
+       for (String cell : cells) {
+           // sorted: an ancestor comes right before its descendants
+           if (result.isEmpty() || !cell.startsWith(result.get(result.size() - 1))) {
+               result.add(cell);
+           }
+       }
+       return result;
+   }
+
+   /**
+    * Asynchronous version of {@link #proximitySearch(Point, int, double, double, Class, GeocellQuery, String, GeocellQueryEngine, int)}.
+    *
+    * While the cells of one expansion step are being fetched, the cells of the possible next steps
+    * (the adjacent cells if the current step has results, the parent cells otherwise) are speculatively
+    * fetched too, so the latency of a search no longer grows with each expansion step.
+    * This costs at most two extra backend queries per step, whose results are discarded when not used.
+    *
+    * @param center The point of origin
+    * @param maxResults The maximum number of results to include
+    * @param minDistance The minimum distance (inclusive)
+    * @param maxDistance The maximum distance (exclusive)
+    * @param entityClass The entity class
+    * @param baseQuery The base query
+    * @param orderBy The order by clause, may be null
+    * @param queryEngine The asynchronous query engine to use
+    * @param maxGeocellResolution The max resolution to use when searching
+    * @return a future of the same results as the synchronous search
+    */
+   public static <T> CompletableFuture<SearchResults<T>> proximitySearchAsync(Point center, int maxResults, double minDistance, double maxDistance, Class<T> entityClass, GeocellQuery baseQuery, String orderBy, AsyncGeocellQueryEngine queryEngine, int maxGeocellResolution) {
+       Validate.isTrue(maxGeocellResolution < MAX_GEOCELL_RESOLUTION + 1,
+               "Invalid max resolution parameter. Must be inferior to ", MAX_GEOCELL_RESOLUTION);
+
+       AsyncProximitySearch<T> search = new AsyncProximitySearch<T>(center, maxResults, minDistance, maxDistance,
+               entityClass, baseQuery, orderBy, queryEngine, maxGeocellResolution);
+       return search.run();
+   }
+
+   /**
+    * Merges the results of the current expansion step and moves the expansion to the next cells.
+    *
+    * @return false if the search is over
+    */
+   static <T> boolean mergeStep(ProximityExpansion expansion, List<T> queryResults, DistanceCalculator calculator, int maxResults,
+                                double minDistance, double maxDistance, Set<T> results, List<Double> distances,
+                                SearchRecorder recorder) {
+       long start = recorder.now();
+       expansion.markSearched();
+
+       // Merge new_results into results
+       int kept = 0;
+       for (T entity : queryResults) {
+           Point location = GeocellUtils.getLocation(entity);
+           double distance = calculator.distanceWithin(location.getLatitude(), location.getLongitude(),
+                   maxDistance != 0 ? maxDistance : Double.MAX_VALUE);
+
+           //discard, it's too close or too far
+           if (distance < minDistance || distance == Double.POSITIVE_INFINITY) {
                continue;
            }
 
-           logger.log(Level.FINE, results.size()+" results found.");
+           if (results.size() < maxResults) {
+               results.add(entity);
+               distances.add(distance);
+               kept++;
+           }
+       }
+       start = recorder.filtered(start, kept);
+
+       if (expansion.isDone()) {
+           return false;
        }
 
-       return new SearchResults<T>(new ArrayList<>(results), distances, curGeocells.get(0).length());
+       expansion.expand(!queryResults.isEmpty());
+       recorder.covered(start);
+
+       // We don't have enough items yet, keep searching.
+       if (logger.isLoggable(Level.FINE)) {
+           if (results.size() < maxResults) {
+               logger.log(Level.FINE, results.size()+" results found but want "+maxResults+" results, continuing search.");
+           } else {
+               logger.log(Level.FINE, results.size()+" results found.");
+           }
+       }
+       return true;
    }
 }
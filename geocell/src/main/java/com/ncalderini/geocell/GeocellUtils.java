@@ -12,17 +12,12 @@ and limitations under the License.
  */
 package com.ncalderini.geocell;
 
-import com.ncalderini.geocell.annotations.Geocells;
-import com.ncalderini.geocell.annotations.Location;
 import com.ncalderini.geocell.comparator.DoubleTupleComparator;
 import com.ncalderini.geocell.model.BoundingBox;
 import com.ncalderini.geocell.model.LocationCapable;
 import com.ncalderini.geocell.model.Point;
 import com.ncalderini.geocell.model.Tuple;
-import com.googlecode.objectify.annotation.Id;
 
-import java.lang.annotation.Annotation;
-import java.lang.reflect.Field;
 import java.util.*;
 
 /**
@@ -60,6 +55,26 @@ public final class GeocellUtils {
     public static final int GEOCELL_GRID_SIZE = 4;
     private static final String GEOCELL_ALPHABET = "0123456789abcdef";
 
+    // Lookup tables for the 4x4 alphabet grid.
+    // NOTE: This only works for grid size 4.
+    private static final int[] SUBDIV_X = new int[16];
+    private static final int[] SUBDIV_Y = new int[16];
+    private static final char[] GEOCELL_CHARS = new char[16];
+    private static final byte[] ALPHABET_INDEX = new byte[128];
+
+    static {
+        Arrays.fill(ALPHABET_INDEX, (byte) -1);
+        for(int charI = 0; charI < GEOCELL_ALPHABET.length(); charI++) {
+            char c = GEOCELL_ALPHABET.charAt(charI);
+            int x = (charI & 4) >> 1 | (charI & 1);
+            int y = (charI & 8) >> 2 | (charI & 2) >> 1;
+            SUBDIV_X[charI] = x;
+            SUBDIV_Y[charI] = y;
+            GEOCELL_CHARS[y << 2 | x] = c;
+            ALPHABET_INDEX[c] = (byte) charI;
+        }
+    }
+
     // Direction enumerations.
     private static final int[] NORTHWEST = new int[] {-1,1};
     private static final int[] NORTH = new int[] {0,1};
@@ -71,7 +86,8 @@ public final class GeocellUtils {
     private static final int[] WEST = new int[] {-1,0};
 
 
-    private static final int RADIUS = 6378135;
+    // Earth radius, in meters, used by every distance computation.
+    public static final int RADIUS = 6378135;
 
     private GeocellUtils() {
         // no instantiation allowed
@@ -93,12 +109,10 @@ public final class GeocellUtils {
     public static boolean collinear(String cell1, String cell2, boolean columnTest) {
 
         for(int i = 0; i < Math.min(cell1.length(), cell2.length()); i++) {
-            int l1[] = subdivXY(cell1.charAt(i));
-            int x1 = l1[0];
-            int y1 = l1[1];
-            int l2[] = subdivXY(cell2.charAt(i));
-            int x2 = l2[0];
-            int y2 = l2[1];
+            int x1 = subdivX(cell1.charAt(i));
+            int y1 = subdivY(cell1.charAt(i));
+            int x2 = subdivX(cell2.charAt(i));
+            int y2 = subdivY(cell2.charAt(i));
 
             // Check row collinearity (assure y's are always the same).
             if (!columnTest && y1 != y2) {
@@ -128,41 +142,10 @@ public final class GeocellUtils {
      * @return A list of geocell strings in the interpolation.
      */
     public static List<String> interpolate(String cellNE, String cellSW) {
-        // 2D array, will later be flattened.
-        LinkedList<LinkedList<String>> cellSet = new LinkedList<LinkedList<String>>();
-        LinkedList<String> cellFirst = new LinkedList<String>();
-        cellFirst.add(cellSW);
-        cellSet.add(cellFirst);
-
-
-
-        // First get adjacent geocells across until Southeast--collinearity with
-        // Northeast in vertical direction (0) means we're at Southeast.
-        while(!collinear(cellFirst.getLast(), cellNE, true)) {
-            String cellTmp = adjacent(cellFirst.getLast(), EAST);
-            if(cellTmp == null) {
-                break;
-            }
-            cellFirst.add(cellTmp);
-        }
-
-        // Then get adjacent geocells upwards.
-        while(!cellSet.getLast().getLast().equalsIgnoreCase(cellNE)) {
-
-            LinkedList<String> cellTmpRow = new LinkedList<String>();
-            for(String g : cellSet.getLast()) {
-                cellTmpRow.add(adjacent(g, NORTH));
-            }
-            if(cellTmpRow.getFirst() == null) {
-                break;
-            }
-            cellSet.add(cellTmpRow);
-        }
-
-        // Flatten cellSet, since it's currently a 2D array.
-        List<String> result = new ArrayList<String>();
-        for(LinkedList<String> list : cellSet) {
-            result.addAll(list);
+        long[] cells = PackedGeocellUtils.interpolate(PackedGeocellUtils.fromString(cellNE), PackedGeocellUtils.fromString(cellSW));
+        List<String> result = new ArrayList<String>(cells.length);
+        for (long cell : cells) {
+            result.add(PackedGeocellUtils.toString(cell));
         }
         return result;
     }
@@ -177,25 +160,12 @@ public final class GeocellUtils {
 
      * @param cellNE: The Northeast geocell string.
      * @param cellSW: The Southwest geocell string.
-     * @return An int, indicating the number of geocells in the interpolation.
+     * @return An int, indicating the number of geocells in the interpolation,
+     * capped to Integer.MAX_VALUE.
      */
     public static int interpolationCount(String cellNE, String cellSW) {
-
-
-        BoundingBox bboxNE = computeBox(cellNE);
-        BoundingBox bboxSW = computeBox(cellSW);
-
-        double cellLatSpan = bboxSW.getNorth() - bboxSW.getSouth();
-        double cellLonSpan = bboxSW.getEast() - bboxSW.getWest();
-
-        double numCols = ((bboxNE.getEast() - bboxSW.getWest()) / cellLonSpan);
-        double numRows = ((bboxNE.getNorth() - bboxSW.getSouth()) / cellLatSpan);
-
-        double totalCols = numCols * numRows * 1.0;
-        if(totalCols > Integer.MAX_VALUE) {
-        	return Integer.MAX_VALUE;
-        }
-        return (int)totalCols;
+        long count = PackedGeocellUtils.interpolationCount(PackedGeocellUtils.fromString(cellNE), PackedGeocellUtils.fromString(cellSW));
+        return (int) Math.min(count, Integer.MAX_VALUE);
     }
 
     /**
@@ -237,9 +207,8 @@ public final class GeocellUtils {
         int i = cellAdjArr.length - 1;
 
         while(i >= 0 && (dx != 0 || dy != 0)) {
-            int l[]= subdivXY(cellAdjArr[i]);
-            int x = l[0];
-            int y = l[1];
+            int x = subdivX(cellAdjArr[i]);
+            int y = subdivY(cellAdjArr[i]);
 
             // Horizontal adjacency.
             if(dx == -1) {  // Asking for left.
@@ -276,8 +245,7 @@ public final class GeocellUtils {
                 }
             }
 
-            int l2[] = {x,y};
-            cellAdjArr[i] = subdivChar(l2);
+            cellAdjArr[i] = subdivChar(x, y);
             i--;
         }
         // If we're not done with y then it's trying to wrap vertically,
@@ -314,64 +282,50 @@ public final class GeocellUtils {
      */
     public static double pointDistance(String cell, Point point) {
         BoundingBox bbox = computeBox(cell);
+        DistanceCalculator calculator = new DistanceCalculator(point);
+        double latitude = point.getLatitude();
+        double longitude = point.getLongitude();
 
-        boolean betweenWE = bbox.getWest() <= point.getLongitude() && point.getLongitude() <= bbox.getEast();
-        boolean betweenNS = bbox.getSouth() <= point.getLatitude() && point.getLatitude() <= bbox.getNorth();
+        boolean betweenWE = bbox.getWest() <= longitude && longitude <= bbox.getEast();
+        boolean betweenNS = bbox.getSouth() <= latitude && latitude <= bbox.getNorth();
 
         if(betweenWE) {
             if(betweenNS) {
                 // Inside the geocell.
                 return Math.min(
-                        Math.min(distance(point, new Point(bbox.getSouth(), point.getLongitude())),distance(point, new Point(bbox.getNorth(), point.getLongitude()))),
-                        Math.min(distance(point, new Point(point.getLatitude(), bbox.getEast())),distance(point, new Point(point.getLatitude(), bbox.getWest()))));
+                        Math.min(calculator.distance(bbox.getSouth(), longitude), calculator.distance(bbox.getNorth(), longitude)),
+                        Math.min(calculator.distance(latitude, bbox.getEast()), calculator.distance(latitude, bbox.getWest())));
             } else {
-                return Math.min(distance(point, new Point(bbox.getSouth(), point.getLongitude())),distance(point, new Point(bbox.getNorth(), point.getLongitude())));
+                return Math.min(calculator.distance(bbox.getSouth(), longitude), calculator.distance(bbox.getNorth(), longitude));
             }
         } else {
             if(betweenNS) {
-                return Math.min(distance(point, new Point(point.getLatitude(), bbox.getEast())),distance(point, new Point(point.getLatitude(), bbox.getWest())));
+                return Math.min(calculator.distance(latitude, bbox.getEast()), calculator.distance(latitude, bbox.getWest()));
             } else {
                 // TODO(romannurik): optimize
-                return Math.min(Math.min(distance(point, new Point(bbox.getSouth(), bbox.getEast())),distance(point, new Point(bbox.getNorth(), bbox.getEast()))),
-                        Math.min(distance(point, new Point(bbox.getSouth(), bbox.getWest())),distance(point, new Point(bbox.getNorth(), bbox.getWest()))));
+                return Math.min(Math.min(calculator.distance(bbox.getSouth(), bbox.getEast()), calculator.distance(bbox.getNorth(), bbox.getEast())),
+                        Math.min(calculator.distance(bbox.getSouth(), bbox.getWest()), calculator.distance(bbox.getNorth(), bbox.getWest())));
             }
         }
     }
     /**
      * Computes the geocell containing the given point to the given resolution.
 
-      This is a simple 16-tree lookup to an arbitrary depth (resolution).
+      The point is quantized once into the integer grid of maximum resolution and
+      the cell characters are derived from its interleaved bits (see {@link PackedGeocellUtils}).
+
+      NOTE: the former implementation walked the 16-tree with float arithmetic,
+      whose precision (about 1e-5 degree) is coarser than a cell at resolutions 11 to 13.
+      For points close to a cell edge it could return the neighbouring cell; this
+      implementation always returns the cell that mathematically contains the point.
      *
      * @param point: The geotypes.Point to compute the cell for.
-     * @param resolution: An int indicating the resolution of the cell to compute.
+     * @param resolution: An int indicating the resolution of the cell to compute,
+     *                  inferior or equal to {@link GeocellManager#MAX_GEOCELL_RESOLUTION}.
      * @return The geocell string containing the given point, of length resolution.
      */
     public static String compute(Point point, int resolution) {
-        float north = MAX_LATITUDE;
-        float south = MIN_LATITUDE;
-        float east = MAX_LONGITUDE;
-        float west = MIN_LONGITUDE;
-
-        StringBuilder cell = new StringBuilder();
-        while(cell.length() < resolution) {
-            float subcellLonSpan = (east - west) / GEOCELL_GRID_SIZE;
-            float subcellLatSpan = (north - south) / GEOCELL_GRID_SIZE;
-
-            int x = Math.min((int)(GEOCELL_GRID_SIZE * (point.getLongitude() - west) / (east - west)),
-                    GEOCELL_GRID_SIZE - 1);
-            int y = Math.min((int)(GEOCELL_GRID_SIZE * (point.getLatitude() - south) / (north - south)),
-                    GEOCELL_GRID_SIZE - 1);
-
-            int l[] = {x,y};
-            cell.append(subdivChar(l));
-
-            south += subcellLatSpan * y;
-            north = south + subcellLatSpan;
-
-            west += subcellLonSpan * x;
-            east = west + subcellLonSpan;
-        }
-        return cell.toString();
+        return PackedGeocellUtils.toString(PackedGeocellUtils.compute(point.getLatitude(), point.getLongitude(), resolution));
     }
 
     /**
@@ -384,26 +338,34 @@ public final class GeocellUtils {
         if(cell_ == null) {
             return null;
         }
+        double[] box = new double[4];
+        computeBox(cell_, box);
+        return new BoundingBox(box[0], box[1], box[2], box[3]);
+    }
 
-        BoundingBox bbox = new BoundingBox(90.0, 180.0, -90.0, -180.0);
-        StringBuilder cell = new StringBuilder(cell_);
-        while(cell.length() > 0) {
-            double subcellLonSpan = (bbox.getEast() - bbox.getWest()) / GEOCELL_GRID_SIZE;
-            double subcellLatSpan = (bbox.getNorth() - bbox.getSouth()) / GEOCELL_GRID_SIZE;
-
-            int l[] = subdivXY(cell.charAt(0));
-            int x = l[0];
-            int y = l[1];
-
-            bbox = new BoundingBox(bbox.getSouth() + subcellLatSpan * (y + 1),
-                    bbox.getWest()  + subcellLonSpan * (x + 1),
-                    bbox.getSouth() + subcellLatSpan * y,
-                    bbox.getWest()  + subcellLonSpan * x);
-
-            cell.deleteCharAt(0);
+    /**
+     * Computes the rectangular boundaries of the given geocell into a caller-supplied buffer.
+     *
+     * @param cell: The geocell string whose boundaries are to be computed.
+     * @param result: An array of at least 4 elements, receiving north, east, south and west.
+     */
+    public static void computeBox(String cell, double[] result) {
+        int resolution = cell.length();
+        long x = 0;
+        long y = 0;
+        for(int i = 0; i < resolution; i++) {
+            int charI = subdivIndex(cell.charAt(i));
+            x = x * GEOCELL_GRID_SIZE + SUBDIV_X[charI];
+            y = y * GEOCELL_GRID_SIZE + SUBDIV_Y[charI];
         }
-
-        return bbox;
+        double gridSize = Math.pow(GEOCELL_GRID_SIZE, resolution);
+        double lonSpan = (MAX_LONGITUDE - MIN_LONGITUDE) / gridSize;
+        double latSpan = (MAX_LATITUDE - MIN_LATITUDE) / gridSize;
+
+        result[0] = MIN_LATITUDE + latSpan * (y + 1);
+        result[1] = MIN_LONGITUDE + lonSpan * (x + 1);
+        result[2] = MIN_LATITUDE + latSpan * y;
+        result[3] = MIN_LONGITUDE + lonSpan * x;
     }
 
     /**
@@ -415,8 +377,9 @@ public final class GeocellUtils {
         if(cell == null || cell.trim().length() == 0) {
             return false;
         }
-        for(char c : cell.toCharArray()) {
-            if(GEOCELL_ALPHABET.indexOf(c) < 0) {
+        for(int i = 0; i < cell.length(); i++) {
+            char c = cell.charAt(i);
+            if(c >= ALPHABET_INDEX.length || ALPHABET_INDEX[c] < 0) {
                 return false;
             }
         }
@@ -429,10 +392,26 @@ public final class GeocellUtils {
      * @return Returns the (x, y) of the geocell character in the 4x4 alphabet grid.
      */
     public static int[] subdivXY(char char_) {
-        // NOTE: This only works for grid size 4.
-        int charI = GEOCELL_ALPHABET.indexOf(char_);
-        return new int[] {(charI & 4) >> 1 | (charI & 1) >> 0,
-        (charI & 8) >> 2 | (charI & 2) >> 1};
+        int charI = subdivIndex(char_);
+        return new int[] {SUBDIV_X[charI], SUBDIV_Y[charI]};
+    }
+
+    /**
+     * Returns the x of the geocell character in the 4x4 alphabet grid.
+     * @param char_
+     * @return Returns the x of the geocell character in the 4x4 alphabet grid.
+     */
+    public static int subdivX(char char_) {
+        return SUBDIV_X[subdivIndex(char_)];
+    }
+
+    /**
+     * Returns the y of the geocell character in the 4x4 alphabet grid.
+     * @param char_
+     * @return Returns the y of the geocell character in the 4x4 alphabet grid.
+     */
+    public static int subdivY(char char_) {
+        return SUBDIV_Y[subdivIndex(char_)];
     }
 
     /**
@@ -441,30 +420,38 @@ public final class GeocellUtils {
      * @return Returns the geocell character in the 4x4 alphabet grid at pos. (x, y).
      */
     public static char subdivChar(int[] pos) {
-        // NOTE: This only works for grid size 4.
-        return GEOCELL_ALPHABET.charAt(
-                (pos[1] & 2) << 2 |
-                (pos[0] & 2) << 1 |
-                (pos[1] & 1) << 1 |
-                (pos[0] & 1) << 0);
+        return subdivChar(pos[0], pos[1]);
     }
 
     /**
-     * Calculates the great circle distance between two points (law of cosines).
+     * Returns the geocell character in the 4x4 alphabet grid at pos. (x, y).
+     * @param x
+     * @param y
+     * @return Returns the geocell character in the 4x4 alphabet grid at pos. (x, y).
+     */
+    public static char subdivChar(int x, int y) {
+        return GEOCELL_CHARS[(y & 3) << 2 | (x & 3)];
+    }
+
+    // Index of the character in the geocell alphabet.
+    private static int subdivIndex(char char_) {
+        int charI = char_ < ALPHABET_INDEX.length ? ALPHABET_INDEX[char_] : -1;
+        if(charI < 0) {
+            throw new IllegalArgumentException("Invalid geocell character " + char_);
+        }
+        return charI;
+    }
+
+    /**
+     * Calculates the great circle distance between two points (haversine formula).
+     * To compute the distances from the same point to many others, use a {@link DistanceCalculator}.
      *
      * @param p1: indicating the first point.
      * @param p2: indicating the second point.
      * @return The 2D great-circle distance between the two given points, in meters.
      */
 	public static double distance(Point p1, Point p2) {
-		double p1lat = Math.toRadians(p1.getLatitude());
-		double p1lon = Math.toRadians(p1.getLongitude());
-		double p2lat = Math.toRadians(p2.getLatitude());
-		double p2lon = Math.toRadians(p2.getLongitude());
-		return RADIUS
-				* Math.acos(makeDoubleInRange(Math.sin(p1lat) * Math.sin(p2lat)
-						+ Math.cos(p1lat) * Math.cos(p2lat)
-						* Math.cos(p2lon - p1lon)));
+		return DistanceCalculator.distance(p1.getLatitude(), p1.getLongitude(), p2.getLatitude(), p2.getLongitude());
 	}
 
 	/**
@@ -513,73 +500,98 @@ public final class GeocellUtils {
             maxSouth = Math.min(maxSouth, box.getSouth());
             maxWest = Math.min(maxWest, box.getWest());
         }
+        DistanceCalculator calculator = new DistanceCalculator(point);
         List<Tuple<int[],Double>> result = new ArrayList<Tuple<int[],Double>>();
-        result.add(new Tuple<int[], Double>(SOUTH, distance(new Point(maxSouth, point.getLongitude()), point)));
-        result.add(new Tuple<int[], Double>(NORTH, distance(new Point(maxNorth, point.getLongitude()), point)));
-        result.add(new Tuple<int[], Double>(WEST, distance(new Point(point.getLatitude(), maxWest), point)));
-        result.add(new Tuple<int[], Double>(EAST, distance(new Point(point.getLatitude(), maxEast), point)));
+        result.add(new Tuple<int[], Double>(SOUTH, calculator.distance(maxSouth, point.getLongitude())));
+        result.add(new Tuple<int[], Double>(NORTH, calculator.distance(maxNorth, point.getLongitude())));
+        result.add(new Tuple<int[], Double>(WEST, calculator.distance(point.getLatitude(), maxWest)));
+        result.add(new Tuple<int[], Double>(EAST, calculator.distance(point.getLatitude(), maxEast)));
         Collections.sort(result, new DoubleTupleComparator());
         return result;
     }
 
+    /**
+     * Returns the key of the entity, read from its <code>@Id</code> field unless it is {@link LocationCapable}.
+     *
+     * @param entity
+     * @return the key of the entity used as a String, or null if it is not set
+     */
     public static String getKeyString(Object entity) {
     	if(entity instanceof LocationCapable) {
     		return ((LocationCapable) entity).getKeyString();
     	}
 
-    	Field field = getField(entity.getClass(), Id.class);
-
-    	try {
-	        return field.get(entity).toString();
-        } catch (IllegalArgumentException e) {
-	        // TODO Auto-generated catch block
-			return null;
-        } catch (IllegalAccessException e) {
-	        // TODO Auto-generated catch block
-			return null;
-        }
+    	Object id = EntityAccessor.of(entity.getClass()).getId(entity);
+    	return id == null ? null : id.toString();
     }
 
-	private static Field getField(Class<?> type, Class<? extends Annotation> annotation) {
-	    for(Field field : type.getDeclaredFields()) {
-    		if(field.isAnnotationPresent(annotation)) {
-    			try {
-    				field.setAccessible(true);
-					return field;
-				} catch (IllegalArgumentException e) {
-					// TODO Auto-generated catch block
-					return null;
-				}
-    		}
+    /**
+     * Returns the location of the entity, read from its <code>@Location</code> field unless it is {@link LocationCapable}.
+     *
+     * NOTE: the returned point is the one held by the entity, not a copy.
+     *
+     * @param entity
+     * @return the location of the entity
+     */
+    public static Point getLocation(Object entity) {
+    	if (entity instanceof LocationCapable) {
+    		return ((LocationCapable) entity).getLocation();
     	}
 
-	    Class<?> superClass = type.getSuperclass();
-	    if(superClass != null) {
-	    	return getField(superClass, annotation);
-	    }
+        return EntityAccessor.of(entity.getClass()).getLocation(entity);
+    }
 
-	    return null;
+    /**
+     * @param type the entity class
+     * @return the name of the <code>@Geocells</code> field of the entity class
+     */
+    public static String getGeocellsFieldName(Class<?> type) {
+        return EntityAccessor.of(type).getGeocellsFieldName();
     }
 
-    public static Point getLocation(Object entity) {
-    	if (entity instanceof LocationCapable) {
-    		return ((LocationCapable) entity).getLocation();
-    	}
-    	
-    	Point location = new Point();
-
-        try {
-            Point locationField = (Point) getField(entity.getClass(), Location.class).get(entity);
-            location.setLatitude(locationField.getLatitude());
-            location.setLongitude(locationField.getLongitude());
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
+    /**
+     * @param type the entity class
+     * @return the name of the <code>@Location</code> field of the entity class
+     */
+    public static String getLocationFieldName(Class<?> type) {
+        return EntityAccessor.of(type).getLocationFieldName();
+    }
+
+    /**
+     * Returns the geocells of the entity, read from its <code>@Geocells</code> field unless it is {@link LocationCapable}.
+     *
+     * @param entity
+     * @return the geocells of the entity, may be null
+     */
+    public static List<String> getGeocells(Object entity) {
+        if (entity instanceof LocationCapable) {
+            return ((LocationCapable) entity).getGeocells();
         }
 
-        return location;
+        return EntityAccessor.of(entity.getClass()).getGeocells(entity);
     }
 
-    public static String getGeocellsFieldName(Class<?> type) {
-        return getField(type, Geocells.class).getName();
+    /**
+     * Sets the <code>@Geocells</code> field of the entity (also for LocationCapable entities).
+     *
+     * @param entity
+     * @param geocells the geocells of the entity, e.g. computed by {@link GeocellManager#generateGeoCell(Point)}
+     * @throws IllegalArgumentException if the entity has no <code>@Geocells</code> field
+     */
+    public static void setGeocells(Object entity, List<String> geocells) {
+        EntityAccessor.of(entity.getClass()).setGeocells(entity, geocells);
+    }
+
+    /**
+     * @param entity
+     * @return the geocells the entity is indexed with, or the geocells of its location if it has none
+     */
+    static List<String> getIndexedGeocells(Object entity) {
+        List<String> geocells = getGeocells(entity);
+        if (geocells == null || geocells.isEmpty()) {
+            Point location = getLocation(entity);
+            return location == null ? Collections.<String>emptyList() : GeocellManager.generateGeoCell(location);
+        }
+        return geocells;
     }
 }
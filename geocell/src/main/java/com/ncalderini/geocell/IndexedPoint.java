@@ -0,0 +1,54 @@
+package com.ncalderini.geocell;
+
+import com.ncalderini.geocell.model.LocationCapable;
+import com.ncalderini.geocell.model.Point;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A point of a {@link MappedGeocellIndex}: its key and location.
+ *
+ * The geocells are only computed when asked for. Points are equal when their keys are: the engine
+ * creates a new point each time a query returns it.
+ */
+public final class IndexedPoint implements LocationCapable {
+
+    private final String key;
+    private final Point location;
+
+    public IndexedPoint(String key, double latitude, double longitude) {
+        this.key = key;
+        this.location = new Point(latitude, longitude);
+    }
+
+    @Override
+    public Point getLocation() {
+        return location;
+    }
+
+    @Override
+    public String getKeyString() {
+        return key;
+    }
+
+    @Override
+    public List<String> getGeocells() {
+        return GeocellManager.generateGeoCell(location);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof IndexedPoint && Objects.equals(key, ((IndexedPoint) o).key);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(key);
+    }
+
+    @Override
+    public String toString() {
+        return key + " " + location;
+    }
+}
@@ -0,0 +1,311 @@
+package com.ncalderini.geocell;
+
+import com.ncalderini.geocell.model.Point;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+/**
+ * Immutable file-based index of points, memory-mapped for in-process searches.
+ *
+ * The points are sorted by their packed geocell of maximum resolution (see {@link PackedGeocellUtils}),
+ * and stored in parallel columns: cells, latitudes, longitudes and keys. The points of any cell are then
+ * a contiguous range of the columns, found by binary search between {@link PackedGeocellUtils#rangeMin(long)}
+ * and {@link PackedGeocellUtils#rangeMax(long)}. Opening an index only maps the file: the columns are read
+ * in place, so it takes no startup work and no heap beyond the points actually returned.
+ *
+ * File layout (big endian):
+ * <pre>
+ * int magic, int version, int count, int keyBytes
+ * long[count]    cells, in unsigned order
+ * double[count]  latitudes
+ * double[count]  longitudes
+ * int[count + 1] offsets of the keys in the key bytes
+ * byte[keyBytes] keys, UTF-8
+ * </pre>
+ * A file is limited to 2GB (about 60 million points with short keys).
+ *
+ * Instances are thread-safe.
+ *
+ * @see MappedGeocellQueryEngine
+ */
+public final class MappedGeocellIndex {
+
+    private static final int MAGIC = 0x47434958;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+
+    private final int size;
+    private final LongBuffer cells;
+    private final DoubleBuffer latitudes;
+    private final DoubleBuffer longitudes;
+    private final IntBuffer keyOffsets;
+    private final ByteBuffer keys;
+
+    private MappedGeocellIndex(ByteBuffer buffer) {
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+            throw new IllegalArgumentException("Not a geocell index");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("Unsupported geocell index version " + buffer.getInt(4));
+        }
+        this.size = buffer.getInt(8);
+        int keyBytes = buffer.getInt(12);
+        long expected = HEADER_BYTES + 24L * size + 4L * (size + 1) + keyBytes;
+        if (size < 0 || keyBytes < 0 || buffer.capacity() != expected) {
+            throw new IllegalArgumentException("Truncated geocell index");
+        }
+        int position = HEADER_BYTES;
+        this.cells = slice(buffer, position, 8 * size).asLongBuffer();
+        position += 8 * size;
+        this.latitudes = slice(buffer, position, 8 * size).asDoubleBuffer();
+        position += 8 * size;
+        this.longitudes = slice(buffer, position, 8 * size).asDoubleBuffer();
+        position += 8 * size;
+        this.keyOffsets = slice(buffer, position, 4 * (size + 1)).asIntBuffer();
+        position += 4 * (size + 1);
+        this.keys = slice(buffer, position, keyBytes);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int position, int length) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(position);
+        duplicate.limit(position + length);
+        return duplicate.slice();
+    }
+
+    /**
+     * Maps an index file written by a {@link Builder}.
+     *
+     * @param file the index file
+     * @return the index
+     * @throws IOException if the file can't be read
+     * @throws IllegalArgumentException if the file is not a valid index
+     */
+    public static MappedGeocellIndex open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Geocell index larger than 2GB");
+            }
+            // the mapping stays valid once the channel is closed
+            return new MappedGeocellIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * @return a builder of index files
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return the number of points
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param index the position of a point, 0 to size - 1
+     * @return the packed geocell of maximum resolution of the point
+     */
+    public long getCell(int index) {
+        return cells.get(index);
+    }
+
+    public double getLatitude(int index) {
+        return latitudes.get(index);
+    }
+
+    public double getLongitude(int index) {
+        return longitudes.get(index);
+    }
+
+    public String getKey(int index) {
+        int start = keyOffsets.get(index);
+        int end = keyOffsets.get(index + 1);
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = keys.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param cell a packed geocell
+     * @return the position of the first point of the cell (or where it would be if the cell is empty)
+     */
+    public int rangeStart(long cell) {
+        return CellOrder.lowerBound(cells, 0, size, PackedGeocellUtils.rangeMin(cell));
+    }
+
+    /**
+     * @param cell a packed geocell
+     * @return the position following the last point of the cell
+     */
+    public int rangeEnd(long cell) {
+        // the resolution bits of the largest cell are below the maximum: adding one gives the first cell after it
+        return CellOrder.lowerBound(cells, 0, size, PackedGeocellUtils.rangeMax(cell) + 1);
+    }
+
+    /**
+     * Collects points and writes them to an index file.
+     *
+     * The points are held in primitive arrays until they are written, sorted by cell.
+     */
+    public static final class Builder {
+
+        private long[] cells = new long[1024];
+        private double[] latitudes = new double[1024];
+        private double[] longitudes = new double[1024];
+        private String[] keys = new String[1024];
+        private int size;
+
+        private Builder() {
+        }
+
+        /**
+         * @param key the key of the point
+         * @param latitude
+         * @param longitude
+         * @return this builder
+         */
+        public Builder add(String key, double latitude, double longitude) {
+            if (key == null) {
+                throw new IllegalArgumentException("key must not be null");
+            }
+            if (size == cells.length) {
+                int capacity = size * 2;
+                cells = Arrays.copyOf(cells, capacity);
+                latitudes = Arrays.copyOf(latitudes, capacity);
+                longitudes = Arrays.copyOf(longitudes, capacity);
+                keys = Arrays.copyOf(keys, capacity);
+            }
+            cells[size] = PackedGeocellUtils.computeMax(latitude, longitude);
+            latitudes[size] = latitude;
+            longitudes[size] = longitude;
+            keys[size++] = key;
+            return this;
+        }
+
+        /**
+         * @param entity an entity having a location and a key (see {@link GeocellUtils#getLocation(Object)}
+         * and {@link GeocellUtils#getKeyString(Object)})
+         * @return this builder
+         */
+        public Builder add(Object entity) {
+            Point location = GeocellUtils.getLocation(entity);
+            return add(GeocellUtils.getKeyString(entity), location.getLatitude(), location.getLongitude());
+        }
+
+        /**
+         * @param entities entities having a location and a key
+         * @return this builder
+         */
+        public Builder addAll(Stream<?> entities) {
+            entities.forEachOrdered(this::add);
+            return this;
+        }
+
+        /**
+         * @return the number of points added
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Writes the points to a file, replacing it if it exists. The points are written to a temporary file
+         * of the same directory, then moved over the file atomically: readers mapping the file see either the
+         * previous index or the new one, never a partial one.
+         *
+         * @param file the index file
+         * @throws IOException if the file can't be written
+         */
+        public void write(Path file) throws IOException {
+            sort();
+            byte[][] keyBytes = new byte[size][];
+            long totalKeyBytes = 0;
+            for (int i = 0; i < size; i++) {
+                keyBytes[i] = keys[i].getBytes(StandardCharsets.UTF_8);
+                totalKeyBytes += keyBytes[i].length;
+            }
+            if (HEADER_BYTES + 28L * size + 4 + totalKeyBytes > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Geocell index larger than 2GB");
+            }
+            Path directory = file.toAbsolutePath().getParent();
+            Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+            try {
+                write(temporary, keyBytes, totalKeyBytes);
+                Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        }
+
+        private void write(Path file, byte[][] keyBytes, long totalKeyBytes) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(size);
+                out.writeInt((int) totalKeyBytes);
+                for (int i = 0; i < size; i++) {
+                    out.writeLong(cells[i]);
+                }
+                for (int i = 0; i < size; i++) {
+                    out.writeDouble(latitudes[i]);
+                }
+                for (int i = 0; i < size; i++) {
+                    out.writeDouble(longitudes[i]);
+                }
+                int offset = 0;
+                for (int i = 0; i < size; i++) {
+                    out.writeInt(offset);
+                    offset += keyBytes[i].length;
+                }
+                out.writeInt(offset);
+                for (int i = 0; i < size; i++) {
+                    out.write(keyBytes[i]);
+                }
+                out.flush();
+                // on disk before it replaces the previous index
+                channel.force(true);
+            }
+        }
+
+        // Sorts the columns by unsigned cell.
+        private void sort() {
+            int[] order = CellOrder.sort(cells, size);
+            long[] sortedCells = new long[size];
+            double[] sortedLatitudes = new double[size];
+            double[] sortedLongitudes = new double[size];
+            String[] sortedKeys = new String[size];
+            for (int i = 0; i < size; i++) {
+                sortedCells[i] = cells[order[i]];
+                sortedLatitudes[i] = latitudes[order[i]];
+                sortedLongitudes[i] = longitudes[order[i]];
+                sortedKeys[i] = keys[order[i]];
+            }
+            cells = sortedCells;
+            latitudes = sortedLatitudes;
+            longitudes = sortedLongitudes;
+            keys = sortedKeys;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.ncalderini.geocell;
+
+import com.ncalderini.geocell.model.GeocellQuery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * GeocellQueryEngine answering geocell queries from a {@link MappedGeocellIndex}, in process.
+ *
+ * Each cell of a query is resolved to the range of the index holding its points, and the entities are
+ * created from the key and location of these points only. The ranges of overlapping cells (e.g. a cell and
+ * one of its ancestors) are merged, so each point is returned once, in cell order.
+ * Base queries and ordering can't be run against the index and are rejected.
+ *
+ * <pre>
+ * MappedGeocellIndex index = MappedGeocellIndex.open(Paths.get("stores.idx"));
+ * GeocellQueryEngine queryEngine = new MappedGeocellQueryEngine(index);
+ * List&lt;IndexedPoint&gt; stores = GeocellManager.proximitySearch(center, 10, 0, 5000, IndexedPoint.class, null, null,
+ *         queryEngine, GeocellManager.MAX_GEOCELL_RESOLUTION).getResults();
+ * </pre>
+ *
+ */
+public class MappedGeocellQueryEngine implements GeocellQueryEngine {
+
+    /**
+     * Creates the entities of the points returned. A point returned by several queries is created each
+     * time: the entities of the same key must be equal, as the proximity searches tell them apart with equals.
+     */
+    public interface EntityFactory<E> {
+
+        /**
+         * @param key the key of the point
+         * @param latitude
+         * @param longitude
+         * @return the entity, whose location is read by the searches (see {@link GeocellUtils#getLocation(Object)})
+         */
+        E create(String key, double latitude, double longitude);
+    }
+
+    private final MappedGeocellIndex index;
+    private final Class<?> entityClass;
+    private final EntityFactory<?> factory;
+
+    /**
+     * Creates an engine returning {@link IndexedPoint}s.
+     *
+     * @param index the index
+     */
+    public MappedGeocellQueryEngine(MappedGeocellIndex index) {
+        this(index, IndexedPoint.class, IndexedPoint::new);
+    }
+
+    /**
+     * @param index the index
+     * @param entityClass the class of the entities created
+     * @param factory creates the entities of the points returned
+     */
+    public <E> MappedGeocellQueryEngine(MappedGeocellIndex index, Class<E> entityClass, EntityFactory<? extends E> factory) {
+        this.index = index;
+        this.entityClass = entityClass;
+        this.factory = factory;
+    }
+
+    /**
+     * @see GeocellQueryEngine#query(GeocellQuery, String, java.util.List, java.lang.Class)
+     */
+    @Override
+    public <T> List<T> query(GeocellQuery baseQuery, String orderBy, List<String> curGeocellsUnique, Class<T> entityClass) {
+        if (baseQuery != null && baseQuery.getBaseQuery() != null && !baseQuery.getBaseQuery().isEmpty()) {
+            throw new UnsupportedOperationException("Base queries are not supported by a mapped index");
+        }
+        if (orderBy != null) {
+            throw new UnsupportedOperationException("Ordering is not supported by a mapped index");
+        }
+        if (!entityClass.isAssignableFrom(this.entityClass)) {
+            throw new IllegalArgumentException("This engine creates " + this.entityClass.getName() + ", not " + entityClass.getName());
+        }
+
+        // [start, end) position ranges of the cells, sorted and merged
+        long[] ranges = new long[curGeocellsUnique.size()];
+        for (int i = 0; i < ranges.length; i++) {
+            long cell = PackedGeocellUtils.fromString(curGeocellsUnique.get(i));
+            ranges[i] = ((long) index.rangeStart(cell) << 32) | index.rangeEnd(cell);
+        }
+        Arrays.sort(ranges);
+
+        List<T> results = new ArrayList<T>();
+        int end = 0;
+        for (long range : ranges) {
+            int from = Math.max((int) (range >>> 32), end);
+            int to = (int) range;
+            for (int i = from; i < to; i++) {
+                results.add(entityClass.cast(factory.create(index.getKey(i), index.getLatitude(i), index.getLongitude(i))));
+            }
+            end = Math.max(end, to);
+        }
+        return results;
+    }
+}
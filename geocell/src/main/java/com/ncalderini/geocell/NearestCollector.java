@@ -0,0 +1,194 @@
+package com.ncalderini.geocell;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the k nearest entities offered, in a bounded max-heap of (distance, key).
+ *
+ * Offering n entities takes O(n log k) time and O(min(n, k)) memory: the heap grows with the entities kept,
+ * so a large k (e.g. to collect every entity within a distance) costs nothing up front. Entities are identified by key:
+ * an entity offered twice (e.g. found again when searching a parent cell) is kept once.
+ * Ties on distance are broken by key, so the order of the results is deterministic.
+ */
+final class NearestCollector<T> {
+
+    // Initial length of the heap arrays, doubled as needed up to the capacity.
+    private static final int INITIAL_LENGTH = 16;
+
+    private final int capacity;
+    private double[] distances;
+    private String[] keys;
+    private Object[] entities;
+    private int size;
+
+    // Keys of the entities in the heap.
+    private final Map<String, Boolean> present;
+
+    NearestCollector(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        int length = Math.min(capacity, INITIAL_LENGTH);
+        this.distances = new double[length];
+        this.keys = new String[length];
+        this.entities = new Object[length];
+        this.present = new HashMap<String, Boolean>(length * 2);
+    }
+
+    /**
+     * @return whether k entities were collected
+     */
+    boolean isFull() {
+        return size == capacity;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the distance of the k-th nearest entity, or positive infinity if not full yet
+     */
+    double getKthDistance() {
+        return size < capacity ? Double.POSITIVE_INFINITY : distances[0];
+    }
+
+    /**
+     * @param entity
+     * @param key the key of the entity, may be null if it can't be deduplicated
+     * @param distance the distance of the entity to the search center
+     * @return whether the entity was kept
+     */
+    boolean offer(T entity, String key, double distance) {
+        if (key != null && present.containsKey(key)) {
+            return false;
+        }
+        if (size < capacity) {
+            if (size == distances.length) {
+                grow();
+            }
+            distances[size] = distance;
+            keys[size] = key;
+            entities[size] = entity;
+            siftUp(size++);
+        } else {
+            if (compare(distance, key, distances[0], keys[0]) >= 0) {
+                return false;
+            }
+            if (keys[0] != null) {
+                present.remove(keys[0]);
+            }
+            distances[0] = distance;
+            keys[0] = key;
+            entities[0] = entity;
+            siftDown(0);
+        }
+        if (key != null) {
+            present.put(key, Boolean.TRUE);
+        }
+        return true;
+    }
+
+    /**
+     * Drains the collected entities, sorted by increasing distance.
+     *
+     * @param results receives the entities
+     * @param resultDistances receives the distances, aligned with the entities
+     */
+    @SuppressWarnings("unchecked")
+    void drainSorted(List<T> results, List<Double> resultDistances) {
+        int count = size;
+        List<T> sorted = new ArrayList<T>(count);
+        double[] sortedDistances = new double[count];
+        // pop the farthest first
+        for (int i = count - 1; i >= 0; i--) {
+            sortedDistances[i] = distances[0];
+            sorted.add((T) entities[0]);
+            removeTop();
+        }
+        for (int i = 0; i < count; i++) {
+            results.add(sorted.get(count - 1 - i));
+            resultDistances.add(sortedDistances[i]);
+        }
+    }
+
+    private void grow() {
+        int length = (int) Math.min(capacity, 2L * distances.length);
+        distances = Arrays.copyOf(distances, length);
+        keys = Arrays.copyOf(keys, length);
+        entities = Arrays.copyOf(entities, length);
+    }
+
+    private void removeTop() {
+        if (keys[0] != null) {
+            present.remove(keys[0]);
+        }
+        size--;
+        distances[0] = distances[size];
+        keys[0] = keys[size];
+        entities[0] = entities[size];
+        keys[size] = null;
+        entities[size] = null;
+        if (size > 0) {
+            siftDown(0);
+        }
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (compare(distances[i], keys[i], distances[parent], keys[parent]) <= 0) {
+                return;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int largest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < size && compare(distances[left], keys[left], distances[largest], keys[largest]) > 0) {
+                largest = left;
+            }
+            if (right < size && compare(distances[right], keys[right], distances[largest], keys[largest]) > 0) {
+                largest = right;
+            }
+            if (largest == i) {
+                return;
+            }
+            swap(i, largest);
+            i = largest;
+        }
+    }
+
+    private void swap(int i, int j) {
+        double distance = distances[i];
+        distances[i] = distances[j];
+        distances[j] = distance;
+        String key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+        Object entity = entities[i];
+        entities[i] = entities[j];
+        entities[j] = entity;
+    }
+
+    /**
+     * Compares two entities by distance, then by key.
+     */
+    static int compare(double distance1, String key1, double distance2, String key2) {
+        int result = Double.compare(distance1, distance2);
+        if (result != 0 || key1 == null || key2 == null) {
+            return result;
+        }
+        return key1.compareTo(key2);
+    }
+}
@@ -0,0 +1,436 @@
+package com.ncalderini.geocell;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Immutable in-memory index of points (e.g. facilities) answering k-nearest neighbour queries in bulk,
+ * e.g. to assign millions of events to their nearest facility.
+ *
+ * The points are held in primitive arrays sorted by their packed geocell of maximum resolution, so the
+ * points of any cell are a contiguous range found by binary search. A query starts at the finest resolution
+ * whose cell around the query point holds at least k points, and searches rings of cells of that resolution
+ * outward, descending into the cells holding many points to skip their parts farther than the k-th nearest
+ * point found. After each ring, the distance from the query point to the nearest edge of the searched block
+ * (as in {@link GeocellUtils#distanceSortedEdges(java.util.List, com.ncalderini.geocell.model.Point)}, but
+ * measured to the edge meridians rather than along the parallel, so that it is a lower bound) bounds the
+ * distance of the points not searched yet: the search stops once the k-th nearest point found is closer.
+ *
+ * The results are written to arrays given by the caller, and
+ * {@link #assign(double[], double[], int, int[], double[])} splits a batch of queries across the cores
+ * with fork/join, reusing the state of a search for all the queries of a thread: a batch allocates nothing
+ * per query. Instances are thread-safe.
+ *
+ */
+public final class NearestNeighborIndex {
+
+    private static final double RADIANS_PER_DEGREE = Math.PI / 180;
+
+    // Number of queries below which a batch is processed by a single thread.
+    private static final int SEQUENTIAL_THRESHOLD = 1024;
+
+    // Number of points above which the children of a cell are searched rather than its points.
+    private static final int LEAF_SIZE = 32;
+
+    private final int size;
+    // Packed cells of maximum resolution, in unsigned order.
+    private final long[] cells;
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private final double[] cosLatitudes;
+    // Position of each point in the arrays given to the constructor.
+    private final int[] ids;
+
+    /**
+     * @param latitudes the latitudes of the points
+     * @param longitudes the longitudes of the points
+     */
+    public NearestNeighborIndex(double[] latitudes, double[] longitudes) {
+        if (latitudes.length != longitudes.length) {
+            throw new IllegalArgumentException("Latitudes and longitudes must have the same length");
+        }
+        this.size = latitudes.length;
+        long[] unsorted = new long[size];
+        for (int i = 0; i < size; i++) {
+            unsorted[i] = PackedGeocellUtils.computeMax(latitudes[i], longitudes[i]);
+        }
+        int[] order = CellOrder.sort(unsorted, size);
+
+        this.cells = new long[size];
+        this.latitudes = new double[size];
+        this.longitudes = new double[size];
+        this.cosLatitudes = new double[size];
+        this.ids = new int[size];
+        for (int i = 0; i < size; i++) {
+            int id = order[i];
+            cells[i] = unsorted[id];
+            this.latitudes[i] = latitudes[id];
+            this.longitudes[i] = longitudes[id];
+            cosLatitudes[i] = Math.cos(latitudes[id] * RADIANS_PER_DEGREE);
+            ids[i] = id;
+        }
+    }
+
+    /**
+     * @return the number of points
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param latitude the latitude of the query point
+     * @param longitude the longitude of the query point
+     * @return the position of the nearest point in the arrays given to the constructor, -1 if there is none
+     */
+    public int nearest(double latitude, double longitude) {
+        int[] nearest = new int[1];
+        nearest(latitude, longitude, 1, nearest, new double[1], 0);
+        return nearest[0];
+    }
+
+    /**
+     * Finds the k points nearest to the query point.
+     *
+     * @param latitude the latitude of the query point
+     * @param longitude the longitude of the query point
+     * @param k the number of points to find
+     * @param nearest receives, from offset, the positions of the k nearest points in the arrays given to
+     *                the constructor, by increasing distance; -1 when there are less than k points
+     * @param distances receives, from offset, the distances of these points in meters (positive infinity
+     *                  when there are less than k points)
+     * @param offset the first position written in nearest and distances
+     * @return the number of points found, k unless the index holds less than k points
+     */
+    public int nearest(double latitude, double longitude, int k, int[] nearest, double[] distances, int offset) {
+        return new Search().run(latitude, longitude, k, nearest, distances, offset);
+    }
+
+    /**
+     * Finds the k nearest points of a batch of query points, in the common fork/join pool.
+     *
+     * @see #assign(double[], double[], int, int[], double[], ForkJoinPool)
+     */
+    public void assign(double[] latitudes, double[] longitudes, int k, int[] nearest, double[] distances) {
+        assign(latitudes, longitudes, k, nearest, distances, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Finds the k nearest points of a batch of query points.
+     *
+     * @param latitudes the latitudes of the query points
+     * @param longitudes the longitudes of the query points
+     * @param k the number of points to find for each query point
+     * @param nearest receives the positions of the k nearest points of each query point (at i * k for the
+     *                query point i), as by {@link #nearest(double, double, int, int[], double[], int)}
+     * @param distances receives the distances of these points in meters, aligned with nearest; may be null
+     * @param pool the pool running the queries
+     */
+    public void assign(final double[] latitudes, final double[] longitudes, final int k, final int[] nearest, final double[] distances, ForkJoinPool pool) {
+        long length = (long) latitudes.length * k;
+        if (latitudes.length != longitudes.length || k < 1 || nearest.length < length
+                || (distances != null && distances.length < length)) {
+            throw new IllegalArgumentException("Latitudes and longitudes must have the same length n, and results n * k elements");
+        }
+        AssignTask task = new AssignTask(latitudes, longitudes, k, nearest, distances, 0, latitudes.length);
+        if (latitudes.length <= SEQUENTIAL_THRESHOLD) {
+            task.compute();
+        } else {
+            pool.invoke(task);
+        }
+    }
+
+    // Finest resolution whose cell containing the point holds at least k points (1 if even the coarsest doesn't).
+    private int startingResolution(long maxCell, int k) {
+        int low = 1;
+        int high = GeocellManager.MAX_GEOCELL_RESOLUTION;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            long cell = PackedGeocellUtils.parent(maxCell, middle);
+            if (rangeEnd(cell) - rangeStart(cell) >= k) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    private int rangeStart(long cell) {
+        return CellOrder.lowerBound(cells, 0, size, PackedGeocellUtils.rangeMin(cell));
+    }
+
+    private int rangeEnd(long cell) {
+        // the resolution bits of the largest cell are below the maximum: adding one gives the first cell after it
+        return CellOrder.lowerBound(cells, 0, size, PackedGeocellUtils.rangeMax(cell) + 1);
+    }
+
+    // State of one query at a time, reused by the queries of a batch.
+    private final class Search {
+
+        private double latitudeRadians;
+        private double longitude;
+        private double cosLatitude;
+        // Position of the query point in the grid of maximum resolution.
+        private int maxX;
+        private int maxY;
+        private int k;
+        // The k nearest found so far, sorted by increasing haversine term (sin^2(d / 2R)) until the search ends.
+        private int[] nearest;
+        private double[] distances;
+        private int offset;
+        private int found;
+        // Bounds and order of the children of the cells being searched, by resolution of the cell.
+        private final double[][] childBounds = new double[GeocellManager.MAX_GEOCELL_RESOLUTION][16];
+        private final int[][] childOrder = new int[GeocellManager.MAX_GEOCELL_RESOLUTION][16];
+
+        int run(double latitude, double longitude, int k, int[] nearest, double[] distances, int offset) {
+            if (k < 1) {
+                throw new IllegalArgumentException("k must be positive");
+            }
+            for (int i = offset; i < offset + k; i++) {
+                nearest[i] = -1;
+                distances[i] = Double.POSITIVE_INFINITY;
+            }
+            if (size == 0) {
+                return 0;
+            }
+            this.latitudeRadians = latitude * RADIANS_PER_DEGREE;
+            this.longitude = longitude;
+            this.cosLatitude = Math.cos(latitudeRadians);
+            this.k = k;
+            this.nearest = nearest;
+            this.distances = distances;
+            this.offset = offset;
+            this.found = 0;
+
+            long maxCell = PackedGeocellUtils.computeMax(latitude, longitude);
+            maxX = PackedGeocellUtils.x(maxCell);
+            maxY = PackedGeocellUtils.y(maxCell);
+            int resolution = startingResolution(maxCell, k);
+            int x = column(resolution);
+            int y = row(resolution);
+            int gridSize = 1 << (2 * resolution);
+            // columns x - westMost to x + eastMost hold each column once
+            int westMost = gridSize / 2;
+            int eastMost = gridSize / 2 - 1;
+            double cellLatitude = (GeocellUtils.MAX_LATITUDE - GeocellUtils.MIN_LATITUDE) / (double) gridSize;
+            double cellLongitude = (GeocellUtils.MAX_LONGITUDE - GeocellUtils.MIN_LONGITUDE) / (double) gridSize;
+
+            for (int ring = 0; ; ring++) {
+                for (int dy = -ring; dy <= ring; dy++) {
+                    int row = y + dy;
+                    if (row < 0 || row >= gridSize) {
+                        continue;
+                    }
+                    if (dy == -ring || dy == ring) {
+                        for (int dx = -Math.min(ring, westMost); dx <= Math.min(ring, eastMost); dx++) {
+                            scan((x + dx) & (gridSize - 1), row, resolution);
+                        }
+                    } else {
+                        if (ring <= westMost) {
+                            scan((x - ring) & (gridSize - 1), row, resolution);
+                        }
+                        if (ring <= eastMost) {
+                            scan((x + ring) & (gridSize - 1), row, resolution);
+                        }
+                    }
+                }
+
+                boolean allRows = y - ring <= 0 && y + ring >= gridSize - 1;
+                boolean allColumns = ring >= westMost;
+                if (allRows && allColumns) {
+                    break;
+                }
+                if (found == k) {
+                    // the points not searched yet are beyond an edge of the searched block
+                    double bound = Double.POSITIVE_INFINITY;
+                    if (y - ring > 0) {
+                        double south = GeocellUtils.MIN_LATITUDE + (y - ring) * cellLatitude;
+                        bound = Math.min(bound, latitudeRadians - south * RADIANS_PER_DEGREE);
+                    }
+                    if (y + ring < gridSize - 1) {
+                        double north = GeocellUtils.MIN_LATITUDE + (y + ring + 1) * cellLatitude;
+                        bound = Math.min(bound, north * RADIANS_PER_DEGREE - latitudeRadians);
+                    }
+                    if (!allColumns) {
+                        double west = GeocellUtils.MIN_LONGITUDE + (x - ring) * cellLongitude;
+                        double east = GeocellUtils.MIN_LONGITUDE + (x + ring + 1) * cellLongitude;
+                        bound = Math.min(bound, meridianBound(Math.min(longitude - west, east - longitude)));
+                    }
+                    if (distances[offset + k - 1] <= haversine(bound)) {
+                        break;
+                    }
+                }
+            }
+
+            for (int i = offset; i < offset + found; i++) {
+                distances[i] = 2 * GeocellUtils.RADIUS * Math.asin(Math.sqrt(Math.min(1, distances[i])));
+            }
+            return found;
+        }
+
+        private int column(int resolution) {
+            return maxX >> (2 * (GeocellManager.MAX_GEOCELL_RESOLUTION - resolution));
+        }
+
+        private int row(int resolution) {
+            return maxY >> (2 * (GeocellManager.MAX_GEOCELL_RESOLUTION - resolution));
+        }
+
+        // Offers the points of the cell, descending into the children of the cells holding many points
+        // so that the children farther than the k-th nearest point found are skipped.
+        private void scan(int x, int y, int resolution) {
+            long cell = PackedGeocellUtils.fromXY(x, y, resolution);
+            int start = rangeStart(cell);
+            int end = rangeEnd(cell);
+            if (start == end) {
+                return;
+            }
+            if (found == k && distances[offset + k - 1] <= haversine(boxBound(x, y, resolution))) {
+                return;
+            }
+            if (end - start <= LEAF_SIZE || resolution == GeocellManager.MAX_GEOCELL_RESOLUTION) {
+                for (int i = start; i < end; i++) {
+                    offer(i);
+                }
+                return;
+            }
+            // the children nearest to the query point first, until they are farther than the k-th nearest point
+            double[] bounds = childBounds[resolution];
+            int[] order = childOrder[resolution];
+            for (int child = 0; child < 16; child++) {
+                double bound = haversine(boxBound(4 * x + (child & 3), 4 * y + (child >> 2), resolution + 1));
+                int position = child;
+                while (position > 0 && bounds[position - 1] > bound) {
+                    bounds[position] = bounds[position - 1];
+                    order[position] = order[position - 1];
+                    position--;
+                }
+                bounds[position] = bound;
+                order[position] = child;
+            }
+            for (int i = 0; i < 16; i++) {
+                if (found == k && distances[offset + k - 1] <= bounds[i]) {
+                    return;
+                }
+                scan(4 * x + (order[i] & 3), 4 * y + (order[i] >> 2), resolution + 1);
+            }
+        }
+
+        private void offer(int i) {
+            double sinLatitude = Math.sin((latitudes[i] * RADIANS_PER_DEGREE - latitudeRadians) / 2);
+            double sinLongitude = Math.sin((longitudes[i] - longitude) * RADIANS_PER_DEGREE / 2);
+            double haversine = sinLatitude * sinLatitude + cosLatitude * cosLatitudes[i] * sinLongitude * sinLongitude;
+            if (found == k && haversine >= distances[offset + k - 1]) {
+                return;
+            }
+            // insertion, the k-th one (if any) falls off
+            int position = found < k ? found++ : k - 1;
+            while (position > 0 && distances[offset + position - 1] > haversine) {
+                distances[offset + position] = distances[offset + position - 1];
+                nearest[offset + position] = nearest[offset + position - 1];
+                position--;
+            }
+            distances[offset + position] = haversine;
+            nearest[offset + position] = ids[i];
+        }
+
+        // Angular distance from the query point to the box of the cell: a lower bound of the distance to its points.
+        private double boxBound(int x, int y, int resolution) {
+            int gridSize = 1 << (2 * resolution);
+            double cellLatitude = (GeocellUtils.MAX_LATITUDE - GeocellUtils.MIN_LATITUDE) / (double) gridSize;
+            double cellLongitude = (GeocellUtils.MAX_LONGITUDE - GeocellUtils.MIN_LONGITUDE) / (double) gridSize;
+            double south = (GeocellUtils.MIN_LATITUDE + y * cellLatitude) * RADIANS_PER_DEGREE;
+            double north = (GeocellUtils.MIN_LATITUDE + (y + 1) * cellLatitude) * RADIANS_PER_DEGREE;
+            double west = GeocellUtils.MIN_LONGITUDE + x * cellLongitude;
+            double east = west + cellLongitude;
+            if (longitude >= west && longitude <= east) {
+                return Math.max(0, Math.max(south - latitudeRadians, latitudeRadians - north));
+            }
+            // the nearest point of the box is on its nearest edge meridian, across the antimeridian if needed
+            double longitudeDelta = Math.min(positiveModulo(west - longitude), positiveModulo(longitude - east)) * RADIANS_PER_DEGREE;
+            if (longitudeDelta >= Math.PI / 2) {
+                return meridianBound(longitudeDelta / RADIANS_PER_DEGREE);
+            }
+            // latitude of the foot of the perpendicular from the query point to the edge meridian
+            double foot = Math.atan(Math.tan(latitudeRadians) / Math.cos(longitudeDelta));
+            if (foot >= south && foot <= north) {
+                return Math.asin(cosLatitude * Math.sin(longitudeDelta));
+            }
+            double corner = foot < south ? south : north;
+            double sinLatitude = Math.sin((corner - latitudeRadians) / 2);
+            double sinLongitude = Math.sin(longitudeDelta / 2);
+            double haversine = sinLatitude * sinLatitude + cosLatitude * Math.cos(corner) * sinLongitude * sinLongitude;
+            return 2 * Math.asin(Math.sqrt(Math.min(1, haversine)));
+        }
+
+        // Angular distance from the query point to a meridian longitudeDelta degrees away.
+        private double meridianBound(double longitudeDelta) {
+            return Math.asin(cosLatitude * Math.sin(Math.min(longitudeDelta * RADIANS_PER_DEGREE, Math.PI / 2)));
+        }
+    }
+
+    private static double positiveModulo(double longitudeDelta) {
+        double delta = longitudeDelta % 360;
+        return delta < 0 ? delta + 360 : delta;
+    }
+
+    // The haversine term of an angular distance, with a small margin for rounding: a point at the bound
+    // must not be skipped.
+    private static double haversine(double angle) {
+        if (angle == Double.POSITIVE_INFINITY) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double sin = Math.sin(angle * (1 - 1e-12) / 2);
+        return sin * sin;
+    }
+
+    private final class AssignTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final double[] latitudes;
+        private final double[] longitudes;
+        private final int k;
+        private final int[] nearest;
+        private final double[] distances;
+        private final int from;
+        private final int to;
+
+        AssignTask(double[] latitudes, double[] longitudes, int k, int[] nearest, double[] distances, int from, int to) {
+            this.latitudes = latitudes;
+            this.longitudes = longitudes;
+            this.k = k;
+            this.nearest = nearest;
+            this.distances = distances;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > SEQUENTIAL_THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new AssignTask(latitudes, longitudes, k, nearest, distances, from, middle),
+                        new AssignTask(latitudes, longitudes, k, nearest, distances, middle, to));
+                return;
+            }
+            // one search, and one buffer if no distances are wanted, per batch of queries
+            Search search = new Search();
+            if (distances != null) {
+                for (int i = from; i < to; i++) {
+                    search.run(latitudes[i], longitudes[i], k, nearest, distances, i * k);
+                }
+            } else {
+                double[] buffer = new double[k];
+                int[] positions = new int[k];
+                for (int i = from; i < to; i++) {
+                    search.run(latitudes[i], longitudes[i], k, positions, buffer, 0);
+                    System.arraycopy(positions, 0, nearest, i * k, k);
+                }
+            }
+        }
+    }
+}
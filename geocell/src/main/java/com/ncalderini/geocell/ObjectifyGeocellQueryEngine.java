@@ -2,8 +2,12 @@ package com.ncalderini.geocell;
 
 import com.ncalderini.geocell.model.GeocellQuery;
 import com.googlecode.objectify.cmd.Query;
+import org.apache.commons.lang.Validate;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import static com.googlecode.objectify.ObjectifyService.ofy;
 
@@ -20,13 +24,87 @@ import static com.googlecode.objectify.ObjectifyService.ofy;
  * @author unparalleled
  *
  */
-public class ObjectifyGeocellQueryEngine implements GeocellQueryEngine {
+public class ObjectifyGeocellQueryEngine implements DeferredQueryEngine {
+
+    // null to read the results of asynchronous queries on the calling thread
+    private final Executor executor;
+
+    /**
+     * Creates an engine without executor: the results of asynchronous queries are read on the calling
+     * thread, and the returned futures are already completed. The asynchronous proximity search still has
+     * its queries in flight together: it reads their results only when it reaches their step.
+     */
+    public ObjectifyGeocellQueryEngine() {
+        this.executor = null;
+    }
+
+    /**
+     * Creates an engine whose asynchronous queries complete on the given executor.
+     * The results are read, and the entities loaded into the Objectify session, on the threads of the
+     * executor: they must be able to use the datastore and the session of the request. On App Engine
+     * standard environment, use an executor whose threads are created by
+     * <code>ThreadManager.currentRequestThreadFactory()</code>, and shut it down before the request ends.
+     *
+     * @param executor the executor used to wait for the results of asynchronous queries
+     */
+    public ObjectifyGeocellQueryEngine(Executor executor) {
+        Validate.notNull(executor, "executor must not be null");
+        this.executor = executor;
+    }
 
     /**
      * @see GeocellQueryEngine#query(GeocellQuery, String, java.util.List, java.lang.Class)
      */
     @Override
     public <T> List<T> query(GeocellQuery baseQuery, String orderBy, List<String> curGeocellsUnique, Class<T> entityClass) {
+        // execute and return list
+        return buildQuery(baseQuery, orderBy, curGeocellsUnique, entityClass).list();
+    }
+
+    /**
+     * The query is started on the calling thread: Objectify's <code>iterable()</code> issues the
+     * datastore query asynchronously, and the results are read on the executor, or on the calling thread
+     * when the engine has none.
+     *
+     * @see AsyncGeocellQueryEngine#queryAsync(GeocellQuery, String, java.util.List, java.lang.Class)
+     */
+    @Override
+    public <T> CompletableFuture<List<T>> queryAsync(GeocellQuery baseQuery, String orderBy, List<String> curGeocellsUnique, Class<T> entityClass) {
+        final Iterable<T> pending = buildQuery(baseQuery, orderBy, curGeocellsUnique, entityClass).iterable();
+        if (executor == null) {
+            return CompletableFuture.completedFuture(read(pending));
+        }
+        return CompletableFuture.supplyAsync(() -> read(pending), executor);
+    }
+
+    /**
+     * Without executor, the results are left unread until the search needs them, so that its speculative
+     * queries are in flight together.
+     */
+    @Override
+    public <T> CompletableFuture<List<T>> queryDeferred(GeocellQuery baseQuery, String orderBy, List<String> curGeocellsUnique, Class<T> entityClass) {
+        if (executor != null) {
+            return queryAsync(baseQuery, orderBy, curGeocellsUnique, entityClass);
+        }
+        final Iterable<T> pending = buildQuery(baseQuery, orderBy, curGeocellsUnique, entityClass).iterable();
+        return new DeferredQueryEngine.Results<T>(() -> read(pending));
+    }
+
+    /**
+     * @return the results of a started query
+     */
+    <T> List<T> read(Iterable<T> pending) {
+        List<T> results = new ArrayList<T>();
+        for (T entity : pending) {
+            results.add(entity);
+        }
+        return results;
+    }
+
+    /**
+     * @return the Objectify query of the entities in the given cells
+     */
+    protected <T> Query<T> buildQuery(GeocellQuery baseQuery, String orderBy, List<String> curGeocellsUnique, Class<T> entityClass) {
 
         Query<T> ofyQuery = ofy().load().type(entityClass);
 
@@ -69,7 +147,6 @@ public class ObjectifyGeocellQueryEngine implements GeocellQueryEngine {
             ofyQuery = ofyQuery.order(orderBy);
         }
 
-        // execute and return list
-        return ofyQuery.list();
+        return ofyQuery;
     }
 }
\ No newline at end of file
@@ -0,0 +1,190 @@
+package com.ncalderini.geocell;
+
+import com.googlecode.objectify.Result;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.googlecode.objectify.ObjectifyService.ofy;
+
+/**
+ * Saves geocell-indexed Objectify entities in batches.
+ *
+ * The <code>@Geocells</code> field of each entity is filled from its <code>@Location</code> field (or
+ * LocationCapable location), then the entities are saved with asynchronous <code>ofy().save().entities()</code>
+ * calls of at most <code>batchSize</code> entities. At most <code>maxPendingBatches</code> batches are in flight:
+ * when the limit is reached, the writer waits for the oldest one to complete before sending the next.
+ *
+ * Objectify keeps every saved entity in the session cache of the current context. The writer clears the
+ * session each time a batch completes, so that the entities it holds are those of the pending batches only,
+ * whatever the number of entities written. Entities loaded in the same context before {@link #save(Iterable)}
+ * are cleared too: load them again afterwards (or save from a dedicated context) if they are still needed.
+ * The iterable itself should not hold all the entities either, e.g. iterate a query rather than a list.
+ *
+ * When searches go through a {@link CachingGeocellQueryEngine}, give it to the writer: the cells of the
+ * entities of each batch are invalidated once the batch is saved. The cells of the previous location of a
+ * moved entity are not known to the writer, and must be invalidated by the caller.
+ *
+ * Like every Objectify call, {@link #save(Iterable)} must run within an Objectify context.
+ *
+ * @see ObjectifyGeocellQueryEngine
+ */
+public class ObjectifyGeocellWriter {
+
+    // Maximum number of entities of a datastore batch put.
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    public static final int DEFAULT_MAX_PENDING_BATCHES = 4;
+
+    private static final Logger logger = GeocellLogger.get();
+
+    private final int batchSize;
+    private final int maxPendingBatches;
+    private final CachingGeocellQueryEngine cache;
+
+    /**
+     * Creates a writer with the default batch size and number of pending batches.
+     */
+    public ObjectifyGeocellWriter() {
+        this(DEFAULT_BATCH_SIZE, DEFAULT_MAX_PENDING_BATCHES);
+    }
+
+    /**
+     * @param batchSize the maximum number of entities saved by a single call
+     * @param maxPendingBatches the maximum number of batches being saved at the same time
+     */
+    public ObjectifyGeocellWriter(int batchSize, int maxPendingBatches) {
+        this(batchSize, maxPendingBatches, null);
+    }
+
+    /**
+     * @param batchSize the maximum number of entities saved by a single call
+     * @param maxPendingBatches the maximum number of batches being saved at the same time
+     * @param cache the cache whose cells are invalidated as the entities are saved, may be null
+     */
+    public ObjectifyGeocellWriter(int batchSize, int maxPendingBatches, CachingGeocellQueryEngine cache) {
+        if (batchSize < 1 || maxPendingBatches < 1) {
+            throw new IllegalArgumentException("batchSize and maxPendingBatches must be positive");
+        }
+        this.batchSize = batchSize;
+        this.maxPendingBatches = maxPendingBatches;
+        this.cache = cache;
+    }
+
+    /**
+     * Fills the geocells of the entities and saves them, returning once all of them are saved.
+     *
+     * @param entities entities having a <code>@Location</code> (or implementing LocationCapable) and a <code>@Geocells</code> field
+     * @return the timings of the batches, in the order they were sent
+     */
+    public <T> List<BatchTiming> save(Iterable<T> entities) {
+        List<BatchTiming> timings = new ArrayList<BatchTiming>();
+        ArrayDeque<PendingBatch> pending = new ArrayDeque<PendingBatch>(maxPendingBatches);
+        Iterator<T> iterator = entities.iterator();
+        while (iterator.hasNext()) {
+            List<T> batch = new ArrayList<T>(batchSize);
+            while (batch.size() < batchSize && iterator.hasNext()) {
+                batch.add(iterator.next());
+            }
+
+            long start = System.nanoTime();
+            GeocellIndexer.index(batch);
+            long indexed = System.nanoTime();
+
+            // back-pressure: wait for the oldest batch before sending a new one
+            if (pending.size() == maxPendingBatches) {
+                timings.add(complete(pending.poll()));
+            }
+            pending.add(new PendingBatch(batch, indexed - start, indexed, ofy().save().entities(batch)));
+        }
+        while (!pending.isEmpty()) {
+            timings.add(complete(pending.poll()));
+        }
+        return timings;
+    }
+
+    private BatchTiming complete(PendingBatch batch) {
+        BatchTiming timing = batch.complete();
+        // the saved entities are no longer needed in the session cache
+        ofy().clear();
+        if (cache != null) {
+            Set<String> cells = new HashSet<String>();
+            for (Object entity : batch.entities) {
+                cells.addAll(GeocellUtils.getIndexedGeocells(entity));
+            }
+            cache.invalidateCells(cells);
+        }
+        return timing;
+    }
+
+    /**
+     * Timing of a batch.
+     */
+    public static final class BatchTiming {
+        private final int size;
+        private final long geocellsNanos;
+        private final long saveNanos;
+
+        BatchTiming(int size, long geocellsNanos, long saveNanos) {
+            this.size = size;
+            this.geocellsNanos = geocellsNanos;
+            this.saveNanos = saveNanos;
+        }
+
+        /**
+         * @return the number of entities of the batch
+         */
+        public int getSize() {
+            return size;
+        }
+
+        /**
+         * @return the time spent computing the geocells of the batch, in nanoseconds
+         */
+        public long getGeocellsNanos() {
+            return geocellsNanos;
+        }
+
+        /**
+         * @return the time from sending the batch to the writer seeing it saved, in nanoseconds
+         * (an upper bound of the save latency, as the writer only waits when it has to)
+         */
+        public long getSaveNanos() {
+            return saveNanos;
+        }
+
+        @Override
+        public String toString() {
+            return size + " entities, geocells " + geocellsNanos / 1000 + "us, save " + saveNanos / 1000 + "us";
+        }
+    }
+
+    private static final class PendingBatch {
+        private final List<?> entities;
+        private final long geocellsNanos;
+        private final long sentAt;
+        private final Result<?> result;
+
+        PendingBatch(List<?> entities, long geocellsNanos, long sentAt, Result<?> result) {
+            this.entities = entities;
+            this.geocellsNanos = geocellsNanos;
+            this.sentAt = sentAt;
+            this.result = result;
+        }
+
+        BatchTiming complete() {
+            result.now();
+            BatchTiming timing = new BatchTiming(entities.size(), geocellsNanos, System.nanoTime() - sentAt);
+            if (logger.isLoggable(Level.FINE)) {
+                logger.log(Level.FINE, "Saved batch: " + timing);
+            }
+            return timing;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.ncalderini.geocell;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.cmd.Query;
+import com.ncalderini.geocell.model.GeocellQuery;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import static com.googlecode.objectify.ObjectifyService.ofy;
+
+/**
+ * GeocellQueryEngine running the geocell queries as projection queries: the entities returned only hold
+ * their key and location, so the searches filter the candidates by distance without moving the payload of
+ * the entities (nor their geocells) over the network. The entities kept by the search are then loaded in
+ * a single batch, through the Objectify session cache, with {@link #load(SearchResults)}:
+ * <pre>
+ * ObjectifyProjectionQueryEngine queryEngine = new ObjectifyProjectionQueryEngine();
+ * SearchResults&lt;MyEntity&gt; results = queryEngine.load(GeocellManager.nearestSearch(center, 10, 0, 0,
+ *         MyEntity.class, null, null, queryEngine, GeocellManager.MAX_GEOCELL_RESOLUTION));
+ * </pre>
+ *
+ * The bytes moved and deserialized drop in proportion to the candidates discarded by the search, at the
+ * cost of a second round trip. Projection queries need the latitude and longitude properties of the
+ * <code>@Location</code> field (<code>location.latitude</code> and <code>location.longitude</code> for a
+ * field named location) to be indexed, and a composite index on the geocells, the base query properties
+ * and both projected properties. Projected properties can't be used in the base query.
+ *
+ * @see ObjectifyGeocellQueryEngine
+ */
+public class ObjectifyProjectionQueryEngine extends ObjectifyGeocellQueryEngine {
+
+    private final String[] projection;
+
+    /**
+     * Creates an engine projecting the latitude and longitude of the <code>@Location</code> field, whose
+     * asynchronous queries are read on the calling thread.
+     */
+    public ObjectifyProjectionQueryEngine() {
+        this.projection = null;
+    }
+
+    /**
+     * Creates an engine projecting the latitude and longitude of the <code>@Location</code> field.
+     *
+     * @param executor the executor used to wait for the results of asynchronous queries
+     * @see ObjectifyGeocellQueryEngine#ObjectifyGeocellQueryEngine(Executor)
+     */
+    public ObjectifyProjectionQueryEngine(Executor executor) {
+        this(executor, (String[]) null);
+    }
+
+    /**
+     * @param executor the executor used to wait for the results of asynchronous queries
+     * @param projection the properties to project, e.g. for entities implementing
+     *                   {@link com.ncalderini.geocell.model.LocationCapable}; null for the latitude and
+     *                   longitude of the <code>@Location</code> field
+     */
+    public ObjectifyProjectionQueryEngine(Executor executor, String... projection) {
+        super(executor);
+        this.projection = projection == null ? null : projection.clone();
+    }
+
+    /**
+     * @return the entities in the given cells, holding only their key and location
+     * @see GeocellQueryEngine#query(GeocellQuery, String, java.util.List, java.lang.Class)
+     */
+    @Override
+    public <T> List<T> query(GeocellQuery baseQuery, String orderBy, List<String> curGeocellsUnique, Class<T> entityClass) {
+        return distinct(super.query(baseQuery, orderBy, curGeocellsUnique, entityClass));
+    }
+
+    // the asynchronous queries read their results here
+    @Override
+    <T> List<T> read(Iterable<T> pending) {
+        return distinct(super.read(pending));
+    }
+
+    @Override
+    protected <T> Query<T> buildQuery(GeocellQuery baseQuery, String orderBy, List<String> curGeocellsUnique, Class<T> entityClass) {
+        String[] fields = projection;
+        if (fields == null) {
+            String location = GeocellUtils.getLocationFieldName(entityClass);
+            fields = new String[] {location + ".latitude", location + ".longitude"};
+        }
+        return super.buildQuery(baseQuery, orderBy, curGeocellsUnique, entityClass).project(fields);
+    }
+
+    // A projection query returns an entity once per matching value of the geocells (e.g. a cell and its parent).
+    private static <T> List<T> distinct(List<T> results) {
+        Map<Object, T> merged = new LinkedHashMap<Object, T>();
+        for (T entity : results) {
+            String key = GeocellUtils.getKeyString(entity);
+            merged.put(key == null ? new Object() : key, entity);
+        }
+        return merged.size() == results.size() ? results : new ArrayList<T>(merged.values());
+    }
+
+    /**
+     * Loads the full entities of projected entities, in one batch.
+     *
+     * @param projected entities returned by a search using this engine
+     * @return the full entities, in the same order; the entities deleted since the search are left out
+     */
+    public <T> List<T> load(List<T> projected) {
+        List<Key<T>> keys = keys(projected);
+        Map<Key<T>, T> loaded = ofy().load().keys(keys);
+        List<T> results = new ArrayList<T>(projected.size());
+        for (Key<T> key : keys) {
+            // keys of deleted entities are missing from the loaded map
+            T entity = loaded.get(key);
+            if (entity != null) {
+                results.add(entity);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Loads the full entities of the results of a search using this engine, in one batch.
+     *
+     * @param results the results of a search using this engine
+     * @return the same results with the full entities, and the distances still aligned; the entities deleted
+     * since the search are left out
+     */
+    public <T> SearchResults<T> load(SearchResults<T> results) {
+        List<T> projected = results.getResults();
+        List<Double> distances = results.getDistances();
+        List<Key<T>> keys = keys(projected);
+        Map<Key<T>, T> loaded = ofy().load().keys(keys);
+        List<T> entities = new ArrayList<T>(projected.size());
+        List<Double> entityDistances = distances == null ? null : new ArrayList<Double>(projected.size());
+        for (int i = 0; i < keys.size(); i++) {
+            T entity = loaded.get(keys.get(i));
+            if (entity == null) {
+                continue;
+            }
+            entities.add(entity);
+            if (entityDistances != null && i < distances.size()) {
+                entityDistances.add(distances.get(i));
+            }
+        }
+        return new SearchResults<T>(entities, entityDistances, results.getLastResolution(), results.getCursor(), results.getStats());
+    }
+
+    private static <T> List<Key<T>> keys(List<T> projected) {
+        List<Key<T>> keys = new ArrayList<Key<T>>(projected.size());
+        for (T entity : projected) {
+            keys.add(Key.create(entity));
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,468 @@
+package com.ncalderini.geocell;
+
+import com.ncalderini.geocell.model.BoundingBox;
+import com.ncalderini.geocell.model.Point;
+
+/**
+ * Utils class to compute geocells packed into a primitive <code>long</code>.
+ *
+ * A packed geocell holds the same information as its hexadecimal string form
+ * (see {@link GeocellManager}) without any allocation:
+ *
+ * <pre>
+ *  bit 63                                                 bit 12  bit 3   bit 0
+ *  +------+------+------+-- ... --+-------+---------------------+---------+
+ *  | c[0] | c[1] | c[2] |         | c[12] |       unused (0)    |   res   |
+ *  +------+------+------+-- ... --+-------+---------------------+---------+
+ * </pre>
+ *
+ * Each 4-bit nibble holds one geocell character (level), left aligned, so that
+ * unused levels are zero. The resolution (0 to 13) is stored in the 4 lowest bits.
+ * With this layout, comparing two packed cells with {@link Long#compareUnsigned(long, long)}
+ * gives the same order as comparing their string forms, and all the descendants
+ * of a cell form a contiguous range (see {@link #rangeMin(long)} and {@link #rangeMax(long)}).
+ *
+ * The characters of a geocell interleave the bits of the cell's (x, y) position in
+ * the grid of its resolution (y bit first), so a packed cell is also a Morton code:
+ * {@link #x(long)}, {@link #y(long)} and {@link #fromXY(int, int, int)} convert between both.
+ *
+ * Conversion to and from the string form is lossless: <code>toString(fromString(cell))</code>
+ * is <code>cell</code> for every valid geocell, so geocells stored in <code>@Geocells</code>
+ * fields stay compatible.
+ *
+ */
+public final class PackedGeocellUtils {
+
+    // Maximum resolution that can be packed: 13 levels of 4 bits plus the resolution field.
+    public static final int MAX_RESOLUTION = GeocellManager.MAX_GEOCELL_RESOLUTION;
+
+    // Value returned when a cell does not exist (i.e. adjacent past the poles).
+    public static final long NO_CELL = -1L;
+
+    // The root cell (resolution 0), containing the whole world.
+    public static final long ROOT = 0L;
+
+    private static final int RESOLUTION_BITS = 4;
+    private static final long RESOLUTION_MASK = (1L << RESOLUTION_BITS) - 1;
+    private static final long DIGITS_MASK = ~RESOLUTION_MASK;
+
+    // Number of grid positions along one axis at the maximum resolution (4^13).
+    private static final int MAX_GRID = 1 << (2 * MAX_RESOLUTION);
+
+    private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+
+    private PackedGeocellUtils() {
+        // no instantiation allowed
+    }
+
+    /**
+     * @param cell a packed geocell
+     * @return the resolution (number of characters) of the cell
+     */
+    public static int resolution(long cell) {
+        return (int) (cell & RESOLUTION_MASK);
+    }
+
+    /**
+     * Returns whether or not the given long is a valid packed geocell.
+     * @param cell
+     * @return whether or not the given long is a valid packed geocell.
+     */
+    public static boolean isValid(long cell) {
+        int resolution = resolution(cell);
+        if (resolution > MAX_RESOLUTION) {
+            return false;
+        }
+        // digits below the resolution must be zero
+        return (cell & DIGITS_MASK & ~prefixMask(resolution)) == 0;
+    }
+
+    /**
+     * Packs a geocell string.
+     *
+     * @param cell the geocell string, of at most {@link #MAX_RESOLUTION} characters.
+     * @return the packed geocell
+     * @throws IllegalArgumentException if the string is not a valid geocell
+     */
+    public static long fromString(String cell) {
+        int length = cell.length();
+        if (length > MAX_RESOLUTION) {
+            throw new IllegalArgumentException("Geocell resolution must be inferior to " + (MAX_RESOLUTION + 1) + " but was " + length);
+        }
+        long packed = 0;
+        for (int i = 0; i < length; i++) {
+            int digit = Character.digit(cell.charAt(i), 16);
+            if (digit < 0) {
+                throw new IllegalArgumentException("Invalid geocell " + cell);
+            }
+            packed |= (long) digit << shift(i + 1);
+        }
+        return packed | length;
+    }
+
+    /**
+     * Unpacks a geocell into its string form.
+     *
+     * @param cell the packed geocell
+     * @return the geocell string, or null if cell is {@link #NO_CELL}
+     */
+    public static String toString(long cell) {
+        if (cell == NO_CELL) {
+            return null;
+        }
+        int resolution = resolution(cell);
+        char[] chars = new char[resolution];
+        for (int i = 0; i < resolution; i++) {
+            chars[i] = HEX_CHARS[digit(cell, i + 1)];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @param cell the packed geocell
+     * @param level the level, from 1 to the resolution of the cell
+     * @return the 4x4 grid position (0 to 15) of the cell at the given level
+     */
+    public static int digit(long cell, int level) {
+        return (int) (cell >>> shift(level)) & 0xF;
+    }
+
+    /**
+     * Computes the geocell containing the given point to the given resolution.
+     *
+     * @param point the point to compute the cell for
+     * @param resolution the resolution of the cell to compute
+     * @return the packed geocell containing the given point
+     */
+    public static long compute(Point point, int resolution) {
+        return compute(point.getLatitude(), point.getLongitude(), resolution);
+    }
+
+    /**
+     * Computes the geocell containing the given coordinates to the given resolution.
+     *
+     * @param latitude
+     * @param longitude
+     * @param resolution
+     * @return the packed geocell containing the given coordinates
+     */
+    public static long compute(double latitude, double longitude, int resolution) {
+        return parent(computeMax(latitude, longitude), resolution);
+    }
+
+    /**
+     * Computes the geocell of maximum resolution containing the given coordinates.
+     *
+     * @param latitude
+     * @param longitude
+     * @return the packed geocell of resolution {@link #MAX_RESOLUTION}
+     */
+    public static long computeMax(double latitude, double longitude) {
+        return fromXY(quantizeLongitude(longitude), quantizeLatitude(latitude), MAX_RESOLUTION);
+    }
+
+    /**
+     * @param longitude
+     * @return the column of the given longitude in the grid of maximum resolution
+     */
+    static int quantizeLongitude(double longitude) {
+        return quantize((longitude - GeocellUtils.MIN_LONGITUDE) / (GeocellUtils.MAX_LONGITUDE - GeocellUtils.MIN_LONGITUDE));
+    }
+
+    /**
+     * @param latitude
+     * @return the row of the given latitude in the grid of maximum resolution
+     */
+    static int quantizeLatitude(double latitude) {
+        return quantize((latitude - GeocellUtils.MIN_LATITUDE) / (GeocellUtils.MAX_LATITUDE - GeocellUtils.MIN_LATITUDE));
+    }
+
+    private static int quantize(double fraction) {
+        int position = (int) Math.floor(fraction * MAX_GRID);
+        if (position < 0) {
+            return 0;
+        }
+        return Math.min(position, MAX_GRID - 1);
+    }
+
+    /**
+     * @param cell the packed geocell
+     * @return the parent of the cell, or the cell itself if it is the root cell
+     */
+    public static long parent(long cell) {
+        int resolution = resolution(cell);
+        return resolution == 0 ? cell : parent(cell, resolution - 1);
+    }
+
+    /**
+     * @param cell the packed geocell
+     * @param resolution the resolution of the ancestor, inferior or equal to the resolution of the cell
+     * @return the ancestor of the cell at the given resolution
+     */
+    public static long parent(long cell, int resolution) {
+        if (resolution > resolution(cell) || resolution < 0) {
+            throw new IllegalArgumentException("Invalid parent resolution " + resolution + " for cell of resolution " + resolution(cell));
+        }
+        return (cell & prefixMask(resolution)) | resolution;
+    }
+
+    /**
+     * @param cell the packed geocell
+     * @param digit the 4x4 grid position (0 to 15) of the child
+     * @return the child of the cell at the given grid position
+     */
+    public static long child(long cell, int digit) {
+        int resolution = resolution(cell) + 1;
+        if (resolution > MAX_RESOLUTION) {
+            throw new IllegalArgumentException("Cell is already at max resolution");
+        }
+        return (cell & DIGITS_MASK) | ((long) (digit & 0xF) << shift(resolution)) | resolution;
+    }
+
+    /**
+     * @param cell the packed geocell
+     * @param x the column (0 to 3) of the child in the 4x4 grid
+     * @param y the row (0 to 3) of the child in the 4x4 grid
+     * @return the child of the cell at the given grid position
+     */
+    public static long child(long cell, int x, int y) {
+        return child(cell, (y & 2) << 2 | (x & 2) << 1 | (y & 1) << 1 | (x & 1));
+    }
+
+    /**
+     * Returns whether or not the given cell contains (or is equal to) another cell.
+     *
+     * @param cell the packed geocell
+     * @param other another packed geocell
+     * @return whether or not other is cell or one of its descendants
+     */
+    public static boolean contains(long cell, long other) {
+        int resolution = resolution(cell);
+        return resolution <= resolution(other) && ((cell ^ other) & prefixMask(resolution)) == 0;
+    }
+
+    /**
+     * Returns whether or not the given cell contains the given point.
+     *
+     * @param cell the packed geocell
+     * @param point
+     * @return whether or not the given cell contains the given point.
+     */
+    public static boolean containsPoint(long cell, Point point) {
+        return contains(cell, computeMax(point.getLatitude(), point.getLongitude()));
+    }
+
+    /**
+     * @param cell the packed geocell
+     * @return the smallest packed geocell of maximum resolution contained in the cell
+     */
+    public static long rangeMin(long cell) {
+        return (cell & DIGITS_MASK) | MAX_RESOLUTION;
+    }
+
+    /**
+     * @param cell the packed geocell
+     * @return the largest packed geocell of maximum resolution contained in the cell
+     */
+    public static long rangeMax(long cell) {
+        return (cell & DIGITS_MASK) | (prefixMask(MAX_RESOLUTION) & ~prefixMask(resolution(cell))) | MAX_RESOLUTION;
+    }
+
+    /**
+     * @param cell the packed geocell
+     * @return the column of the cell in the grid of its resolution (0 to 4^resolution - 1)
+     */
+    public static int x(long cell) {
+        return compact(morton(cell));
+    }
+
+    /**
+     * @param cell the packed geocell
+     * @return the row of the cell in the grid of its resolution (0 to 4^resolution - 1)
+     */
+    public static int y(long cell) {
+        return compact(morton(cell) >>> 1);
+    }
+
+    /**
+     * Builds a packed geocell from its position in the grid of the given resolution.
+     *
+     * @param x the column, from west to east (0 to 4^resolution - 1)
+     * @param y the row, from south to north (0 to 4^resolution - 1)
+     * @param resolution
+     * @return the packed geocell
+     */
+    public static long fromXY(int x, int y, int resolution) {
+        if (resolution == 0) {
+            return ROOT;
+        }
+        long morton = spread(x) | (spread(y) << 1);
+        return (morton << (64 - 4 * resolution)) | resolution;
+    }
+
+    /**
+     * Calculates the geocell adjacent to the given cell in the given direction.
+     *
+     * @param cell the packed geocell
+     * @param dx -1 for West, 1 for East, 0 otherwise
+     * @param dy -1 for South, 1 for North, 0 otherwise
+     * @return the adjacent packed geocell, or {@link #NO_CELL} if there is no such cell.
+     * Wrapping is done horizontally but not vertically.
+     */
+    public static long adjacent(long cell, int dx, int dy) {
+        int resolution = resolution(cell);
+        int gridSize = 1 << (2 * resolution);
+        int y = y(cell) + dy;
+        if (y < 0 || y >= gridSize) {
+            return NO_CELL;
+        }
+        int x = (x(cell) + dx) & (gridSize - 1);
+        return fromXY(x, y, resolution);
+    }
+
+    /**
+     * Calculates all of the given geocell's adjacent geocells, in the same order as
+     * {@link GeocellUtils#allAdjacents(String)}: NW, N, NE, E, SE, S, SW, W.
+     *
+     * @param cell the packed geocell
+     * @param result an array of at least 8 elements, receiving the adjacent cells
+     * or {@link #NO_CELL} values.
+     */
+    public static void allAdjacents(long cell, long[] result) {
+        result[0] = adjacent(cell, -1, 1);
+        result[1] = adjacent(cell, 0, 1);
+        result[2] = adjacent(cell, 1, 1);
+        result[3] = adjacent(cell, 1, 0);
+        result[4] = adjacent(cell, 1, -1);
+        result[5] = adjacent(cell, 0, -1);
+        result[6] = adjacent(cell, -1, -1);
+        result[7] = adjacent(cell, -1, 0);
+    }
+
+    /**
+     * Computes the number of cells in the grid formed between two cells of the same resolution,
+     * as generated by {@link #interpolate(long, long)}.
+     *
+     * @param cellNE the Northeast packed geocell
+     * @param cellSW the Southwest packed geocell
+     * @return the exact number of cells in the grid
+     */
+    public static long interpolationCount(long cellNE, long cellSW) {
+        int resolution = checkSameResolution(cellNE, cellSW);
+        int gridSize = 1 << (2 * resolution);
+        long columns = ((x(cellNE) - x(cellSW)) & (gridSize - 1)) + 1;
+        return columns * rows(y(cellNE), y(cellSW), gridSize);
+    }
+
+    /**
+     * Calculates the grid of cells formed between two cells of the same resolution.
+     *
+     * The cells are listed row by row from the Southwest cell, each row from west to east.
+     * Like {@link GeocellUtils#interpolate(String, String)}, the rows wrap horizontally (when the
+     * Northeast cell is west of the Southwest cell) but stop at the North pole.
+     *
+     * @param cellNE the Northeast packed geocell
+     * @param cellSW the Southwest packed geocell
+     * @return the packed geocells of the grid
+     * @throws IllegalArgumentException if the grid has more cells than an array can hold
+     */
+    public static long[] interpolate(long cellNE, long cellSW) {
+        long count = interpolationCount(cellNE, cellSW);
+        if (count > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Too many cells to interpolate: " + count);
+        }
+        int resolution = resolution(cellNE);
+        int gridSize = 1 << (2 * resolution);
+        int west = x(cellSW);
+        int south = y(cellSW);
+        int columns = ((x(cellNE) - west) & (gridSize - 1)) + 1;
+        int rows = (int) rows(y(cellNE), south, gridSize);
+
+        long[] result = new long[(int) count];
+        int i = 0;
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                result[i++] = fromXY((west + column) & (gridSize - 1), south + row, resolution);
+            }
+        }
+        return result;
+    }
+
+    private static long rows(int north, int south, int gridSize) {
+        // past the North pole, rows stop at the top of the grid
+        return north >= south ? north - south + 1 : gridSize - south;
+    }
+
+    private static int checkSameResolution(long cell, long other) {
+        int resolution = resolution(cell);
+        if (resolution != resolution(other)) {
+            throw new IllegalArgumentException("Cells must have the same resolution: " + toString(cell) + ", " + toString(other));
+        }
+        return resolution;
+    }
+
+    /**
+     * Computes the rectangular boundaries of the given geocell into the given array.
+     *
+     * @param cell the packed geocell
+     * @param result an array of at least 4 elements, receiving north, east, south and west.
+     */
+    public static void computeBox(long cell, double[] result) {
+        int resolution = resolution(cell);
+        double lonSpan = (GeocellUtils.MAX_LONGITUDE - GeocellUtils.MIN_LONGITUDE) / (1 << (2 * resolution));
+        double latSpan = (GeocellUtils.MAX_LATITUDE - GeocellUtils.MIN_LATITUDE) / (1 << (2 * resolution));
+        int x = x(cell);
+        int y = y(cell);
+        result[0] = GeocellUtils.MIN_LATITUDE + latSpan * (y + 1);
+        result[1] = GeocellUtils.MIN_LONGITUDE + lonSpan * (x + 1);
+        result[2] = GeocellUtils.MIN_LATITUDE + latSpan * y;
+        result[3] = GeocellUtils.MIN_LONGITUDE + lonSpan * x;
+    }
+
+    /**
+     * Computes the rectangular boundaries (bounding box) of the given geocell.
+     *
+     * @param cell the packed geocell
+     * @return the bounding box of the geocell
+     */
+    public static BoundingBox computeBox(long cell) {
+        double[] box = new double[4];
+        computeBox(cell, box);
+        return new BoundingBox(box[0], box[1], box[2], box[3]);
+    }
+
+    private static int shift(int level) {
+        return 64 - 4 * level;
+    }
+
+    private static long prefixMask(int resolution) {
+        return resolution == 0 ? 0 : -1L << shift(resolution);
+    }
+
+    private static long morton(long cell) {
+        int resolution = resolution(cell);
+        return resolution == 0 ? 0 : cell >>> shift(resolution);
+    }
+
+    // Spreads the 26 lowest bits of value to the even bits of a long.
+    private static long spread(int value) {
+        long v = value & 0xFFFFFFFFL;
+        v = (v | (v << 16)) & 0x0000FFFF0000FFFFL;
+        v = (v | (v << 8)) & 0x00FF00FF00FF00FFL;
+        v = (v | (v << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        v = (v | (v << 2)) & 0x3333333333333333L;
+        v = (v | (v << 1)) & 0x5555555555555555L;
+        return v;
+    }
+
+    // Inverse of spread: gathers the even bits of a long.
+    private static int compact(long value) {
+        long v = value & 0x5555555555555555L;
+        v = (v | (v >>> 1)) & 0x3333333333333333L;
+        v = (v | (v >>> 2)) & 0x0F0F0F0F0F0F0F0FL;
+        v = (v | (v >>> 4)) & 0x00FF00FF00FF00FFL;
+        v = (v | (v >>> 8)) & 0x0000FFFF0000FFFFL;
+        v = (v | (v >>> 16)) & 0x00000000FFFFFFFFL;
+        return (int) v;
+    }
+}
@@ -0,0 +1,228 @@
+package com.ncalderini.geocell;
+
+import com.ncalderini.geocell.model.Point;
+import com.ncalderini.geocell.model.Tuple;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The ring expansion of a proximity search, starting from the cell containing the center.
+ *
+ * The currently-being-searched geocells:
+ * <ul>
+ * <li>start with the cell of max resolution containing the center,</li>
+ * <li>must always be of the same resolution,</li>
+ * <li>must always form a rectangular region,</li>
+ * <li>one of these must be equal to the current containing geocell.</li>
+ * </ul>
+ * A ring of one cell grows to two adjacent cells, then to four; after four cells, or when a
+ * ring yields no results, the search goes on with the parents of the current cells, up to the
+ * 16 top level cells.
+ *
+ * @see GeocellManager#proximitySearch(Point, int, double, double, Class, com.ncalderini.geocell.model.GeocellQuery, String, GeocellQueryEngine, int)
+ */
+final class ProximityExpansion {
+
+    private static final int[] NO_DIRECTION = {0, 0};
+
+    private static final List<String> TOP_LEVEL_CELLS = Collections.unmodifiableList(Arrays.asList(
+            "0", "1", "2", "3", "4", "5", "6", "7", "8", "9", "a", "b", "c", "d", "e", "f"));
+
+    private final Point center;
+    private String curContainingGeocell;
+    private List<String> curGeocells;
+    private List<Tuple<int[], Double>> sortedEdgesDistances;
+    private final Set<String> searchedCells;
+    private boolean done;
+
+    ProximityExpansion(Point center, int maxGeocellResolution) {
+        this.center = center;
+        this.curContainingGeocell = GeocellUtils.compute(center, maxGeocellResolution);
+        this.curGeocells = new ArrayList<String>();
+        this.curGeocells.add(curContainingGeocell);
+        this.sortedEdgesDistances = Collections.singletonList(new Tuple<int[], Double>(NO_DIRECTION, 0d));
+        this.searchedCells = new HashSet<String>();
+    }
+
+    /**
+     * Restores an expansion, e.g. from a {@link SearchCursor}.
+     */
+    ProximityExpansion(Point center, String curContainingGeocell, List<String> curGeocells, Set<String> searchedCells,
+                       double closestPossibleNextResultDist, boolean done) {
+        this.center = center;
+        this.curContainingGeocell = curContainingGeocell;
+        this.curGeocells = new ArrayList<String>(curGeocells);
+        this.sortedEdgesDistances = Collections.singletonList(new Tuple<int[], Double>(NO_DIRECTION, closestPossibleNextResultDist));
+        this.searchedCells = new HashSet<String>(searchedCells);
+        this.done = done;
+    }
+
+    private ProximityExpansion(ProximityExpansion other) {
+        this.center = other.center;
+        this.curContainingGeocell = other.curContainingGeocell;
+        this.curGeocells = new ArrayList<String>(other.curGeocells);
+        this.sortedEdgesDistances = other.sortedEdgesDistances;
+        this.searchedCells = new HashSet<String>(other.searchedCells);
+        this.done = other.done;
+    }
+
+    /**
+     * @return an independent copy of this expansion, e.g. to look ahead without changing this one
+     */
+    ProximityExpansion copy() {
+        return new ProximityExpansion(this);
+    }
+
+    Point getCenter() {
+        return center;
+    }
+
+    /**
+     * @return the cell of the current resolution containing the center
+     */
+    String getCurContainingGeocell() {
+        return curContainingGeocell;
+    }
+
+    /**
+     * @return whether there are cells left to search
+     */
+    boolean hasNext() {
+        return !curGeocells.isEmpty();
+    }
+
+    /**
+     * @return whether the current cells are the top level cells, i.e. the last ones to search
+     */
+    boolean isDone() {
+        return done;
+    }
+
+    /**
+     * @return the current cells (all of the same resolution)
+     */
+    List<String> getCurGeocells() {
+        return curGeocells;
+    }
+
+    /**
+     * @return the resolution of the current cells
+     */
+    int getResolution() {
+        return curGeocells.get(0).length();
+    }
+
+    /**
+     * @return the cells searched so far
+     */
+    Set<String> getSearchedCells() {
+        return searchedCells;
+    }
+
+    /**
+     * @return the shortest distance from the center to a point outside of the cells searched so far:
+     * no result closer than this can be found in the next cells.
+     */
+    double getClosestPossibleNextResultDistance() {
+        return sortedEdgesDistances.get(0).getSecond();
+    }
+
+    /**
+     * @return the current cells that were not searched yet
+     */
+    List<String> getUniqueCells() {
+        Set<String> curTempUnique = new LinkedHashSet<String>(curGeocells);
+        curTempUnique.removeAll(searchedCells);
+        return new ArrayList<String>(curTempUnique);
+    }
+
+    /**
+     * Records the current cells as searched.
+     */
+    void markSearched() {
+        searchedCells.addAll(curGeocells);
+    }
+
+    /**
+     * Moves to the next cells to search.
+     *
+     * @param hadResults whether searching the current cells returned any entity
+     */
+    void expand(boolean hadResults) {
+        sortedEdgesDistances = GeocellUtils.distanceSortedEdges(curGeocells, center);
+
+        if (!hadResults || curGeocells.size() == 4) {
+            /* Either no results (in which case we optimize by not looking at
+                    adjacents, go straight to the parent) or we've searched 4 adjacent
+                    geocells, in which case we should now search the parents of those
+                    geocells.*/
+            curContainingGeocell = curContainingGeocell.substring(0, Math.max(curContainingGeocell.length() - 1, 0));
+            if (curContainingGeocell.length() == 0) {
+                // final check - top level tiles
+                curGeocells = new ArrayList<String>(TOP_LEVEL_CELLS);
+                done = true;
+            } else {
+                List<String> oldCurGeocells = curGeocells;
+                curGeocells = new ArrayList<String>();
+                for (String cell : oldCurGeocells) {
+                    if (cell.length() > 0) {
+                        String newCell = cell.substring(0, cell.length() - 1);
+                        if (!curGeocells.contains(newCell)) {
+                            curGeocells.add(newCell);
+                        }
+                    }
+                }
+            }
+        } else if (curGeocells.size() == 1) {
+            // Get adjacent in one direction.
+            // TODO(romannurik): Watch for +/- 90 degree latitude edge case geocells.
+            for (Tuple<int[], Double> edgeDistance : sortedEdgesDistances) {
+                String edge = GeocellUtils.adjacent(curGeocells.get(0), edgeDistance.getFirst());
+
+                //we're at the edge of the world, search in a different direction
+                if (edge == null) {
+                    continue;
+                }
+
+                curGeocells.add(edge);
+                break;
+            }
+        } else if (curGeocells.size() == 2) {
+            // Get adjacents in perpendicular direction.
+            int nearestEdge[] = GeocellUtils.distanceSortedEdges(Arrays.asList(curContainingGeocell), center).get(0).getFirst();
+            int[] perpendicularNearestEdge = {0, 0};
+            if (nearestEdge[0] == 0) {
+                // Was vertical, perpendicular is horizontal.
+                for (Tuple<int[], Double> edgeDistance : sortedEdgesDistances) {
+                    if (edgeDistance.getFirst()[0] != 0) {
+                        perpendicularNearestEdge = edgeDistance.getFirst();
+                        break;
+                    }
+                }
+            } else {
+                // Was horizontal, perpendicular is vertical.
+                for (Tuple<int[], Double> edgeDistance : sortedEdgesDistances) {
+                    if (edgeDistance.getFirst()[0] == 0) {
+                        perpendicularNearestEdge = edgeDistance.getFirst();
+                        break;
+                    }
+                }
+            }
+            List<String> tempCells = new ArrayList<String>();
+            for (String cell : curGeocells) {
+                String adjacent = GeocellUtils.adjacent(cell, perpendicularNearestEdge);
+                //we're at the edge of the world
+                if (adjacent != null) {
+                    tempCells.add(adjacent);
+                }
+            }
+            curGeocells.addAll(tempCells);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.ncalderini.geocell;
+
+import com.ncalderini.geocell.model.GeocellQuery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Normalized identity of a geocell query, without its cells: entity class, base query
+ * filters and parameters, and order. Two queries with the same signature and cells return
+ * the same entities.
+ */
+final class QuerySignature {
+
+    private final Class<?> entityClass;
+    private final String baseQuery;
+    private final List<Object> parameters;
+    private final String orderBy;
+    private final int hashCode;
+
+    QuerySignature(Class<?> entityClass, GeocellQuery baseQuery, String orderBy) {
+        this.entityClass = entityClass;
+        if (baseQuery == null || baseQuery.getBaseQuery() == null || baseQuery.getBaseQuery().trim().isEmpty()) {
+            this.baseQuery = "";
+            this.parameters = Collections.emptyList();
+        } else {
+            this.baseQuery = baseQuery.getBaseQuery().trim();
+            // a copy: the hash code is computed once, later changes to the caller's list must not affect it
+            this.parameters = baseQuery.getParameters() == null
+                    ? Collections.emptyList() : Collections.unmodifiableList(new ArrayList<Object>(baseQuery.getParameters()));
+        }
+        this.orderBy = orderBy == null ? "" : orderBy.trim();
+        this.hashCode = 31 * (31 * (31 * entityClass.hashCode() + this.baseQuery.hashCode()) + parameters.hashCode())
+                + this.orderBy.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof QuerySignature)) {
+            return false;
+        }
+        QuerySignature other = (QuerySignature) o;
+        return hashCode == other.hashCode
+                && entityClass == other.entityClass
+                && baseQuery.equals(other.baseQuery)
+                && parameters.equals(other.parameters)
+                && orderBy.equals(other.orderBy);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        return entityClass.getSimpleName() + "[" + baseQuery + " " + parameters + " order " + orderBy + "]";
+    }
+}
@@ -0,0 +1,283 @@
+package com.ncalderini.geocell;
+
+import com.ncalderini.geocell.model.BoundingBox;
+import com.ncalderini.geocell.model.CostFunction;
+import com.ncalderini.geocell.model.DefaultCostFunction;
+import com.ncalderini.geocell.model.Region;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Computes the geocells to search for the entities located in a {@link Region}.
+ *
+ * <h3>Single resolution</h3>
+ * The region is refined one resolution at a time, starting from the whole world: the children of the
+ * cells crossing the region boundary are tested with {@link Region#relate(double, double, double, double)},
+ * the children of interior cells are interior too, and the cells outside the region are dropped.
+ * As in {@link GeocellManager#bestBboxSearchCells(com.ncalderini.geocell.model.BoundingBox, CostFunction)},
+ * the set of cells of the resolution having the lowest cost is chosen, among the sets having at most
+ * <code>maxCells</code> cells (the 16 cells of resolution 1 are always feasible).
+ *
+ * <h3>Mixed resolutions</h3>
+ * {@link #coverMixed(Region, int)} is not limited to cells of the same resolution: the largest cells
+ * crossing the region boundary are subdivided first, as long as the covering stays within the
+ * <code>maxCells</code> budget, so the covering ends up with coarse cells inside the region and fine
+ * cells along its edges. Full sets of 16 sibling cells are then merged into their parent.
+ * Entities are indexed at every resolution ({@link GeocellManager#generateGeoCell(com.ncalderini.geocell.model.Point)}),
+ * so such a covering can be queried in a single <code>geocells in</code> filter, and usually fetches fewer
+ * entities outside of thin or diagonal regions. It is used by
+ * {@link GeocellManager#regionSearchMixed(Region, int, Class, com.ncalderini.geocell.model.GeocellQuery, String, GeocellQueryEngine)}.
+ *
+ */
+public final class RegionCoverer {
+
+    // The maximum number of geocells to consider for a region search.
+    public static final int DEFAULT_MAX_CELLS = 300;
+
+    // The default budget of a mixed resolutions covering: the values of one datastore 'in' filter.
+    public static final int DEFAULT_MIXED_MAX_CELLS = 30;
+
+    private static final CostFunction DEFAULT_COST_FUNCTION = new DefaultCostFunction();
+
+    private static final int CHILDREN = GeocellUtils.GEOCELL_GRID_SIZE * GeocellUtils.GEOCELL_GRID_SIZE;
+
+    private RegionCoverer() {
+        // no instantiation allowed
+    }
+
+    /**
+     * @param region the region to cover
+     * @param costFunction the cost function used to choose the resolution, null for the default one
+     * @return the cells covering the region
+     */
+    public static GeocellCovering cover(Region region, CostFunction costFunction) {
+        return cover(region, DEFAULT_MAX_CELLS, costFunction);
+    }
+
+    /**
+     * @param region the region to cover
+     * @param maxCells the maximum number of cells of the covering
+     * @param costFunction the cost function used to choose the resolution, null for the default one
+     * @return the cells covering the region
+     */
+    public static GeocellCovering cover(Region region, int maxCells, CostFunction costFunction) {
+        if (maxCells < 1) {
+            throw new IllegalArgumentException("maxCells must be positive");
+        }
+        if (costFunction == null) {
+            costFunction = DEFAULT_COST_FUNCTION;
+        }
+
+        long[] cells = {PackedGeocellUtils.ROOT};
+        boolean[] interior = {false};
+        int count = 1;
+
+        double minCost = Double.MAX_VALUE;
+        GeocellCovering minCostCovering = null;
+        double[] box = new double[4];
+        BoundingBox bounds = region.getBoundingBox();
+
+        for (int resolution = 1; resolution <= GeocellManager.MAX_GEOCELL_RESOLUTION; resolution++) {
+            // every child of an interior cell is kept, only the children of boundary cells are tested
+            int interiorCount = 0;
+            for (int i = 0; i < count; i++) {
+                if (interior[i]) {
+                    interiorCount++;
+                }
+            }
+            if ((long) interiorCount * CHILDREN > maxCells) {
+                break;
+            }
+            long[] nextCells = new long[(int) Math.min((long) count * CHILDREN, maxCells + CHILDREN)];
+            boolean[] nextInterior = new boolean[nextCells.length];
+            int nextCount = 0;
+            for (int i = 0; i < count && nextCount <= maxCells; i++) {
+                for (int digit = 0; digit < CHILDREN; digit++) {
+                    long child = PackedGeocellUtils.child(cells[i], digit);
+                    boolean childInterior = interior[i];
+                    if (!childInterior) {
+                        PackedGeocellUtils.computeBox(child, box);
+                        Region.Relation relation = region.relate(box[0], box[1], box[2], box[3]);
+                        if (relation == Region.Relation.OUTSIDE) {
+                            continue;
+                        }
+                        childInterior = relation == Region.Relation.INSIDE;
+                    }
+                    nextCells[nextCount] = child;
+                    nextInterior[nextCount++] = childInterior;
+                }
+            }
+            if (nextCount == 0) {
+                // the region doesn't intersect any cell
+                return minCostCovering == null ? GeocellCovering.empty() : minCostCovering;
+            }
+            if (nextCount > maxCells && resolution > 1) {
+                break;
+            }
+            cells = nextCells;
+            interior = nextInterior;
+            count = nextCount;
+
+            double cost = costFunction.cost(count, resolution, bounds);
+            if (cost <= minCost) {
+                minCost = cost;
+                minCostCovering = new GeocellCovering(cells, interior, count);
+            } else {
+                if (minCostCovering == null) {
+                    minCostCovering = new GeocellCovering(cells, interior, count);
+                }
+                // Once the cost starts rising, we won't be able to do better, so abort.
+                break;
+            }
+        }
+        return minCostCovering;
+    }
+
+    /**
+     * @param region the region to cover
+     * @param maxCells the maximum number of cells of the covering, at least 16
+     * @return the cells covering the region, of mixed resolutions
+     */
+    public static GeocellCovering coverMixed(Region region, int maxCells) {
+        return coverMixed(region, maxCells, GeocellManager.MAX_GEOCELL_RESOLUTION);
+    }
+
+    /**
+     * @param region the region to cover
+     * @param maxCells the maximum number of cells of the covering, at least 16
+     * @param maxResolution the maximum resolution of the cells of the covering
+     * @return the cells covering the region, of mixed resolutions
+     */
+    public static GeocellCovering coverMixed(Region region, int maxCells, int maxResolution) {
+        if (maxCells < CHILDREN) {
+            throw new IllegalArgumentException("maxCells must be at least " + CHILDREN);
+        }
+        if (maxResolution < 1 || maxResolution > GeocellManager.MAX_GEOCELL_RESOLUTION) {
+            throw new IllegalArgumentException("Invalid max resolution " + maxResolution);
+        }
+        List<Long> cells = new ArrayList<Long>();
+        List<Boolean> interior = new ArrayList<Boolean>();
+        // Boundary cells, largest first then the ones with the fewest children intersecting the region.
+        PriorityQueue<Candidate> candidates = new PriorityQueue<Candidate>();
+        double[] box = new double[4];
+
+        Candidate root = new Candidate(PackedGeocellUtils.ROOT, region, box);
+        addChildren(root, region, maxResolution, cells, interior, candidates, box);
+        while (!candidates.isEmpty()) {
+            Candidate candidate = candidates.poll();
+            if (candidate.childCount == 0) {
+                // the region only touches the cell
+                continue;
+            }
+            if (cells.size() + candidates.size() + candidate.childCount <= maxCells) {
+                addChildren(candidate, region, maxResolution, cells, interior, candidates, box);
+            } else {
+                cells.add(candidate.cell);
+                interior.add(false);
+            }
+        }
+        if (cells.isEmpty()) {
+            return GeocellCovering.empty();
+        }
+
+        long[] packed = new long[cells.size()];
+        boolean[] packedInterior = new boolean[cells.size()];
+        for (int i = 0; i < packed.length; i++) {
+            packed[i] = cells.get(i);
+            packedInterior[i] = interior.get(i);
+        }
+        return mergeSiblings(packed, packedInterior);
+    }
+
+    private static void addChildren(Candidate candidate, Region region, int maxResolution, List<Long> cells,
+                                    List<Boolean> interior, PriorityQueue<Candidate> candidates, double[] box) {
+        for (int i = 0; i < candidate.childCount; i++) {
+            long child = candidate.children[i];
+            if (candidate.childInterior[i] || PackedGeocellUtils.resolution(child) == maxResolution) {
+                cells.add(child);
+                interior.add(candidate.childInterior[i]);
+            } else {
+                candidates.add(new Candidate(child, region, box));
+            }
+        }
+    }
+
+    // Replaces full sets of 16 siblings by their parent, repeatedly (but never by the root cell).
+    private static GeocellCovering mergeSiblings(long[] cells, boolean[] interior) {
+        int count = cells.length;
+        boolean merged = true;
+        while (merged) {
+            merged = false;
+            int[] order = CellOrder.sort(cells, count);
+
+            long[] nextCells = new long[count];
+            boolean[] nextInterior = new boolean[count];
+            int nextCount = 0;
+            for (int i = 0; i < count; ) {
+                long cell = cells[order[i]];
+                int resolution = PackedGeocellUtils.resolution(cell);
+                // the cells are disjoint: 16 consecutive cells of the same resolution and parent are all its
+                // children (the first and last ones alone are not enough, descendants of the others may lie between)
+                if (resolution > 1 && i + CHILDREN <= count) {
+                    long parent = PackedGeocellUtils.parent(cell);
+                    boolean allChildren = true;
+                    boolean allInterior = true;
+                    for (int j = i; j < i + CHILDREN && allChildren; j++) {
+                        long sibling = cells[order[j]];
+                        allChildren = PackedGeocellUtils.resolution(sibling) == resolution && PackedGeocellUtils.parent(sibling) == parent;
+                        allInterior &= interior[order[j]];
+                    }
+                    if (allChildren) {
+                        nextCells[nextCount] = parent;
+                        nextInterior[nextCount++] = allInterior;
+                        i += CHILDREN;
+                        merged = true;
+                        continue;
+                    }
+                }
+                nextCells[nextCount] = cell;
+                nextInterior[nextCount++] = interior[order[i]];
+                i++;
+            }
+            cells = nextCells;
+            interior = nextInterior;
+            count = nextCount;
+        }
+        return new GeocellCovering(cells, interior, count);
+    }
+
+    /**
+     * A cell crossing the region boundary, with its children intersecting the region.
+     */
+    private static final class Candidate implements Comparable<Candidate> {
+        private final long cell;
+        private final int resolution;
+        private final long[] children = new long[CHILDREN];
+        private final boolean[] childInterior = new boolean[CHILDREN];
+        private int childCount;
+
+        Candidate(long cell, Region region, double[] box) {
+            this.cell = cell;
+            this.resolution = PackedGeocellUtils.resolution(cell);
+            for (int digit = 0; digit < CHILDREN; digit++) {
+                long child = PackedGeocellUtils.child(cell, digit);
+                PackedGeocellUtils.computeBox(child, box);
+                Region.Relation relation = region.relate(box[0], box[1], box[2], box[3]);
+                if (relation != Region.Relation.OUTSIDE) {
+                    children[childCount] = child;
+                    childInterior[childCount++] = relation == Region.Relation.INSIDE;
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            if (resolution != other.resolution) {
+                return resolution < other.resolution ? -1 : 1;
+            }
+            return childCount < other.childCount ? -1 : (childCount == other.childCount ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package com.ncalderini.geocell;
+
+import com.ncalderini.geocell.model.Point;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Opaque continuation of a paged nearest search.
+ *
+ * It captures where the previous page stopped: the cells already searched, the current ring of the
+ * expansion, the distance and key of the last returned entity, and the few cells holding candidates
+ * that were fetched but not returned yet. The next page re-fetches only those cells and then continues
+ * the expansion, so each page costs about the same number of queries.
+ *
+ * A cursor is serializable, and can be passed around as a string with {@link #toWebSafeString()}. It is
+ * serialized as that string, so a deserialized cursor is validated as by {@link #fromWebSafeString(String)}.
+ *
+ * @see GeocellManager#nearestSearchPage(Point, int, double, Class, com.ncalderini.geocell.model.GeocellQuery, String, GeocellQueryEngine, int, SearchCursor)
+ */
+public final class SearchCursor implements Serializable {
+
+    private static final long serialVersionUID = 2L;
+
+    private static final int VERSION = 1;
+
+    // Upper bound of the number of cells of each list of a cursor: an expansion searches at most 4 cells
+    // per resolution, plus the 16 top level cells.
+    private static final int MAX_CELLS = 256;
+
+    private final double latitude;
+    private final double longitude;
+    private final double lastDistance;
+    private final String lastKey;
+    private final String curContainingGeocell;
+    private final List<String> curGeocells;
+    private final long[] searchedCells;
+    private final double closestPossibleNextResultDist;
+    private final boolean done;
+    private final boolean expansionFinished;
+    private final List<String> frontierCells;
+
+    SearchCursor(ProximityExpansion expansion, boolean expansionFinished, double lastDistance, String lastKey,
+                 List<String> frontierCells) {
+        this.latitude = expansion.getCenter().getLatitude();
+        this.longitude = expansion.getCenter().getLongitude();
+        this.lastDistance = lastDistance;
+        this.lastKey = lastKey;
+        this.curContainingGeocell = expansion.getCurContainingGeocell();
+        this.curGeocells = new ArrayList<String>(expansion.getCurGeocells());
+        this.searchedCells = new long[expansion.getSearchedCells().size()];
+        int i = 0;
+        for (String cell : expansion.getSearchedCells()) {
+            this.searchedCells[i++] = PackedGeocellUtils.fromString(cell);
+        }
+        this.closestPossibleNextResultDist = expansion.getClosestPossibleNextResultDistance();
+        this.done = expansion.isDone();
+        this.expansionFinished = expansionFinished;
+        this.frontierCells = new ArrayList<String>(frontierCells);
+    }
+
+    private SearchCursor(double latitude, double longitude, double lastDistance, String lastKey, String curContainingGeocell,
+                         List<String> curGeocells, long[] searchedCells, double closestPossibleNextResultDist, boolean done,
+                         boolean expansionFinished, List<String> frontierCells) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.lastDistance = lastDistance;
+        this.lastKey = lastKey;
+        this.curContainingGeocell = curContainingGeocell;
+        this.curGeocells = curGeocells;
+        this.searchedCells = searchedCells;
+        this.closestPossibleNextResultDist = closestPossibleNextResultDist;
+        this.done = done;
+        this.expansionFinished = expansionFinished;
+        this.frontierCells = frontierCells;
+    }
+
+    /**
+     * @param center the center of the search being continued
+     * @param maxGeocellResolution the max resolution of the search being continued
+     * @return the expansion of the search, as it was when the cursor was created
+     * @throws IllegalArgumentException if the cursor was not created by this search
+     */
+    ProximityExpansion toExpansion(Point center, int maxGeocellResolution) {
+        if (Double.compare(center.getLatitude(), latitude) != 0 || Double.compare(center.getLongitude(), longitude) != 0) {
+            throw new IllegalArgumentException("Cursor was created for a search around " + latitude + "," + longitude);
+        }
+        if (!curContainingGeocell.isEmpty() && !GeocellUtils.containsPoint(curContainingGeocell, center)) {
+            throw new IllegalArgumentException("Invalid cursor: " + curContainingGeocell + " does not contain the center");
+        }
+        for (long cell : searchedCells) {
+            if (PackedGeocellUtils.resolution(cell) > maxGeocellResolution) {
+                throw new IllegalArgumentException("Invalid cursor: cells finer than the max resolution " + maxGeocellResolution);
+            }
+        }
+        Set<String> searched = new HashSet<String>(searchedCells.length * 2);
+        for (long cell : searchedCells) {
+            searched.add(PackedGeocellUtils.toString(cell));
+        }
+        return new ProximityExpansion(center, curContainingGeocell, curGeocells, searched, closestPossibleNextResultDist, done);
+    }
+
+    double getLastDistance() {
+        return lastDistance;
+    }
+
+    String getLastKey() {
+        return lastKey;
+    }
+
+    boolean isExpansionFinished() {
+        return expansionFinished;
+    }
+
+    List<String> getFrontierCells() {
+        return Collections.unmodifiableList(frontierCells);
+    }
+
+    /**
+     * @return the cursor as a URL-safe string
+     */
+    public String toWebSafeString() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(VERSION);
+            out.writeDouble(latitude);
+            out.writeDouble(longitude);
+            out.writeDouble(lastDistance);
+            out.writeBoolean(lastKey != null);
+            if (lastKey != null) {
+                out.writeUTF(lastKey);
+            }
+            out.writeUTF(curContainingGeocell);
+            writeCells(out, curGeocells);
+            out.writeInt(searchedCells.length);
+            for (long cell : searchedCells) {
+                out.writeLong(cell);
+            }
+            out.writeDouble(closestPossibleNextResultDist);
+            out.writeBoolean(done);
+            out.writeBoolean(expansionFinished);
+            writeCells(out, frontierCells);
+            out.flush();
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param cursor a string returned by {@link #toWebSafeString()}
+     * @return the cursor
+     * @throws IllegalArgumentException if the string is not a valid cursor
+     */
+    public static SearchCursor fromWebSafeString(String cursor) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.getUrlDecoder().decode(cursor)));
+            if (in.readByte() != VERSION) {
+                throw new IllegalArgumentException("Unsupported cursor version");
+            }
+            double latitude = in.readDouble();
+            double longitude = in.readDouble();
+            double lastDistance = in.readDouble();
+            String lastKey = in.readBoolean() ? in.readUTF() : null;
+            String curContainingGeocell = in.readUTF();
+            if (curContainingGeocell.length() > PackedGeocellUtils.MAX_RESOLUTION
+                    || (!curContainingGeocell.isEmpty() && !GeocellUtils.isValid(curContainingGeocell))) {
+                throw new IllegalArgumentException("Invalid cursor: bad containing cell");
+            }
+            // the current cells are of the resolution of the containing cell, or the top level cells
+            int resolution = Math.max(curContainingGeocell.length(), 1);
+            List<String> curGeocells = readCells(in, resolution, resolution);
+            long[] searchedCells = readPackedCells(in, resolution);
+            double closestPossibleNextResultDist = in.readDouble();
+            boolean done = in.readBoolean();
+            boolean expansionFinished = in.readBoolean();
+            // cells are searched from the finest resolution, so none can be coarser than the current cells
+            List<String> frontierCells = readCells(in, resolution, PackedGeocellUtils.MAX_RESOLUTION);
+            if (in.available() > 0) {
+                throw new IllegalArgumentException("Invalid cursor: trailing bytes");
+            }
+            // the frontier cells were fetched, hence searched, by the previous pages
+            Set<String> searched = new HashSet<String>(searchedCells.length * 2);
+            for (long cell : searchedCells) {
+                searched.add(PackedGeocellUtils.toString(cell));
+            }
+            if (!searched.containsAll(frontierCells)) {
+                throw new IllegalArgumentException("Invalid cursor: frontier cells were not searched");
+            }
+            return new SearchCursor(latitude, longitude, lastDistance, lastKey, curContainingGeocell, curGeocells,
+                    searchedCells, closestPossibleNextResultDist, done, expansionFinished, frontierCells);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid cursor", e);
+        } catch (IllegalArgumentException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid cursor", e);
+        }
+    }
+
+    private static void writeCells(DataOutputStream out, List<String> cells) throws IOException {
+        out.writeInt(cells.size());
+        for (String cell : cells) {
+            out.writeLong(PackedGeocellUtils.fromString(cell));
+        }
+    }
+
+    private static List<String> readCells(DataInputStream in, int minResolution, int maxResolution) throws IOException {
+        int size = readSize(in);
+        List<String> cells = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+            cells.add(PackedGeocellUtils.toString(readCell(in, minResolution, maxResolution)));
+        }
+        return cells;
+    }
+
+    private static long[] readPackedCells(DataInputStream in, int minResolution) throws IOException {
+        long[] cells = new long[readSize(in)];
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = readCell(in, minResolution, PackedGeocellUtils.MAX_RESOLUTION);
+        }
+        return cells;
+    }
+
+    // The size is checked before anything is allocated: the cursor comes from the client.
+    private static int readSize(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if (size < 0 || size > MAX_CELLS || size > in.available() / 8) {
+            throw new IllegalArgumentException("Invalid cursor: bad number of cells " + size);
+        }
+        return size;
+    }
+
+    private static long readCell(DataInputStream in, int minResolution, int maxResolution) throws IOException {
+        long cell = in.readLong();
+        int resolution = PackedGeocellUtils.resolution(cell);
+        if (!PackedGeocellUtils.isValid(cell) || resolution < minResolution || resolution > maxResolution) {
+            throw new IllegalArgumentException("Invalid cursor: bad cell " + Long.toHexString(cell));
+        }
+        return cell;
+    }
+
+    private Object writeReplace() {
+        return new SerializedForm(toWebSafeString());
+    }
+
+    // A stream holding the fields themselves was not written by writeReplace: it would skip the validation.
+    private void readObject(ObjectInputStream in) throws InvalidObjectException {
+        throw new InvalidObjectException("Invalid cursor: serialized form expected");
+    }
+
+    @Override
+    public String toString() {
+        return toWebSafeString();
+    }
+
+    /**
+     * The serialized form of a cursor: its web-safe string.
+     */
+    private static final class SerializedForm implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String cursor;
+
+        SerializedForm(String cursor) {
+            this.cursor = cursor;
+        }
+
+        private Object readResolve() throws InvalidObjectException {
+            try {
+                return fromWebSafeString(cursor);
+            } catch (IllegalArgumentException e) {
+                InvalidObjectException invalid = new InvalidObjectException(e.getMessage());
+                invalid.initCause(e);
+                throw invalid;
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.ncalderini.geocell;
+
+/**
+ * Emits the JDK Flight Recorder events of the searches, when JFR is available (Java 11+, or 8u262+).
+ *
+ * The events are defined by <code>JfrSearchEvents</code>, compiled in the separate <code>jfr</code> source
+ * set and loaded by name, so that the main sources don't depend on <code>jdk.jfr</code>. With no recording
+ * enabling the events, a phase costs a check of a boolean.
+ */
+final class SearchEvents {
+
+    static final String COVERING = "covering";
+    static final String FETCH = "fetch";
+    static final String FILTER = "filter";
+
+    /**
+     * Receives the events of the searches.
+     */
+    interface Sink {
+
+        void phase(SearchStats.Type type, String phase, long nanos, int cells, int entities);
+
+        void search(SearchStats stats);
+    }
+
+    // null when JFR or the JFR events are not available
+    private static final Sink SINK = load();
+
+    private SearchEvents() {
+        // no instantiation allowed
+    }
+
+    static void phase(SearchStats.Type type, String phase, long nanos, int cells, int entities) {
+        if (SINK != null) {
+            SINK.phase(type, phase, nanos, cells, entities);
+        }
+    }
+
+    static void search(SearchStats stats) {
+        if (SINK != null) {
+            SINK.search(stats);
+        }
+    }
+
+    private static Sink load() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (Sink) Class.forName("com.ncalderini.geocell.JfrSearchEvents").getDeclaredConstructor().newInstance();
+        } catch (Throwable t) {
+            // not available on this JVM, or built without the jfr source set
+            return null;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.ncalderini.geocell;
+
+import java.util.List;
+
+/**
+ * Receives the statistics of the searches, e.g. to export them as metrics.
+ *
+ * Listeners are registered with {@link GeocellManager#addSearchListener(SearchListener)}, and are called
+ * on the thread running the search (for an asynchronous search, the thread completing the queries):
+ * they must be thread-safe and return quickly.
+ */
+public interface SearchListener {
+
+    /**
+     * Called when the results of a query were received.
+     *
+     * @param type the kind of search
+     * @param cells the cells of the query
+     * @param entitiesFetched the number of entities returned by the query engine
+     * @param nanos the time spent waiting for the query engine
+     */
+    default void queryCompleted(SearchStats.Type type, List<String> cells, int entitiesFetched, long nanos) {
+    }
+
+    /**
+     * Called when a search completes.
+     *
+     * @param stats the statistics of the search
+     */
+    default void searchCompleted(SearchStats stats) {
+    }
+}
@@ -0,0 +1,139 @@
+package com.ncalderini.geocell;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collects the statistics of one search, and reports them to the listeners and to JFR.
+ *
+ * Each phase is recorded from its start time, and the end time is returned as the start of the next phase:
+ * <pre>
+ * long start = recorder.now();
+ * ... choose cells ...
+ * start = recorder.covered(start);
+ * ... query ...
+ * start = recorder.fetched(start, cells, results.size());
+ * </pre>
+ * A recorder is not thread-safe: the phases of a search must be recorded one after another.
+ */
+final class SearchRecorder {
+
+    // Registered listeners, copied on write.
+    private static volatile SearchListener[] listeners = new SearchListener[0];
+
+    private final SearchStats.Type type;
+    private final SearchListener[] currentListeners;
+    private final long startNanos;
+    private int steps;
+    private int roundTrips;
+    private int[] cellsPerQuery = new int[4];
+    private int queries;
+    private long entitiesFetched;
+    private long coveringNanos;
+    private long fetchNanos;
+    private long filterNanos;
+
+    SearchRecorder(SearchStats.Type type) {
+        this.type = type;
+        this.currentListeners = listeners;
+        this.startNanos = System.nanoTime();
+    }
+
+    static synchronized void addListener(SearchListener listener) {
+        SearchListener[] updated = Arrays.copyOf(listeners, listeners.length + 1);
+        updated[listeners.length] = listener;
+        listeners = updated;
+    }
+
+    static synchronized boolean removeListener(SearchListener listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                SearchListener[] updated = new SearchListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, updated, 0, i);
+                System.arraycopy(listeners, i + 1, updated, i, listeners.length - i - 1);
+                listeners = updated;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records a covering phase.
+     */
+    long covered(long start) {
+        long end = System.nanoTime();
+        coveringNanos += end - start;
+        SearchEvents.phase(type, SearchEvents.COVERING, end - start, 0, 0);
+        return end;
+    }
+
+    /**
+     * Records a query whose results were used, and the time spent waiting for it.
+     */
+    long fetched(long start, List<String> cells, int entities) {
+        long end = System.nanoTime();
+        if (cells.isEmpty()) {
+            // no query was sent (e.g. the cells are known to be empty)
+            return end;
+        }
+        long nanos = end - start;
+        fetchNanos += nanos;
+        roundTrips++;
+        if (queries == cellsPerQuery.length) {
+            cellsPerQuery = Arrays.copyOf(cellsPerQuery, queries * 2);
+        }
+        cellsPerQuery[queries++] = cells.size();
+        entitiesFetched += entities;
+        SearchEvents.phase(type, SearchEvents.FETCH, nanos, cells.size(), entities);
+        for (SearchListener listener : currentListeners) {
+            listener.queryCompleted(type, cells, entities, nanos);
+        }
+        return end;
+    }
+
+    /**
+     * Records queries whose results were not used (discarded speculative queries).
+     */
+    void discarded(int queries) {
+        roundTrips += queries;
+    }
+
+    /**
+     * Records a filtering phase.
+     */
+    long filtered(long start, int entities) {
+        long end = System.nanoTime();
+        filterNanos += end - start;
+        SearchEvents.phase(type, SearchEvents.FILTER, end - start, 0, entities);
+        return end;
+    }
+
+    /**
+     * Records an expansion step.
+     */
+    void stepped() {
+        steps++;
+    }
+
+    /**
+     * Completes the search.
+     *
+     * @param entitiesKept the number of results
+     * @param distanceEvaluations the number of exact distances computed
+     * @return the statistics of the search
+     */
+    SearchStats finish(long entitiesKept, long distanceEvaluations) {
+        SearchStats stats = new SearchStats(type, steps, roundTrips, Arrays.copyOf(cellsPerQuery, queries), entitiesFetched,
+                entitiesKept, distanceEvaluations, coveringNanos, fetchNanos, filterNanos, System.nanoTime() - startNanos);
+        SearchEvents.search(stats);
+        for (SearchListener listener : currentListeners) {
+            listener.searchCompleted(stats);
+        }
+        return stats;
+    }
+}
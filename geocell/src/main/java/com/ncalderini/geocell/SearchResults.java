@@ -32,6 +32,8 @@ public class SearchResults<T> {
   private final List<T> results;
   private final List<Double> distances;
   private final int lastResolution;
+  private final SearchCursor cursor;
+  private final SearchStats stats;
 
   /**
    * @param results
@@ -39,10 +41,33 @@ public class SearchResults<T> {
    * @param lastMatched
    */
   public SearchResults(List<T> results, List<Double> distances, int lastResolution) {
+    this(results, distances, lastResolution, null);
+  }
+
+  /**
+   * @param results
+   * @param distances
+   * @param lastResolution
+   * @param cursor the cursor of the next page, null if there is none
+   */
+  public SearchResults(List<T> results, List<Double> distances, int lastResolution, SearchCursor cursor) {
+    this(results, distances, lastResolution, cursor, null);
+  }
+
+  /**
+   * @param results
+   * @param distances
+   * @param lastResolution
+   * @param cursor the cursor of the next page, null if there is none
+   * @param stats the statistics of the search, may be null
+   */
+  public SearchResults(List<T> results, List<Double> distances, int lastResolution, SearchCursor cursor, SearchStats stats) {
     super();
     this.results = results;
     this.distances = distances;
     this.lastResolution = lastResolution;
+    this.cursor = cursor;
+    this.stats = stats;
   }
 
   public List<T> getResults() {
@@ -61,5 +86,21 @@ public class SearchResults<T> {
     return lastResolution;
   }
 
+  /**
+   * Return the cursor to resume the search with the next page
+   * @return the cursor, or null if there are no more results
+   */
+  public SearchCursor getCursor() {
+    return cursor;
+  }
+
+  /**
+   * Return the statistics of the search
+   * @return the stats, or null if they were not recorded
+   */
+  public SearchStats getStats() {
+    return stats;
+  }
+
   
 }
@@ -0,0 +1,156 @@
+package com.ncalderini.geocell;
+
+import java.util.Arrays;
+
+/**
+ * Statistics of a search: expansion steps, backend queries, entities fetched and kept,
+ * distances computed and time spent in each phase.
+ *
+ * The phases are: covering (choosing the cells to query), fetching (waiting for the query engine)
+ * and filtering (computing distances or testing regions, and keeping the results).
+ *
+ * @see SearchResults#getStats()
+ * @see SearchListener
+ */
+public final class SearchStats {
+
+    /**
+     * The kind of search.
+     */
+    public enum Type {
+        PROXIMITY,
+        PROXIMITY_ASYNC,
+        NEAREST,
+        NEAREST_PAGE,
+        NEAREST_BATCH,
+        BOUNDING_BOX,
+        REGION
+    }
+
+    private final Type type;
+    private final int steps;
+    private final int roundTrips;
+    private final int[] cellsPerQuery;
+    private final long entitiesFetched;
+    private final long entitiesKept;
+    private final long distanceEvaluations;
+    private final long coveringNanos;
+    private final long fetchNanos;
+    private final long filterNanos;
+    private final long totalNanos;
+
+    SearchStats(Type type, int steps, int roundTrips, int[] cellsPerQuery, long entitiesFetched, long entitiesKept,
+                long distanceEvaluations, long coveringNanos, long fetchNanos, long filterNanos, long totalNanos) {
+        this.type = type;
+        this.steps = steps;
+        this.roundTrips = roundTrips;
+        this.cellsPerQuery = cellsPerQuery;
+        this.entitiesFetched = entitiesFetched;
+        this.entitiesKept = entitiesKept;
+        this.distanceEvaluations = distanceEvaluations;
+        this.coveringNanos = coveringNanos;
+        this.fetchNanos = fetchNanos;
+        this.filterNanos = filterNanos;
+        this.totalNanos = totalNanos;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the number of expansion steps (1 for a bounding box or region search)
+     */
+    public int getSteps() {
+        return steps;
+    }
+
+    /**
+     * @return the number of queries sent to the query engine, including the speculative ones of an asynchronous search
+     */
+    public int getRoundTrips() {
+        return roundTrips;
+    }
+
+    /**
+     * @return the number of cells of each query whose results were used, in order
+     */
+    public int[] getCellsPerQuery() {
+        return cellsPerQuery.clone();
+    }
+
+    /**
+     * @return the total number of cells of the queries whose results were used
+     */
+    public int getCellsQueried() {
+        int cells = 0;
+        for (int count : cellsPerQuery) {
+            cells += count;
+        }
+        return cells;
+    }
+
+    /**
+     * @return the number of entities returned by the query engine
+     */
+    public long getEntitiesFetched() {
+        return entitiesFetched;
+    }
+
+    /**
+     * @return the number of entities returned by the search
+     */
+    public long getEntitiesKept() {
+        return entitiesKept;
+    }
+
+    /**
+     * @return the ratio of entities kept to entities fetched, 1 if none were fetched
+     */
+    public double getFetchEfficiency() {
+        return entitiesFetched == 0 ? 1 : (double) entitiesKept / entitiesFetched;
+    }
+
+    /**
+     * @return the number of exact distances computed (candidates rejected by the cheap bounds are not counted)
+     */
+    public long getDistanceEvaluations() {
+        return distanceEvaluations;
+    }
+
+    /**
+     * @return the time spent choosing the cells to query, in nanoseconds
+     */
+    public long getCoveringNanos() {
+        return coveringNanos;
+    }
+
+    /**
+     * @return the time spent waiting for the query engine, in nanoseconds
+     */
+    public long getFetchNanos() {
+        return fetchNanos;
+    }
+
+    /**
+     * @return the time spent filtering the fetched entities, in nanoseconds
+     */
+    public long getFilterNanos() {
+        return filterNanos;
+    }
+
+    /**
+     * @return the duration of the search, in nanoseconds
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    @Override
+    public String toString() {
+        return type + ": " + steps + " steps, " + roundTrips + " round trips, cells " + Arrays.toString(cellsPerQuery)
+                + ", fetched " + entitiesFetched + ", kept " + entitiesKept + ", distances " + distanceEvaluations
+                + ", covering " + coveringNanos / 1000 + "us, fetch " + fetchNanos / 1000 + "us, filter "
+                + filterNanos / 1000 + "us, total " + totalNanos / 1000 + "us";
+    }
+}
@@ -0,0 +1,272 @@
+package com.ncalderini.geocell;
+
+import com.ncalderini.geocell.model.Point;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * In-memory spatial join: finds every (left, right) pair of entities within a distance of each other.
+ *
+ * Both sides are bucketed by their geocell of the finest resolution whose cells are at least as tall and
+ * as wide as the distance (at the highest latitude of the entities), so that the entities within the
+ * distance of an entity are in its cell or in one of the 8 adjacent cells. Each left bucket is then only
+ * compared with the matching right bucket and its adjacent ones, instead of with every right entity, and
+ * the buckets are split across the cores with fork/join. Nothing is queried: it replaces one proximity
+ * search per left entity with a single pass over both sides.
+ *
+ * <pre>
+ * SpatialJoin.join(stores, warehouses, 5000, (store, warehouse, distance) -&gt; pairs.add(...));
+ * </pre>
+ *
+ * Entities without location are left out. Near the poles, or for distances of thousands of kilometers,
+ * no resolution fits and every pair is compared.
+ *
+ */
+public final class SpatialJoin {
+
+    /**
+     * Receives the pairs found by a join. Pairs are streamed from the threads of the pool as they are
+     * found, in no particular order: implementations must be thread-safe.
+     */
+    public interface PairConsumer<A, B> {
+
+        /**
+         * @param left the left entity
+         * @param right the right entity
+         * @param distance the distance between both entities, in meters
+         */
+        void accept(A left, B right, double distance);
+    }
+
+    // Number of left entities below which a range of buckets is joined by a single thread.
+    private static final int SEQUENTIAL_THRESHOLD = 1024;
+
+    private SpatialJoin() {
+        // no instantiation allowed
+    }
+
+    /**
+     * Finds the pairs within maxDistance, in the common fork/join pool.
+     *
+     * @param left the left entities
+     * @param right the right entities
+     * @param maxDistance the maximum distance (inclusive), in meters
+     * @param consumer receives the pairs
+     * @return the number of pairs found
+     */
+    public static <A, B> long join(List<A> left, List<B> right, double maxDistance, PairConsumer<? super A, ? super B> consumer) {
+        return join(left, right, maxDistance, consumer, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Finds the pairs within maxDistance.
+     *
+     * @param left the left entities
+     * @param right the right entities
+     * @param maxDistance the maximum distance (inclusive), in meters
+     * @param consumer receives the pairs
+     * @param pool the pool running the join
+     * @return the number of pairs found
+     */
+    public static <A, B> long join(List<A> left, List<B> right, double maxDistance,
+                                   PairConsumer<? super A, ? super B> consumer, ForkJoinPool pool) {
+        if (!(maxDistance > 0)) {
+            throw new IllegalArgumentException("maxDistance must be positive");
+        }
+        Side<A> leftSide = new Side<A>(left);
+        Side<B> rightSide = new Side<B>(right);
+        if (leftSide.size == 0 || rightSide.size == 0) {
+            return 0;
+        }
+        int resolution = resolution(maxDistance, Math.max(leftSide.maxAbsLatitude, rightSide.maxAbsLatitude));
+        leftSide.bucket(resolution);
+        rightSide.bucket(resolution);
+
+        JoinTask<A, B> task = new JoinTask<A, B>(leftSide, rightSide, maxDistance, consumer, 0, leftSide.bucketCount);
+        return leftSide.size <= SEQUENTIAL_THRESHOLD ? task.compute() : pool.invoke(task);
+    }
+
+    /**
+     * @param maxDistance the join distance, in meters
+     * @param maxAbsLatitude the highest absolute latitude of the entities
+     * @return the finest resolution whose cells are taller and wider than maxDistance up to maxAbsLatitude,
+     * 0 if there is none
+     */
+    static int resolution(double maxDistance, double maxAbsLatitude) {
+        // a small margin for rounding: a pair at exactly maxDistance must not be missed
+        double angle = maxDistance / GeocellUtils.RADIUS * (1 + 1e-9);
+        if (angle >= Math.PI / 2) {
+            return 0;
+        }
+        double sin = Math.sin(angle);
+        double cos = Math.cos(Math.toRadians(Math.min(90, maxAbsLatitude)));
+        if (sin >= cos) {
+            // the points within the distance may be on the other side of the pole
+            return 0;
+        }
+        double latitudeSpan = Math.toDegrees(angle);
+        double longitudeSpan = Math.toDegrees(Math.asin(sin / cos));
+        for (int resolution = GeocellManager.MAX_GEOCELL_RESOLUTION; resolution > 0; resolution--) {
+            double gridSize = 1L << (2 * resolution);
+            if ((GeocellUtils.MAX_LATITUDE - GeocellUtils.MIN_LATITUDE) / gridSize >= latitudeSpan
+                    && (GeocellUtils.MAX_LONGITUDE - GeocellUtils.MIN_LONGITUDE) / gridSize >= longitudeSpan) {
+                return resolution;
+            }
+        }
+        return 0;
+    }
+
+    // The entities of one side, sorted by cell.
+    private static final class Side<E> {
+        private final int size;
+        private final Object[] entities;
+        private final double[] latitudes;
+        private final double[] longitudes;
+        private final double maxAbsLatitude;
+        private long[] cells;
+        // Distinct cells, and the position of their first entity (bucketStarts[bucketCount] is size).
+        private long[] buckets;
+        private int[] bucketStarts;
+        private int bucketCount;
+
+        Side(List<E> list) {
+            Object[] located = new Object[list.size()];
+            double[] lats = new double[list.size()];
+            double[] lons = new double[list.size()];
+            int count = 0;
+            double maxLatitude = 0;
+            for (E entity : list) {
+                Point location = GeocellUtils.getLocation(entity);
+                if (location == null) {
+                    continue;
+                }
+                located[count] = entity;
+                lats[count] = location.getLatitude();
+                lons[count++] = location.getLongitude();
+                maxLatitude = Math.max(maxLatitude, Math.abs(location.getLatitude()));
+            }
+            this.size = count;
+            this.entities = located;
+            this.latitudes = lats;
+            this.longitudes = lons;
+            this.maxAbsLatitude = maxLatitude;
+        }
+
+        void bucket(int resolution) {
+            long[] unsorted = new long[size];
+            for (int i = 0; i < size; i++) {
+                unsorted[i] = resolution == 0 ? PackedGeocellUtils.ROOT
+                        : PackedGeocellUtils.compute(latitudes[i], longitudes[i], resolution);
+            }
+            int[] order = CellOrder.sort(unsorted, size);
+
+            Object[] sortedEntities = entities.clone();
+            double[] sortedLatitudes = latitudes.clone();
+            double[] sortedLongitudes = longitudes.clone();
+            cells = new long[size];
+            buckets = new long[size];
+            bucketStarts = new int[size + 1];
+            bucketCount = 0;
+            for (int i = 0; i < size; i++) {
+                int from = order[i];
+                entities[i] = sortedEntities[from];
+                latitudes[i] = sortedLatitudes[from];
+                longitudes[i] = sortedLongitudes[from];
+                cells[i] = unsorted[from];
+                if (i == 0 || cells[i] != cells[i - 1]) {
+                    buckets[bucketCount] = cells[i];
+                    bucketStarts[bucketCount++] = i;
+                }
+            }
+            bucketStarts[bucketCount] = size;
+        }
+
+        // Index of the bucket of the cell, or -1 if the cell is empty.
+        int find(long cell) {
+            int bucket = CellOrder.lowerBound(buckets, 0, bucketCount, cell);
+            return bucket < bucketCount && buckets[bucket] == cell ? bucket : -1;
+        }
+
+        @SuppressWarnings("unchecked")
+        E get(int i) {
+            return (E) entities[i];
+        }
+    }
+
+    // Joins a range of left buckets with the right side.
+    private static final class JoinTask<A, B> extends RecursiveTask<Long> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Side<A> left;
+        private final Side<B> right;
+        private final double maxDistance;
+        private final PairConsumer<? super A, ? super B> consumer;
+        private final int from;
+        private final int to;
+
+        JoinTask(Side<A> left, Side<B> right, double maxDistance, PairConsumer<? super A, ? super B> consumer, int from, int to) {
+            this.left = left;
+            this.right = right;
+            this.maxDistance = maxDistance;
+            this.consumer = consumer;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Long compute() {
+            if (to - from > 1 && left.bucketStarts[to] - left.bucketStarts[from] > SEQUENTIAL_THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                JoinTask<A, B> first = new JoinTask<A, B>(left, right, maxDistance, consumer, from, middle);
+                JoinTask<A, B> second = new JoinTask<A, B>(left, right, maxDistance, consumer, middle, to);
+                first.fork();
+                long pairs = second.compute();
+                return pairs + first.join();
+            }
+
+            long pairs = 0;
+            long[] adjacents = new long[8];
+            int[] rightBuckets = new int[9];
+            DistanceCalculator calculator = new DistanceCalculator(0, 0);
+            for (int bucket = from; bucket < to; bucket++) {
+                // the right buckets of the cell and of its adjacent cells
+                long cell = left.buckets[bucket];
+                int count = 0;
+                int found = right.find(cell);
+                if (found >= 0) {
+                    rightBuckets[count++] = found;
+                }
+                if (cell != PackedGeocellUtils.ROOT) {
+                    PackedGeocellUtils.allAdjacents(cell, adjacents);
+                    for (long adjacent : adjacents) {
+                        found = adjacent == PackedGeocellUtils.NO_CELL ? -1 : right.find(adjacent);
+                        if (found >= 0) {
+                            rightBuckets[count++] = found;
+                        }
+                    }
+                }
+                if (count == 0) {
+                    continue;
+                }
+
+                for (int i = left.bucketStarts[bucket]; i < left.bucketStarts[bucket + 1]; i++) {
+                    calculator.setCenter(left.latitudes[i], left.longitudes[i]);
+                    for (int k = 0; k < count; k++) {
+                        int end = right.bucketStarts[rightBuckets[k] + 1];
+                        for (int j = right.bucketStarts[rightBuckets[k]]; j < end; j++) {
+                            double distance = calculator.distanceWithin(right.latitudes[j], right.longitudes[j], maxDistance);
+                            if (distance != Double.POSITIVE_INFINITY) {
+                                consumer.accept(left.get(i), right.get(j), distance);
+                                pairs++;
+                            }
+                        }
+                    }
+                }
+            }
+            return pairs;
+        }
+    }
+}
@@ -14,11 +14,13 @@ and limitations under the License.
 package com.ncalderini.geocell.model;
 
 /**
+ *
+ * A box crossing the antimeridian has east &lt; west.
  *
  * @author Alexandre Gellibert
  *
  */
-public class BoundingBox {
+public class BoundingBox implements Region {
 
     private Point northEast;
     private Point southWest;
@@ -64,4 +66,43 @@ public class BoundingBox {
         return southWest;
     }
 
+    @Override
+    public BoundingBox getBoundingBox() {
+        return this;
+    }
+
+    @Override
+    public boolean contains(double latitude, double longitude) {
+        if (latitude < getSouth() || latitude > getNorth()) {
+            return false;
+        }
+        return crossesAntimeridian()
+                ? longitude >= getWest() || longitude <= getEast()
+                : longitude >= getWest() && longitude <= getEast();
+    }
+
+    @Override
+    public Relation relate(double north, double east, double south, double west) {
+        if (south > getNorth() || north < getSouth()) {
+            return Relation.OUTSIDE;
+        }
+        boolean insideLatitudes = south >= getSouth() && north <= getNorth();
+        if (crossesAntimeridian()) {
+            Relation relation = relate(east, west, getWest(), 180, insideLatitudes);
+            return relation != Relation.OUTSIDE ? relation : relate(east, west, -180, getEast(), insideLatitudes);
+        }
+        return relate(east, west, getWest(), getEast(), insideLatitudes);
+    }
+
+    private static Relation relate(double east, double west, double boxWest, double boxEast, boolean insideLatitudes) {
+        if (west > boxEast || east < boxWest) {
+            return Relation.OUTSIDE;
+        }
+        return insideLatitudes && west >= boxWest && east <= boxEast ? Relation.INSIDE : Relation.BOUNDARY;
+    }
+
+    private boolean crossesAntimeridian() {
+        return getEast() < getWest();
+    }
+
 }
@@ -0,0 +1,110 @@
+package com.ncalderini.geocell.model;
+
+import com.ncalderini.geocell.DistanceCalculator;
+import com.ncalderini.geocell.GeocellUtils;
+import org.apache.commons.lang.Validate;
+
+/**
+ * The points within a great circle distance of a center, as measured by
+ * {@link GeocellUtils#distance(Point, Point)}.
+ *
+ */
+public class Circle implements Region {
+
+    // Margin (in meters) absorbing the rounding errors of the distance before answering OUTSIDE.
+    private static final double DISTANCE_MARGIN = 1.0;
+
+    private final Point center;
+    private final double radius;
+    private final DistanceCalculator calculator;
+    private final BoundingBox boundingBox;
+
+    /**
+     * @param center the center of the circle
+     * @param radius the radius of the circle, in meters
+     */
+    public Circle(Point center, double radius) {
+        Validate.notNull(center, "Center must not be null");
+        Validate.isTrue(radius >= 0, "Radius must be positive but was ", radius);
+        this.center = center;
+        this.radius = radius;
+        this.calculator = new DistanceCalculator(center);
+
+        double angle = radius / GeocellUtils.RADIUS;
+        double latitudeDelta = Math.toDegrees(angle);
+        double north = center.getLatitude() + latitudeDelta;
+        double south = center.getLatitude() - latitudeDelta;
+        if (north >= 90 || south <= -90 || angle >= Math.PI / 2) {
+            // the circle contains a pole
+            boundingBox = new BoundingBox(Math.min(north, 90), 180, Math.max(south, -90), -180);
+        } else {
+            double longitudeDelta = Math.toDegrees(Math.asin(Math.sin(angle) / Math.cos(Math.toRadians(center.getLatitude()))));
+            double east = center.getLongitude() + longitudeDelta;
+            double west = center.getLongitude() - longitudeDelta;
+            // a box crossing the antimeridian has east < west
+            boundingBox = new BoundingBox(north, east > 180 ? east - 360 : east, south, west < -180 ? west + 360 : west);
+        }
+    }
+
+    public Point getCenter() {
+        return center;
+    }
+
+    public double getRadius() {
+        return radius;
+    }
+
+    @Override
+    public BoundingBox getBoundingBox() {
+        return boundingBox;
+    }
+
+    @Override
+    public boolean contains(double latitude, double longitude) {
+        return calculator.distance(latitude, longitude) <= radius;
+    }
+
+    /**
+     * The rectangle is inside the circle when its 4 corners are: its meridian edges are great circle arcs,
+     * and the distance to the center along its parallel edges is the highest at the corners.
+     * Otherwise, the nearest point of the rectangle to the center is on the meridian through the center if
+     * it crosses the rectangle, or else on the nearest meridian edge.
+     */
+    @Override
+    public Relation relate(double north, double east, double south, double west) {
+        if (boundingBox.relate(north, east, south, west) == Relation.OUTSIDE) {
+            return Relation.OUTSIDE;
+        }
+        if (radius < Math.PI / 2 * GeocellUtils.RADIUS
+                && contains(north, east) && contains(north, west) && contains(south, east) && contains(south, west)) {
+            return Relation.INSIDE;
+        }
+        double minDistance;
+        double latitude = center.getLatitude();
+        double longitude = center.getLongitude();
+        if (longitude >= west && longitude <= east) {
+            minDistance = distance(Math.max(south, Math.min(north, latitude)), longitude);
+        } else {
+            minDistance = Math.min(meridianDistance(east, north, south), meridianDistance(west, north, south));
+        }
+        return minDistance > radius + DISTANCE_MARGIN ? Relation.OUTSIDE : Relation.BOUNDARY;
+    }
+
+    // Shortest distance from the center to the meridian arc between south and north latitudes.
+    private double meridianDistance(double longitude, double north, double south) {
+        // cos(distance) = a.sin(lat) + b.cos(lat) is the highest at latitude atan2(a, b)
+        double centerLatitude = Math.toRadians(center.getLatitude());
+        double a = Math.sin(centerLatitude);
+        double b = Math.cos(centerLatitude) * Math.cos(Math.toRadians(longitude - center.getLongitude()));
+        double nearest = Math.toDegrees(Math.atan2(a, b));
+        double minDistance = Math.min(distance(north, longitude), distance(south, longitude));
+        if (nearest > south && nearest < north) {
+            minDistance = Math.min(minDistance, distance(nearest, longitude));
+        }
+        return minDistance;
+    }
+
+    private double distance(double latitude, double longitude) {
+        return calculator.distance(latitude, longitude);
+    }
+}
@@ -31,4 +31,16 @@ public interface CostFunction {
      */
     public double defaultCostFunction(int numCells, int resolution);
 
+    /**
+     * Cost of searching a given area, for cost functions knowing how the cost varies from one area to another.
+     *
+     * @param numCells number of cells found
+     * @param resolution resolution of those cells
+     * @param bbox the area being searched
+     * @return the cost of the operation, by default {@link #defaultCostFunction(int, int)}
+     */
+    default double cost(int numCells, int resolution, BoundingBox bbox) {
+        return defaultCostFunction(numCells, resolution);
+    }
+
 }
@@ -13,6 +13,7 @@ and limitations under the License.
 
 package com.ncalderini.geocell.model;
 
+import com.ncalderini.geocell.GeocellUtils;
 import org.apache.commons.lang.Validate;
 
 import java.io.Serializable;
@@ -83,19 +84,6 @@ public class Point implements Serializable, Comparable<Point> {
     }
 
     static double distance(Point p1, Point p2) {
-        double latitude = Math.toRadians((double)p1.getLatitude());
-        double longitude = Math.toRadians((double)p1.getLongitude());
-        double otherLatitude = Math.toRadians((double)p2.getLatitude());
-        double otherLongitude = Math.toRadians((double)p2.getLongitude());
-        double deltaLat = latitude - otherLatitude;
-        double deltaLong = longitude - otherLongitude;
-        double a1 = haversin(deltaLat);
-        double a2 = Math.cos(latitude) * Math.cos(otherLatitude) * haversin(deltaLong);
-        return 1.274202E7D * Math.asin(Math.sqrt(a1 + a2));
-    }
-
-    private static double haversin(double delta) {
-        double x = Math.sin(delta / 2.0D);
-        return x * x;
+        return GeocellUtils.distance(p1, p2);
     }
 }
@@ -0,0 +1,84 @@
+package com.ncalderini.geocell.model;
+
+import org.apache.commons.lang.Validate;
+
+import java.util.List;
+
+/**
+ * A simple polygon, whose edges are straight lines in the latitude/longitude plane.
+ *
+ * The polygon is closed implicitly (the last vertex is joined to the first one), may be concave,
+ * and must not cross the antimeridian.
+ *
+ */
+public class Polygon implements Region {
+
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private final BoundingBox boundingBox;
+
+    public Polygon(List<Point> vertices) {
+        Validate.isTrue(vertices.size() >= 3, "A polygon needs at least 3 vertices but had ", vertices.size());
+        int count = vertices.size();
+        if (vertices.get(0).equals(vertices.get(count - 1))) {
+            count--;
+        }
+        latitudes = new double[count];
+        longitudes = new double[count];
+        double north = -90, south = 90, east = -180, west = 180;
+        for (int i = 0; i < count; i++) {
+            latitudes[i] = vertices.get(i).getLatitude();
+            longitudes[i] = vertices.get(i).getLongitude();
+            north = Math.max(north, latitudes[i]);
+            south = Math.min(south, latitudes[i]);
+            east = Math.max(east, longitudes[i]);
+            west = Math.min(west, longitudes[i]);
+        }
+        boundingBox = new BoundingBox(north, east, south, west);
+    }
+
+    @Override
+    public BoundingBox getBoundingBox() {
+        return boundingBox;
+    }
+
+    /**
+     * Even-odd (ray casting) point in polygon test.
+     */
+    @Override
+    public boolean contains(double latitude, double longitude) {
+        if (latitude < boundingBox.getSouth() || latitude > boundingBox.getNorth()
+                || longitude < boundingBox.getWest() || longitude > boundingBox.getEast()) {
+            return false;
+        }
+        boolean inside = false;
+        int count = latitudes.length;
+        for (int i = 0, j = count - 1; i < count; j = i++) {
+            if ((latitudes[i] > latitude) != (latitudes[j] > latitude)
+                    && longitude < (longitudes[j] - longitudes[i]) * (latitude - latitudes[i]) / (latitudes[j] - latitudes[i]) + longitudes[i]) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+    @Override
+    public Relation relate(double north, double east, double south, double west) {
+        if (south > boundingBox.getNorth() || north < boundingBox.getSouth()
+                || west > boundingBox.getEast() || east < boundingBox.getWest()) {
+            return Relation.OUTSIDE;
+        }
+        int count = latitudes.length;
+        for (int i = 0, j = count - 1; i < count; j = i++) {
+            if (Segments.intersectsRectangle(latitudes[j], longitudes[j], latitudes[i], longitudes[i], north, east, south, west)) {
+                return Relation.BOUNDARY;
+            }
+        }
+        // No edge crosses the rectangle: either the polygon is inside the rectangle,
+        // or the rectangle is entirely inside or outside of the polygon.
+        if (latitudes[0] >= south && latitudes[0] <= north && longitudes[0] >= west && longitudes[0] <= east) {
+            return Relation.BOUNDARY;
+        }
+        return contains((north + south) / 2, (east + west) / 2) ? Relation.INSIDE : Relation.OUTSIDE;
+    }
+}
@@ -0,0 +1,141 @@
+package com.ncalderini.geocell.model;
+
+import com.ncalderini.geocell.GeocellUtils;
+import org.apache.commons.lang.Validate;
+
+import java.util.List;
+
+/**
+ * A corridor: the points within a buffer distance of a polyline (e.g. a route).
+ *
+ * Distances to the segments are computed in a local equirectangular projection, which is accurate
+ * for buffers up to a few hundred kilometers. The polyline must not cross the antimeridian.
+ *
+ */
+public class Polyline implements Region {
+
+    // Rectangles larger than this (in degrees) are never reported INSIDE, the projection being too coarse.
+    private static final double MAX_INSIDE_SPAN = 1.0;
+
+    private static final double MAX_COS_LATITUDE = 89.0;
+
+    private static final double METERS_PER_DEGREE = Math.toRadians(GeocellUtils.RADIUS);
+
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private final double bufferMeters;
+    private final double bufferDegrees;
+    private final BoundingBox boundingBox;
+
+    /**
+     * @param points the vertices of the polyline, at least one
+     * @param bufferMeters the width of the corridor on each side of the polyline, in meters
+     */
+    public Polyline(List<Point> points, double bufferMeters) {
+        Validate.isTrue(!points.isEmpty(), "A polyline needs at least 1 point");
+        Validate.isTrue(bufferMeters >= 0, "Buffer must be positive but was ", bufferMeters);
+        int count = points.size();
+        latitudes = new double[count];
+        longitudes = new double[count];
+        double north = -90, south = 90, east = -180, west = 180;
+        for (int i = 0; i < count; i++) {
+            latitudes[i] = points.get(i).getLatitude();
+            longitudes[i] = points.get(i).getLongitude();
+            north = Math.max(north, latitudes[i]);
+            south = Math.min(south, latitudes[i]);
+            east = Math.max(east, longitudes[i]);
+            west = Math.min(west, longitudes[i]);
+        }
+        this.bufferMeters = bufferMeters;
+        this.bufferDegrees = bufferMeters / METERS_PER_DEGREE;
+        double lonPad = bufferDegrees / minCos(north + bufferDegrees, south - bufferDegrees);
+        boundingBox = new BoundingBox(
+                Math.min(90, north + bufferDegrees),
+                Math.min(180, east + lonPad),
+                Math.max(-90, south - bufferDegrees),
+                Math.max(-180, west - lonPad));
+    }
+
+    public double getBufferMeters() {
+        return bufferMeters;
+    }
+
+    @Override
+    public BoundingBox getBoundingBox() {
+        return boundingBox;
+    }
+
+    @Override
+    public boolean contains(double latitude, double longitude) {
+        if (latitude < boundingBox.getSouth() || latitude > boundingBox.getNorth()
+                || longitude < boundingBox.getWest() || longitude > boundingBox.getEast()) {
+            return false;
+        }
+        double cos = Math.cos(Math.toRadians(latitude));
+        double maxSquared = bufferMeters * bufferMeters;
+        for (int i = 0; i < segmentCount(); i++) {
+            if (squaredDistance(latitude, longitude, cos, i) <= maxSquared) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Relation relate(double north, double east, double south, double west) {
+        if (south > boundingBox.getNorth() || north < boundingBox.getSouth()
+                || west > boundingBox.getEast() || east < boundingBox.getWest()) {
+            return Relation.OUTSIDE;
+        }
+
+        // Points within the buffer of the rectangle lie in the rectangle expanded by the buffer
+        // (with the longitude padding of the rectangle's latitude farthest from the equator).
+        double latPad = bufferDegrees;
+        double lonPad = bufferDegrees / minCos(north + latPad, south - latPad);
+        boolean near = false;
+        for (int i = 0; i < segmentCount() && !near; i++) {
+            int j = Math.min(i + 1, latitudes.length - 1);
+            near = Segments.intersectsRectangle(latitudes[i], longitudes[i], latitudes[j], longitudes[j],
+                    north + latPad, east + lonPad, south - latPad, west - lonPad);
+        }
+        if (!near) {
+            return Relation.OUTSIDE;
+        }
+
+        if (north - south > MAX_INSIDE_SPAN || east - west > MAX_INSIDE_SPAN) {
+            return Relation.BOUNDARY;
+        }
+        // contains() scales the longitudes of a point by the cosine of its own latitude. The distance to a segment
+        // only grows with the cosine, and with the largest cosine of the rectangle the buffer of a segment is convex:
+        // if it holds the 4 corners, contains() holds at every point of the rectangle, the corners included.
+        double nearestEquator = south > 0 ? south : north < 0 ? north : 0;
+        double cos = Math.cos(Math.toRadians(nearestEquator));
+        double maxSquared = bufferMeters * bufferMeters;
+        for (int i = 0; i < segmentCount(); i++) {
+            if (squaredDistance(north, east, cos, i) <= maxSquared
+                    && squaredDistance(north, west, cos, i) <= maxSquared
+                    && squaredDistance(south, east, cos, i) <= maxSquared
+                    && squaredDistance(south, west, cos, i) <= maxSquared) {
+                return Relation.INSIDE;
+            }
+        }
+        return Relation.BOUNDARY;
+    }
+
+    private int segmentCount() {
+        return Math.max(1, latitudes.length - 1);
+    }
+
+    // Squared distance in meters from the point to the i-th segment, projected around the point.
+    private double squaredDistance(double latitude, double longitude, double cos, int i) {
+        int j = Math.min(i + 1, latitudes.length - 1);
+        return Segments.squaredDistance(0, 0,
+                (longitudes[i] - longitude) * cos * METERS_PER_DEGREE, (latitudes[i] - latitude) * METERS_PER_DEGREE,
+                (longitudes[j] - longitude) * cos * METERS_PER_DEGREE, (latitudes[j] - latitude) * METERS_PER_DEGREE);
+    }
+
+    private static double minCos(double north, double south) {
+        double maxAbsLatitude = Math.min(MAX_COS_LATITUDE, Math.max(Math.abs(north), Math.abs(south)));
+        return Math.cos(Math.toRadians(maxAbsLatitude));
+    }
+}
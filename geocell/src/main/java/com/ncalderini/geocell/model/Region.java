@@ -0,0 +1,47 @@
+package com.ncalderini.geocell.model;
+
+/**
+ * A region of the latitude/longitude space that can be searched with geocells.
+ *
+ * @see com.ncalderini.geocell.RegionCoverer
+ */
+public interface Region {
+
+    /**
+     * Relation of a rectangle to a region.
+     */
+    enum Relation {
+        // The rectangle is entirely inside the region.
+        INSIDE,
+        // The rectangle and the region don't intersect.
+        OUTSIDE,
+        // The rectangle may be partly inside the region.
+        BOUNDARY
+    }
+
+    /**
+     * @return a bounding box containing the whole region
+     */
+    BoundingBox getBoundingBox();
+
+    /**
+     * @param latitude
+     * @param longitude
+     * @return whether the region contains the point
+     */
+    boolean contains(double latitude, double longitude);
+
+    /**
+     * Returns the relation of a rectangle (e.g. a geocell) to the region.
+     * Implementations may answer {@link Relation#BOUNDARY} when they can't decide cheaply:
+     * it's always correct, at the cost of testing more points with {@link #contains(double, double)}.
+     *
+     * @param north
+     * @param east
+     * @param south
+     * @param west
+     * @return the relation of the rectangle to the region
+     */
+    Relation relate(double north, double east, double south, double west);
+
+}
@@ -0,0 +1,61 @@
+package com.ncalderini.geocell.model;
+
+/**
+ * Planar segment helpers for the region implementations, with x as longitude and y as latitude.
+ */
+final class Segments {
+
+    private Segments() {
+        // no instantiation allowed
+    }
+
+    /**
+     * Liang-Barsky clipping of the segment (lat1, lon1) - (lat2, lon2) by the rectangle.
+     *
+     * @return whether the segment intersects (or touches) the rectangle
+     */
+    static boolean intersectsRectangle(double lat1, double lon1, double lat2, double lon2,
+                                       double north, double east, double south, double west) {
+        double dx = lon2 - lon1;
+        double dy = lat2 - lat1;
+        double[] p = {-dx, dx, -dy, dy};
+        double[] q = {lon1 - west, east - lon1, lat1 - south, north - lat1};
+        double t0 = 0;
+        double t1 = 1;
+        for (int i = 0; i < 4; i++) {
+            if (p[i] == 0) {
+                if (q[i] < 0) {
+                    return false;
+                }
+            } else {
+                double t = q[i] / p[i];
+                if (p[i] < 0) {
+                    if (t > t1) {
+                        return false;
+                    }
+                    t0 = Math.max(t0, t);
+                } else {
+                    if (t < t0) {
+                        return false;
+                    }
+                    t1 = Math.min(t1, t);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the squared distance from (x, y) to the segment (x1, y1) - (x2, y2)
+     */
+    static double squaredDistance(double x, double y, double x1, double y1, double x2, double y2) {
+        double dx = x2 - x1;
+        double dy = y2 - y1;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared == 0 ? 0 : ((x - x1) * dx + (y - y1) * dy) / lengthSquared;
+        t = Math.max(0, Math.min(1, t));
+        double px = x1 + t * dx - x;
+        double py = y1 + t * dy - y;
+        return px * px + py * py;
+    }
+}
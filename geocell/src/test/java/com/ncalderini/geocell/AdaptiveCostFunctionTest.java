@@ -0,0 +1,95 @@
+package com.ncalderini.geocell;
+
+import com.ncalderini.geocell.model.BoundingBox;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds the cost function with synthetic queries and checks what it learns from them.
+ */
+public class AdaptiveCostFunctionTest {
+
+    @Test
+    public void testPriorBeforeAnyQuery() {
+        AdaptiveCostFunction costFunction = new AdaptiveCostFunction();
+        double[] coefficients = costFunction.getLatencyCoefficients();
+        assertEquals(AdaptiveCostFunction.PRIOR_PER_QUERY, coefficients[0], 0);
+        assertEquals(AdaptiveCostFunction.PRIOR_PER_CELL, coefficients[1], 0);
+        assertEquals(AdaptiveCostFunction.PRIOR_PER_ENTITY, coefficients[2], 0);
+        assertEquals(0, costFunction.entitiesPerCell(6, PackedGeocellUtils.NO_CELL), 0);
+    }
+
+    @Test
+    public void testFitRecoversTheLatencyModel() {
+        Random random = new Random(1);
+        AdaptiveCostFunction costFunction = new AdaptiveCostFunction();
+        long region = PackedGeocellUtils.compute(48.5, 2.5, AdaptiveCostFunction.DEFAULT_REGION_RESOLUTION);
+        for (int i = 0; i < 2000; i++) {
+            int cells = 1 + random.nextInt(30);
+            int entities = random.nextInt(2000);
+            costFunction.record(children(region, cells), entities, (long) (5e6 + 2e6 * cells + 0.05e6 * entities));
+        }
+        double[] coefficients = costFunction.getLatencyCoefficients();
+        // the prior pulls the coefficients a little, the intercept most
+        assertEquals(5e6, coefficients[0], 5e6 * 0.05);
+        assertEquals(2e6, coefficients[1], 2e6 * 0.02);
+        assertEquals(0.05e6, coefficients[2], 0.05e6 * 0.02);
+    }
+
+    @Test
+    public void testEntitiesPerCellByRegion() {
+        AdaptiveCostFunction costFunction = new AdaptiveCostFunction();
+        long dense = PackedGeocellUtils.compute(48.85, 2.35, AdaptiveCostFunction.DEFAULT_REGION_RESOLUTION);
+        long sparse = PackedGeocellUtils.compute(46.5, 0.5, AdaptiveCostFunction.DEFAULT_REGION_RESOLUTION);
+        for (int i = 0; i < 100; i++) {
+            costFunction.record(children(dense, 10), 1000, 50000000);
+            costFunction.record(children(sparse, 10), 10, 25000000);
+        }
+        assertEquals(100, costFunction.entitiesPerCell(6, dense), 1);
+        assertEquals(1, costFunction.entitiesPerCell(6, sparse), 0.01);
+        // from the nearest resolution recorded, by the ratio of the areas of the cells
+        assertEquals(100.0 / 16, costFunction.entitiesPerCell(7, dense), 0.1);
+        // unknown regions use all the regions
+        long unknown = PackedGeocellUtils.compute(-30, 100, AdaptiveCostFunction.DEFAULT_REGION_RESOLUTION);
+        assertEquals(50.5, costFunction.entitiesPerCell(6, unknown), 1);
+
+        // the same search costs more where the cells hold more entities
+        BoundingBox denseBox = box(dense);
+        BoundingBox sparseBox = box(sparse);
+        assertTrue(costFunction.cost(4, 6, denseBox) > costFunction.cost(4, 6, sparseBox));
+    }
+
+    @Test
+    public void testTrackedRegionsAreBounded() {
+        AdaptiveCostFunction costFunction = new AdaptiveCostFunction(AdaptiveCostFunction.DEFAULT_REGION_RESOLUTION, 10, 1, TimeUnit.HOURS);
+        Random random = new Random(2);
+        for (int i = 0; i < 200; i++) {
+            long region = PackedGeocellUtils.compute(-80 + 160 * random.nextDouble(), -180 + 360 * random.nextDouble(),
+                    AdaptiveCostFunction.DEFAULT_REGION_RESOLUTION);
+            costFunction.record(children(region, 4), 40, 30000000);
+            assertTrue(costFunction.getRegionCount() + " regions", costFunction.getRegionCount() <= 10);
+        }
+    }
+
+    // Children of a cell, as strings: the first ones, then the same ones again past 16.
+    private static List<String> children(long cell, int count) {
+        List<String> children = new ArrayList<String>(count);
+        for (int digit = 0; digit < count; digit++) {
+            children.add(PackedGeocellUtils.toString(PackedGeocellUtils.child(cell, digit % 16)));
+        }
+        return children;
+    }
+
+    private static BoundingBox box(long cell) {
+        double[] box = new double[4];
+        PackedGeocellUtils.computeBox(cell, box);
+        return new BoundingBox(box[0], box[1], box[2], box[3]);
+    }
+}
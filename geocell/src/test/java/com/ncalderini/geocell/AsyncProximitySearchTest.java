@@ -0,0 +1,88 @@
+package com.ncalderini.geocell;
+
+import com.ncalderini.geocell.model.GeocellQuery;
+import com.ncalderini.geocell.model.Point;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the backend round trips of the asynchronous proximity search with the synchronous one, on an
+ * engine whose queries take one round trip and can be in flight together.
+ */
+public class AsyncProximitySearchTest {
+
+    @Test
+    public void testFewerRoundTripsThanSynchronousSearch() {
+        Random random = new Random(1);
+        List<TestEntity> entities = TestEntity.random(random, 2000, 48, 2, 49, 3);
+        int syncRoundTrips = 0;
+        int asyncRoundTrips = 0;
+        for (int i = 0; i < 20; i++) {
+            Point center = new Point(48 + random.nextDouble(), 2 + random.nextDouble());
+            int maxResults = 1 + random.nextInt(50);
+
+            LatencyQueryEngine sync = new LatencyQueryEngine(entities);
+            SearchResults<TestEntity> expected = GeocellManager.proximitySearch(center, maxResults, 0, 0, TestEntity.class,
+                    new GeocellQuery(), null, sync, GeocellManager.MAX_GEOCELL_RESOLUTION);
+            LatencyQueryEngine async = new LatencyQueryEngine(entities);
+            SearchResults<TestEntity> actual = GeocellManager.proximitySearchAsync(center, maxResults, 0, 0, TestEntity.class,
+                    new GeocellQuery(), null, async, GeocellManager.MAX_GEOCELL_RESOLUTION).join();
+
+            assertEquals(sorted(expected.getResults()), sorted(actual.getResults()));
+            // every query of the synchronous search is a round trip of its own
+            assertEquals(sync.getQueryCount(), sync.roundTrips);
+            assertTrue(async.roundTrips <= sync.roundTrips);
+            syncRoundTrips += sync.roundTrips;
+            asyncRoundTrips += async.roundTrips;
+        }
+        // the queries of the next step are in flight while the current one is read
+        assertTrue(asyncRoundTrips + " round trips, " + syncRoundTrips + " synchronously", 3 * asyncRoundTrips < 2 * syncRoundTrips);
+    }
+
+    private static List<String> sorted(List<TestEntity> entities) {
+        List<String> keys = new ArrayList<String>();
+        for (TestEntity entity : entities) {
+            keys.add(entity.getKeyString());
+        }
+        Collections.sort(keys);
+        return keys;
+    }
+
+    // Each query takes one round trip from the time it starts; the queries started together arrive together.
+    private static final class LatencyQueryEngine extends InMemoryQueryEngine implements DeferredQueryEngine {
+        private int roundTrips;
+
+        LatencyQueryEngine(List<TestEntity> entities) {
+            super(entities);
+        }
+
+        @Override
+        public <T> List<T> query(GeocellQuery baseQuery, String orderBy, List<String> curGeocellsUnique, Class<T> entityClass) {
+            roundTrips++;
+            return super.query(baseQuery, orderBy, curGeocellsUnique, entityClass);
+        }
+
+        @Override
+        public <T> CompletableFuture<List<T>> queryAsync(GeocellQuery baseQuery, String orderBy, List<String> curGeocellsUnique, Class<T> entityClass) {
+            return CompletableFuture.completedFuture(query(baseQuery, orderBy, curGeocellsUnique, entityClass));
+        }
+
+        @Override
+        public <T> CompletableFuture<List<T>> queryDeferred(GeocellQuery baseQuery, String orderBy, List<String> curGeocellsUnique, Class<T> entityClass) {
+            final List<T> results = super.query(baseQuery, orderBy, curGeocellsUnique, entityClass);
+            final int arrival = roundTrips + 1;
+            return new DeferredQueryEngine.Results<T>(() -> {
+                roundTrips = Math.max(roundTrips, arrival);
+                return results;
+            });
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.ncalderini.geocell;
+
+import com.ncalderini.geocell.model.GeocellQuery;
+import com.ncalderini.geocell.model.Point;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares a batch of k-nearest searches with the searches run one center at a time.
+ */
+public class BatchNearestSearchTest {
+
+    @Test
+    public void testBatchMatchesNearestSearch() {
+        Random random = new Random(1);
+        List<TestEntity> entities = TestEntity.random(random, 3000, 40, 0, 50, 10);
+        int count = 300;
+        List<Point> centers = new ArrayList<Point>(count);
+        int[] maxResults = new int[count];
+        double[] maxDistances = new double[count];
+        for (int i = 0; i < count; i++) {
+            centers.add(new Point(40 + 10 * random.nextDouble(), 10 * random.nextDouble()));
+            maxResults[i] = 1 + random.nextInt(20);
+            maxDistances[i] = random.nextBoolean() ? 0 : 1000 + 50000 * random.nextDouble();
+        }
+
+        InMemoryQueryEngine batchEngine = new InMemoryQueryEngine(entities);
+        List<SearchResults<TestEntity>> batch = GeocellManager.nearestSearchBatch(centers, maxResults, maxDistances,
+                TestEntity.class, new GeocellQuery(), null, batchEngine, GeocellManager.MAX_GEOCELL_RESOLUTION);
+        assertEquals(count, batch.size());
+
+        InMemoryQueryEngine engine = new InMemoryQueryEngine(entities);
+        for (int i = 0; i < count; i++) {
+            SearchResults<TestEntity> expected = GeocellManager.nearestSearch(centers.get(i), maxResults[i], 0, maxDistances[i],
+                    TestEntity.class, new GeocellQuery(), null, engine, GeocellManager.MAX_GEOCELL_RESOLUTION);
+            assertEquals(centers.get(i).toString(), expected.getResults(), batch.get(i).getResults());
+            assertEquals(expected.getDistances(), batch.get(i).getDistances());
+        }
+        // the rounds are split into queries the datastore accepts, and the batch shares them
+        assertTrue(batchEngine.getMaxCellsPerQuery() + " cells in a query", batchEngine.getMaxCellsPerQuery() <= 30);
+        assertTrue(batchEngine.getQueryCount() + " queries, " + engine.getQueryCount() + " one center at a time",
+                batchEngine.getQueryCount() < engine.getQueryCount());
+    }
+}
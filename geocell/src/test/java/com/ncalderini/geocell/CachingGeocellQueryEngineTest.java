@@ -0,0 +1,128 @@
+package com.ncalderini.geocell;
+
+import com.ncalderini.geocell.model.GeocellQuery;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks which cells the cache queries from the backend, and that its results are the backend ones.
+ */
+public class CachingGeocellQueryEngineTest {
+
+    private final List<TestEntity> entities = TestEntity.random(new Random(1), 500, 48, 2, 49, 3);
+
+    @Test
+    public void testCachedCellsAreNotQueriedAgain() {
+        List<String> cells = cells(3);
+        RecordingQueryEngine backend = new RecordingQueryEngine(entities);
+        CachingGeocellQueryEngine cache = new CachingGeocellQueryEngine(backend);
+
+        List<String> first = cells.subList(0, 2);
+        assertEquals(expected(first), keys(query(cache, first)));
+        assertEquals(first, backend.lastCells);
+        assertEquals(expected(first), keys(query(cache, first)));
+        assertEquals(1, backend.getQueryCount());
+
+        // only the cell not cached yet goes to the backend
+        assertEquals(expected(cells), keys(query(cache, cells)));
+        assertEquals(cells.subList(2, 3), backend.lastCells);
+        assertEquals(4, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void testInvalidatedCellsAreQueriedAgain() {
+        TestEntity entity = entities.get(0);
+        List<String> cells = entity.getGeocells().subList(4, 6);
+        RecordingQueryEngine backend = new RecordingQueryEngine(entities);
+        CachingGeocellQueryEngine cache = new CachingGeocellQueryEngine(backend);
+        List<String> other = cells(5);
+        other.removeAll(cells);
+
+        query(cache, cells);
+        query(cache, other);
+        cache.invalidate(entity);
+        int queries = backend.getQueryCount();
+        query(cache, other);
+        assertEquals(queries, backend.getQueryCount());
+        assertEquals(expected(cells), keys(query(cache, cells)));
+        assertEquals(cells, backend.lastCells);
+
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testExpiredAndEvictedCellsAreQueriedAgain() {
+        List<String> cells = cells(3);
+        RecordingQueryEngine backend = new RecordingQueryEngine(entities);
+        CachingGeocellQueryEngine expiring = new CachingGeocellQueryEngine(backend, 100, 0, TimeUnit.NANOSECONDS);
+        query(expiring, cells);
+        query(expiring, cells);
+        assertEquals(2, backend.getQueryCount());
+        assertEquals(cells, backend.lastCells);
+
+        RecordingQueryEngine evictingBackend = new RecordingQueryEngine(entities);
+        CachingGeocellQueryEngine evicting = new CachingGeocellQueryEngine(evictingBackend, 2, 1, TimeUnit.MINUTES);
+        for (String cell : cells) {
+            query(evicting, Collections.singletonList(cell));
+        }
+        assertEquals(2, evicting.size());
+        query(evicting, cells);
+        // the least recently used cell was evicted
+        assertEquals(cells.subList(0, 1), evictingBackend.lastCells);
+    }
+
+    // Distinct cells of resolution 5 holding entities.
+    private List<String> cells(int count) {
+        Set<String> cells = new LinkedHashSet<String>();
+        for (TestEntity entity : entities) {
+            cells.add(entity.getGeocells().get(4));
+            if (cells.size() == count) {
+                break;
+            }
+        }
+        return new ArrayList<String>(cells);
+    }
+
+    private List<String> expected(List<String> cells) {
+        return keys(new InMemoryQueryEngine(entities).query(new GeocellQuery(), null, cells, TestEntity.class));
+    }
+
+    private static List<TestEntity> query(CachingGeocellQueryEngine cache, List<String> cells) {
+        return cache.query(new GeocellQuery(), null, cells, TestEntity.class);
+    }
+
+    private static List<String> keys(List<TestEntity> entities) {
+        List<String> keys = new ArrayList<String>();
+        for (TestEntity entity : entities) {
+            keys.add(entity.getKeyString());
+        }
+        Collections.sort(keys);
+        return keys;
+    }
+
+    private static final class RecordingQueryEngine extends InMemoryQueryEngine {
+        private List<String> lastCells;
+
+        RecordingQueryEngine(List<TestEntity> entities) {
+            super(entities);
+        }
+
+        @Override
+        public <T> List<T> query(GeocellQuery baseQuery, String orderBy, List<String> curGeocellsUnique, Class<T> entityClass) {
+            lastCells = new ArrayList<String>(curGeocellsUnique);
+            return super.query(baseQuery, orderBy, curGeocellsUnique, entityClass);
+        }
+    }
+}
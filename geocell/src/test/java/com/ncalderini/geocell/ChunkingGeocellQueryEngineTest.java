@@ -0,0 +1,118 @@
+package com.ncalderini.geocell;
+
+import com.ncalderini.geocell.model.GeocellQuery;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that chunked queries return the results of the whole query, once each, within the chunk size
+ * and the concurrency.
+ */
+public class ChunkingGeocellQueryEngineTest {
+
+    private final List<TestEntity> entities = TestEntity.random(new Random(1), 2000, 48, 2, 49, 3);
+
+    @Test
+    public void testChunksMatchTheWholeQuery() {
+        // cells of two resolutions, so that an entity is in several chunks
+        List<String> cells = cells(100);
+        InMemoryQueryEngine backend = new InMemoryQueryEngine(entities);
+        ChunkingGeocellQueryEngine engine = new ChunkingGeocellQueryEngine(backend, 7, 3);
+
+        List<String> results = keys(engine.query(new GeocellQuery(), null, cells, TestEntity.class));
+        assertEquals(new HashSet<String>(results).size(), results.size());
+        assertEquals(sorted(keys(new InMemoryQueryEngine(entities).query(new GeocellQuery(), null, cells, TestEntity.class))),
+                sorted(results));
+        assertEquals((cells.size() + 6) / 7, backend.getQueryCount());
+        assertTrue(backend.getMaxCellsPerQuery() <= 7);
+
+        // a small query is not split
+        engine.query(new GeocellQuery(), null, cells.subList(0, 7), TestEntity.class);
+        assertEquals((cells.size() + 6) / 7 + 1, backend.getQueryCount());
+    }
+
+    @Test
+    public void testConcurrencyIsBounded() {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        InMemoryQueryEngine backend = new InMemoryQueryEngine(entities) {
+            @Override
+            public <T> List<T> query(GeocellQuery baseQuery, String orderBy, List<String> curGeocellsUnique, Class<T> entityClass) {
+                int current = running.incrementAndGet();
+                maxRunning.accumulateAndGet(current, Math::max);
+                try {
+                    Thread.sleep(5);
+                    return super.query(baseQuery, orderBy, curGeocellsUnique, entityClass);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                } finally {
+                    running.decrementAndGet();
+                }
+            }
+        };
+        new ChunkingGeocellQueryEngine(backend, 2, 3).query(new GeocellQuery(), null, cells(60), TestEntity.class);
+        assertEquals(30, backend.getQueryCount());
+        assertTrue(maxRunning.get() + " chunks at the same time", maxRunning.get() <= 3);
+    }
+
+    @Test
+    public void testChunkFailureIsThrown() {
+        final List<String> cells = cells(40);
+        InMemoryQueryEngine backend = new InMemoryQueryEngine(entities) {
+            @Override
+            public <T> List<T> query(GeocellQuery baseQuery, String orderBy, List<String> curGeocellsUnique, Class<T> entityClass) {
+                if (curGeocellsUnique.contains(cells.get(35))) {
+                    throw new IllegalStateException("backend failure");
+                }
+                return super.query(baseQuery, orderBy, curGeocellsUnique, entityClass);
+            }
+        };
+        try {
+            new ChunkingGeocellQueryEngine(backend, 10, 2).query(new GeocellQuery(), null, cells, TestEntity.class);
+            fail("chunk failure ignored");
+        } catch (IllegalStateException e) {
+            assertEquals("backend failure", e.getMessage());
+        }
+    }
+
+    // Distinct cells of resolutions 5 and 6 holding entities.
+    private List<String> cells(int count) {
+        Set<String> cells = new LinkedHashSet<String>();
+        for (TestEntity entity : entities) {
+            cells.add(entity.getGeocells().get(4));
+            if (cells.size() < count) {
+                cells.add(entity.getGeocells().get(5));
+            }
+            if (cells.size() == count) {
+                break;
+            }
+        }
+        return new ArrayList<String>(cells);
+    }
+
+    private static List<String> keys(List<TestEntity> entities) {
+        List<String> keys = new ArrayList<String>();
+        for (TestEntity entity : entities) {
+            keys.add(entity.getKeyString());
+        }
+        return keys;
+    }
+
+    private static List<String> sorted(List<String> keys) {
+        List<String> sorted = new ArrayList<String>(keys);
+        Collections.sort(sorted);
+        return sorted;
+    }
+}
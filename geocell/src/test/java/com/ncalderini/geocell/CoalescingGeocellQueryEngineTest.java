@@ -0,0 +1,167 @@
+package com.ncalderini.geocell;
+
+import com.ncalderini.geocell.model.GeocellQuery;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs identical queries while one of them is held on the backend, and checks that they share it.
+ */
+public class CoalescingGeocellQueryEngineTest {
+
+    private static final int WAITERS = 8;
+
+    private final List<TestEntity> entities = TestEntity.random(new Random(1), 500, 48, 2, 49, 3);
+    private final List<String> cells = Arrays.asList(entities.get(0).getGeocells().get(4), entities.get(1).getGeocells().get(4));
+
+    @Test
+    public void testConcurrentIdenticalQueriesAreCoalesced() throws Exception {
+        BlockingQueryEngine backend = new BlockingQueryEngine(entities, false);
+        CoalescingGeocellQueryEngine engine = new CoalescingGeocellQueryEngine(backend);
+        ExecutorService executor = Executors.newFixedThreadPool(WAITERS + 1);
+        try {
+            List<Future<List<TestEntity>>> results = startQueries(engine, backend, executor);
+            backend.release.countDown();
+
+            List<TestEntity> expected = new InMemoryQueryEngine(entities).query(new GeocellQuery(), null, cells, TestEntity.class);
+            List<TestEntity> first = results.get(0).get(10, TimeUnit.SECONDS);
+            for (Future<List<TestEntity>> result : results) {
+                List<TestEntity> actual = result.get(10, TimeUnit.SECONDS);
+                assertEquals(expected, actual);
+                if (result != results.get(0)) {
+                    // each caller gets its own list
+                    assertNotSame(first, actual);
+                }
+            }
+            assertEquals(1, backend.getQueryCount());
+            assertEquals(1, engine.getQueryCount());
+            assertEquals(WAITERS, engine.getCoalescedCount());
+            assertEquals(0, engine.getInFlightCount());
+
+            // nothing is kept once the query completed
+            engine.query(new GeocellQuery(), null, cells, TestEntity.class);
+            assertEquals(2, backend.getQueryCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailureIsThrownToEveryWaiter() throws Exception {
+        BlockingQueryEngine backend = new BlockingQueryEngine(entities, true);
+        CoalescingGeocellQueryEngine engine = new CoalescingGeocellQueryEngine(backend);
+        ExecutorService executor = Executors.newFixedThreadPool(WAITERS + 1);
+        try {
+            List<Future<List<TestEntity>>> results = startQueries(engine, backend, executor);
+            backend.release.countDown();
+            for (Future<List<TestEntity>> result : results) {
+                try {
+                    result.get(10, TimeUnit.SECONDS);
+                    fail("backend failure ignored");
+                } catch (ExecutionException e) {
+                    assertEquals("backend failure", e.getCause().getMessage());
+                }
+            }
+            assertEquals(1, backend.getQueryCount());
+            assertEquals(0, engine.getInFlightCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testAsynchronousQueriesAreCoalesced() {
+        final CompletableFuture<List<TestEntity>> backendResults = new CompletableFuture<List<TestEntity>>();
+        final List<List<String>> backendQueries = new ArrayList<List<String>>();
+        AsyncGeocellQueryEngine backend = new AsyncGeocellQueryEngine() {
+            @Override
+            public <T> List<T> query(GeocellQuery baseQuery, String orderBy, List<String> curGeocellsUnique, Class<T> entityClass) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public <T> CompletableFuture<List<T>> queryAsync(GeocellQuery baseQuery, String orderBy, List<String> curGeocellsUnique, Class<T> entityClass) {
+                backendQueries.add(curGeocellsUnique);
+                return (CompletableFuture<List<T>>) (CompletableFuture<?>) backendResults;
+            }
+        };
+        CoalescingGeocellQueryEngine engine = new CoalescingGeocellQueryEngine(backend);
+
+        CompletableFuture<List<TestEntity>> first = engine.queryAsync(new GeocellQuery(), null, cells, TestEntity.class);
+        List<String> reversed = new ArrayList<String>(cells);
+        Collections.reverse(reversed);
+        CompletableFuture<List<TestEntity>> second = engine.queryAsync(new GeocellQuery(), null, reversed, TestEntity.class);
+        assertEquals(1, backendQueries.size());
+        assertEquals(1, engine.getInFlightCount());
+
+        backendResults.complete(entities.subList(0, 2));
+        assertEquals(entities.subList(0, 2), first.join());
+        assertEquals(entities.subList(0, 2), second.join());
+        assertNotSame(first.join(), second.join());
+        assertEquals(0, engine.getInFlightCount());
+    }
+
+    // Starts a query held on the backend, then the waiters, the cells in another order, once it is held.
+    private List<Future<List<TestEntity>>> startQueries(final CoalescingGeocellQueryEngine engine, BlockingQueryEngine backend,
+                                                        ExecutorService executor) throws InterruptedException {
+        List<Future<List<TestEntity>>> results = new ArrayList<Future<List<TestEntity>>>();
+        results.add(executor.submit(() -> engine.query(new GeocellQuery(), null, cells, TestEntity.class)));
+        assertTrue(backend.entered.await(10, TimeUnit.SECONDS));
+        final List<String> reversed = new ArrayList<String>(cells);
+        Collections.reverse(reversed);
+        for (int i = 0; i < WAITERS; i++) {
+            results.add(executor.submit(() -> engine.query(new GeocellQuery(), null, reversed, TestEntity.class)));
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (engine.getCoalescedCount() < WAITERS && System.nanoTime() - deadline < 0) {
+            Thread.sleep(1);
+        }
+        assertEquals(WAITERS, engine.getCoalescedCount());
+        return results;
+    }
+
+    // Holds the queries until released, then answers or fails them.
+    private static final class BlockingQueryEngine extends InMemoryQueryEngine {
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final boolean fail;
+
+        BlockingQueryEngine(List<TestEntity> entities, boolean fail) {
+            super(entities);
+            this.fail = fail;
+        }
+
+        @Override
+        public <T> List<T> query(GeocellQuery baseQuery, String orderBy, List<String> curGeocellsUnique, Class<T> entityClass) {
+            List<T> results = super.query(baseQuery, orderBy, curGeocellsUnique, entityClass);
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            if (fail) {
+                throw new IllegalStateException("backend failure");
+            }
+            return results;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.ncalderini.geocell;
+
+import com.ncalderini.geocell.model.GeocellQuery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Query engine of the tests: returns the entities indexed in any of the queried cells, and counts the
+ * queries and the cells queried.
+ */
+class InMemoryQueryEngine implements GeocellQueryEngine {
+
+    private final List<? extends TestEntity> entities;
+    private final AtomicInteger queries = new AtomicInteger();
+    private volatile int maxCellsPerQuery;
+
+    InMemoryQueryEngine(List<? extends TestEntity> entities) {
+        this.entities = entities;
+    }
+
+    @Override
+    public <T> List<T> query(GeocellQuery baseQuery, String orderBy, List<String> curGeocellsUnique, Class<T> entityClass) {
+        queries.incrementAndGet();
+        maxCellsPerQuery = Math.max(maxCellsPerQuery, curGeocellsUnique.size());
+        Set<String> cells = new HashSet<String>(curGeocellsUnique);
+        List<T> results = new ArrayList<T>();
+        for (TestEntity entity : entities) {
+            if (!Collections.disjoint(cells, entity.getGeocells())) {
+                results.add(entityClass.cast(entity));
+            }
+        }
+        return results;
+    }
+
+    int getQueryCount() {
+        return queries.get();
+    }
+
+    int getMaxCellsPerQuery() {
+        return maxCellsPerQuery;
+    }
+}
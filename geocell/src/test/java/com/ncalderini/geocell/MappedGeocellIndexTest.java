@@ -0,0 +1,132 @@
+package com.ncalderini.geocell;
+
+import com.ncalderini.geocell.model.GeocellQuery;
+import com.ncalderini.geocell.model.LocationCapable;
+import com.ncalderini.geocell.model.Point;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Writes index files, maps them back, and compares their cell ranges and searches with brute force.
+ */
+public class MappedGeocellIndexTest {
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        List<TestEntity> entities = TestEntity.random(new Random(1), 5000, 48, 2, 49, 3);
+        Path file = Files.createTempFile("geocells", ".idx");
+        try {
+            MappedGeocellIndex.Builder builder = MappedGeocellIndex.builder();
+            for (TestEntity entity : entities) {
+                builder.add(entity);
+            }
+            // keys are stored as UTF-8
+            builder.add("cl\u00e9-\u4e2d", -33.9, 151.2);
+            builder.write(file);
+            MappedGeocellIndex index = MappedGeocellIndex.open(file);
+
+            assertEquals(entities.size() + 1, index.size());
+            Map<String, Point> locations = new HashMap<String, Point>();
+            for (int i = 0; i < index.size(); i++) {
+                locations.put(index.getKey(i), new Point(index.getLatitude(i), index.getLongitude(i)));
+                assertEquals(PackedGeocellUtils.computeMax(index.getLatitude(i), index.getLongitude(i)), index.getCell(i));
+                if (i > 0) {
+                    assertTrue(Long.compareUnsigned(index.getCell(i - 1), index.getCell(i)) <= 0);
+                }
+            }
+            for (TestEntity entity : entities) {
+                Point location = locations.get(entity.getKeyString());
+                assertEquals(entity.getLocation().getLatitude(), location.getLatitude(), 0);
+                assertEquals(entity.getLocation().getLongitude(), location.getLongitude(), 0);
+            }
+            assertEquals(-33.9, locations.get("cl\u00e9-\u4e2d").getLatitude(), 0);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testRangesAndSearchesMatchBruteForce() throws IOException {
+        Random random = new Random(2);
+        List<TestEntity> entities = TestEntity.random(random, 5000, 48, 2, 49, 3);
+        Path file = Files.createTempFile("geocells", ".idx");
+        try {
+            MappedGeocellIndex.Builder builder = MappedGeocellIndex.builder();
+            for (TestEntity entity : entities) {
+                builder.add(entity);
+            }
+            builder.write(file);
+            MappedGeocellIndex index = MappedGeocellIndex.open(file);
+
+            for (int i = 0; i < 500; i++) {
+                Point point = new Point(47.9 + 1.2 * random.nextDouble(), 1.9 + 1.2 * random.nextDouble());
+                long cell = PackedGeocellUtils.compute(point, 1 + random.nextInt(GeocellManager.MAX_GEOCELL_RESOLUTION));
+                int count = 0;
+                for (TestEntity entity : entities) {
+                    if (PackedGeocellUtils.containsPoint(cell, entity.getLocation())) {
+                        count++;
+                    }
+                }
+                assertEquals(PackedGeocellUtils.toString(cell), count, index.rangeEnd(cell) - index.rangeStart(cell));
+                for (int j = index.rangeStart(cell); j < index.rangeEnd(cell); j++) {
+                    assertTrue(PackedGeocellUtils.containsPoint(cell, new Point(index.getLatitude(j), index.getLongitude(j))));
+                }
+            }
+
+            MappedGeocellQueryEngine engine = new MappedGeocellQueryEngine(index);
+            InMemoryQueryEngine expectedEngine = new InMemoryQueryEngine(entities);
+            for (int i = 0; i < 20; i++) {
+                Point center = new Point(48 + random.nextDouble(), 2 + random.nextDouble());
+                int maxResults = 1 + random.nextInt(50);
+                SearchResults<TestEntity> expected = GeocellManager.nearestSearch(center, maxResults, 0, 0, TestEntity.class,
+                        new GeocellQuery(), null, expectedEngine, GeocellManager.MAX_GEOCELL_RESOLUTION);
+                SearchResults<IndexedPoint> actual = GeocellManager.nearestSearch(center, maxResults, 0, 0, IndexedPoint.class,
+                        new GeocellQuery(), null, engine, GeocellManager.MAX_GEOCELL_RESOLUTION);
+                assertEquals(keys(expected.getResults()), keys(actual.getResults()));
+
+                // a point returned by several steps is returned once
+                List<String> proximity = keys(GeocellManager.proximitySearch(center, maxResults, 0, 0, IndexedPoint.class,
+                        new GeocellQuery(), null, engine, GeocellManager.MAX_GEOCELL_RESOLUTION).getResults());
+                assertEquals(maxResults, proximity.size());
+                assertEquals(maxResults, new HashSet<String>(proximity).size());
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testRejectsOtherFiles() throws IOException {
+        Path file = Files.createTempFile("geocells", ".idx");
+        try {
+            Files.write(file, new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16});
+            MappedGeocellIndex.open(file);
+            fail("not an index accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static List<String> keys(List<? extends LocationCapable> entities) {
+        List<String> keys = new ArrayList<String>();
+        for (LocationCapable entity : entities) {
+            keys.add(entity.getKeyString());
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,114 @@
+package com.ncalderini.geocell;
+
+import com.ncalderini.geocell.model.Point;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the k nearest points found by the index with the distances to every point.
+ */
+public class NearestNeighborIndexTest {
+
+    @Test
+    public void testNearestMatchesBruteForce() {
+        Random random = new Random(1);
+        // a dense city among sparse points, so that the search descends into crowded cells
+        double[][] points = points(random, 3000, 500);
+        NearestNeighborIndex index = new NearestNeighborIndex(points[0], points[1]);
+        assertEquals(3500, index.size());
+        for (int i = 0; i < 1000; i++) {
+            double latitude = i % 2 == 0 ? 48.8 + 0.1 * random.nextDouble() : -90 + 180 * random.nextDouble();
+            double longitude = i % 2 == 0 ? 2.3 + 0.1 * random.nextDouble() : -180 + 360 * random.nextDouble();
+            int k = 1 + random.nextInt(8);
+            int[] nearest = new int[k + 1];
+            double[] distances = new double[k + 1];
+            assertEquals(k, index.nearest(latitude, longitude, k, nearest, distances, 1));
+            checkNearest(points, latitude, longitude, k, nearest, distances, 1);
+            assertEquals(nearest[1], index.nearest(latitude, longitude));
+        }
+    }
+
+    @Test
+    public void testAssignMatchesBruteForce() {
+        Random random = new Random(2);
+        double[][] points = points(random, 1000, 1000);
+        NearestNeighborIndex index = new NearestNeighborIndex(points[0], points[1]);
+        // enough queries to split the batch across the pool, some of them around the antimeridian and the poles
+        int count = 3000;
+        double[] latitudes = new double[count];
+        double[] longitudes = new double[count];
+        for (int i = 0; i < count; i++) {
+            latitudes[i] = i % 3 == 0 ? 85 + 5 * random.nextDouble() : -90 + 180 * random.nextDouble();
+            if (i % 3 == 1) {
+                longitudes[i] = random.nextBoolean() ? 179 + random.nextDouble() : -180 + random.nextDouble();
+            } else {
+                longitudes[i] = -180 + 360 * random.nextDouble();
+            }
+        }
+        int k = 3;
+        int[] nearest = new int[count * k];
+        double[] distances = new double[count * k];
+        index.assign(latitudes, longitudes, k, nearest, distances);
+        for (int i = 0; i < count; i++) {
+            checkNearest(points, latitudes[i], longitudes[i], k, nearest, distances, i * k);
+        }
+    }
+
+    @Test
+    public void testFewerPointsThanK() {
+        NearestNeighborIndex index = new NearestNeighborIndex(new double[] {48.85, 40.7}, new double[] {2.35, -74});
+        int[] nearest = new int[4];
+        double[] distances = new double[4];
+        assertEquals(2, index.nearest(48, 2, 4, nearest, distances, 0));
+        assertEquals(0, nearest[0]);
+        assertEquals(1, nearest[1]);
+        assertEquals(-1, nearest[2]);
+        assertEquals(Double.POSITIVE_INFINITY, distances[3], 0);
+
+        assertEquals(-1, new NearestNeighborIndex(new double[0], new double[0]).nearest(48, 2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsResultsTooShort() {
+        NearestNeighborIndex index = new NearestNeighborIndex(new double[] {48.85}, new double[] {2.35});
+        index.assign(new double[] {48, 49}, new double[] {2, 3}, 2, new int[3], null);
+    }
+
+    private static void checkNearest(double[][] points, double latitude, double longitude, int k, int[] nearest,
+                                     double[] distances, int offset) {
+        Point query = new Point(latitude, longitude);
+        double[] all = new double[points[0].length];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = GeocellUtils.distance(query, new Point(points[0][i], points[1][i]));
+        }
+        double[] sorted = all.clone();
+        Arrays.sort(sorted);
+        for (int j = 0; j < k; j++) {
+            String message = query + " #" + j;
+            double tolerance = 1e-6 * Math.max(1, sorted[j]);
+            assertEquals(message, sorted[j], distances[offset + j], tolerance);
+            // the point found is at that distance (another one only if both are as near)
+            assertEquals(message, sorted[j], all[nearest[offset + j]], tolerance);
+        }
+    }
+
+    // Clustered points around Paris, then points all over the world.
+    private static double[][] points(Random random, int clustered, int uniform) {
+        double[] latitudes = new double[clustered + uniform];
+        double[] longitudes = new double[clustered + uniform];
+        for (int i = 0; i < latitudes.length; i++) {
+            if (i < clustered) {
+                latitudes[i] = 48.8 + 0.1 * random.nextDouble();
+                longitudes[i] = 2.3 + 0.1 * random.nextDouble();
+            } else {
+                latitudes[i] = -90 + 180 * random.nextDouble();
+                longitudes[i] = -180 + 360 * random.nextDouble();
+            }
+        }
+        return new double[][] {latitudes, longitudes};
+    }
+}
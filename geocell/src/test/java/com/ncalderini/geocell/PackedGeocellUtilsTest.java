@@ -0,0 +1,258 @@
+package com.ncalderini.geocell;
+
+import com.ncalderini.geocell.model.BoundingBox;
+import com.ncalderini.geocell.model.Point;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the packed geocells against the string geocells, and against the original float walk of
+ * GeocellUtils.compute and computeBox.
+ */
+public class PackedGeocellUtilsTest {
+
+    private static final int POINTS = 20000;
+
+    @Test
+    public void testStringRoundTrip() {
+        Random random = new Random(1);
+        for (int i = 0; i < POINTS; i++) {
+            Point point = randomPoint(random);
+            for (int resolution = 1; resolution <= PackedGeocellUtils.MAX_RESOLUTION; resolution++) {
+                String cell = GeocellUtils.compute(point, resolution);
+                long packed = PackedGeocellUtils.fromString(cell);
+                assertEquals(cell, PackedGeocellUtils.toString(packed));
+                assertEquals(resolution, PackedGeocellUtils.resolution(packed));
+                assertTrue(PackedGeocellUtils.isValid(packed));
+            }
+        }
+    }
+
+    @Test
+    public void testComputeBoxMatchesStrings() {
+        Random random = new Random(3);
+        double[] box = new double[4];
+        for (int i = 0; i < POINTS; i++) {
+            String cell = GeocellUtils.compute(randomPoint(random), 1 + random.nextInt(PackedGeocellUtils.MAX_RESOLUTION));
+            BoundingBox expected = GeocellUtils.computeBox(cell);
+            PackedGeocellUtils.computeBox(PackedGeocellUtils.fromString(cell), box);
+            assertEquals(expected.getNorth(), box[0], 1e-9);
+            assertEquals(expected.getEast(), box[1], 1e-9);
+            assertEquals(expected.getSouth(), box[2], 1e-9);
+            assertEquals(expected.getWest(), box[3], 1e-9);
+        }
+    }
+
+    @Test
+    public void testComputeMatchesStrings() {
+        Random random = new Random(1);
+        for (int i = 0; i < POINTS; i++) {
+            Point point = randomPoint(random);
+            for (int resolution = 1; resolution <= PackedGeocellUtils.MAX_RESOLUTION; resolution++) {
+                String cell = GeocellUtils.compute(point, resolution);
+                assertEquals(cell, PackedGeocellUtils.toString(PackedGeocellUtils.compute(point, resolution)));
+                assertTrue(GeocellUtils.containsPoint(cell, point));
+            }
+        }
+    }
+
+    @Test
+    public void testComputeMatchesFloatWalkUpToResolution10() {
+        // the original walk is too coarse for the cells of resolution 11 to 13
+        Random random = new Random(2);
+        for (int i = 0; i < POINTS; i++) {
+            Point point = randomPoint(random);
+            for (int resolution = 1; resolution <= 10; resolution++) {
+                assertEquals(point + " at resolution " + resolution,
+                        floatWalkCompute(point, resolution), GeocellUtils.compute(point, resolution));
+            }
+        }
+    }
+
+    @Test
+    public void testComputeBoxMatchesWalk() {
+        Random random = new Random(3);
+        double[] box = new double[4];
+        for (int i = 0; i < POINTS; i++) {
+            long cell = PackedGeocellUtils.compute(randomPoint(random), 1 + random.nextInt(PackedGeocellUtils.MAX_RESOLUTION));
+            String string = PackedGeocellUtils.toString(cell);
+            BoundingBox expected = walkComputeBox(string);
+            BoundingBox actual = GeocellUtils.computeBox(string);
+            assertEquals(expected.getNorth(), actual.getNorth(), 1e-9);
+            assertEquals(expected.getEast(), actual.getEast(), 1e-9);
+            assertEquals(expected.getSouth(), actual.getSouth(), 1e-9);
+            assertEquals(expected.getWest(), actual.getWest(), 1e-9);
+
+            PackedGeocellUtils.computeBox(cell, box);
+            assertEquals(actual.getNorth(), box[0], 0);
+            assertEquals(actual.getEast(), box[1], 0);
+            assertEquals(actual.getSouth(), box[2], 0);
+            assertEquals(actual.getWest(), box[3], 0);
+        }
+    }
+
+    @Test
+    public void testUnsignedOrderMatchesStringOrder() {
+        Random random = new Random(4);
+        for (int i = 0; i < POINTS; i++) {
+            String first = GeocellUtils.compute(randomPoint(random), 1 + random.nextInt(PackedGeocellUtils.MAX_RESOLUTION));
+            String second = random.nextInt(4) == 0
+                    ? first.substring(0, 1 + random.nextInt(first.length()))
+                    : GeocellUtils.compute(randomPoint(random), 1 + random.nextInt(PackedGeocellUtils.MAX_RESOLUTION));
+            int expected = Integer.signum(first.compareTo(second));
+            int actual = Integer.signum(Long.compareUnsigned(PackedGeocellUtils.fromString(first), PackedGeocellUtils.fromString(second)));
+            assertEquals(first + " " + second, expected, actual);
+        }
+    }
+
+    @Test
+    public void testIsValid() {
+        assertTrue(PackedGeocellUtils.isValid(PackedGeocellUtils.fromString("f")));
+        assertFalse(PackedGeocellUtils.isValid(PackedGeocellUtils.NO_CELL));
+        // digits below the resolution must be zero
+        assertFalse(PackedGeocellUtils.isValid(PackedGeocellUtils.fromString("a1") - 1));
+        assertFalse(GeocellUtils.isValid("ag"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFromStringRejectsInvalidCells() {
+        PackedGeocellUtils.fromString("ag");
+    }
+
+    @Test
+    public void testInterpolateMatchesGrid() {
+        Random random = new Random(5);
+        for (int i = 0; i < 2000; i++) {
+            int resolution = 1 + random.nextInt(5);
+            double south = -90 + 180 * random.nextDouble();
+            double north = south + (90 - south) * random.nextDouble();
+            // the box may cross the antimeridian
+            double west = -180 + 360 * random.nextDouble();
+            double east = west + 90 * random.nextDouble();
+            if (east > 180) {
+                east -= 360;
+            }
+            long cellNE = PackedGeocellUtils.compute(north, east, resolution);
+            long cellSW = PackedGeocellUtils.compute(south, west, resolution);
+
+            List<String> expected = grid(PackedGeocellUtils.toString(cellNE), PackedGeocellUtils.toString(cellSW));
+            long[] packed = PackedGeocellUtils.interpolate(cellNE, cellSW);
+            List<String> actual = new ArrayList<String>(packed.length);
+            for (long cell : packed) {
+                actual.add(PackedGeocellUtils.toString(cell));
+            }
+            assertEquals(expected, actual);
+            assertEquals(expected.size(), PackedGeocellUtils.interpolationCount(cellNE, cellSW));
+            assertEquals(expected, GeocellUtils.interpolate(PackedGeocellUtils.toString(cellNE), PackedGeocellUtils.toString(cellSW)));
+            assertEquals(expected.size(), GeocellUtils.interpolationCount(PackedGeocellUtils.toString(cellNE), PackedGeocellUtils.toString(cellSW)));
+        }
+    }
+
+    @Test
+    public void testBestBboxSearchCellsCoverTheBox() {
+        Random random = new Random(6);
+        for (int i = 0; i < 500; i++) {
+            double south = -90 + 180 * random.nextDouble();
+            double north = south + Math.min(90 - south, 10 * random.nextDouble());
+            double west = -180 + 360 * random.nextDouble();
+            double east = Math.min(180, west + 10 * random.nextDouble());
+            List<String> cells = GeocellManager.bestBboxSearchCells(new BoundingBox(north, east, south, west), null);
+            for (int j = 0; j < 20; j++) {
+                Point point = new Point(south + (north - south) * random.nextDouble(), west + (east - west) * random.nextDouble());
+                assertTrue(point + " not covered by " + cells, containedInAny(cells, point));
+            }
+        }
+    }
+
+    private static boolean containedInAny(List<String> cells, Point point) {
+        for (String cell : cells) {
+            if (GeocellUtils.containsPoint(cell, point)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The cells between the two corners, computed from the centers of the cells: rows from the south
+    // up to the row of the Northeast cell, each from the west and wrapping at the antimeridian.
+    private static List<String> grid(String cellNE, String cellSW) {
+        int resolution = cellSW.length();
+        double gridSize = 1L << (2 * resolution);
+        double latitudeSpan = 180 / gridSize;
+        double longitudeSpan = 360 / gridSize;
+        BoundingBox boxNE = walkComputeBox(cellNE);
+        BoundingBox boxSW = walkComputeBox(cellSW);
+
+        List<String> result = new ArrayList<String>();
+        double latitude = (boxSW.getNorth() + boxSW.getSouth()) / 2;
+        while (true) {
+            double longitude = (boxSW.getEast() + boxSW.getWest()) / 2;
+            String cell;
+            do {
+                cell = GeocellUtils.compute(new Point(latitude, longitude), resolution);
+                result.add(cell);
+                longitude += longitudeSpan;
+                if (longitude > 180) {
+                    longitude -= 360;
+                }
+            } while (!GeocellUtils.collinear(cell, cellNE, true));
+            if (latitude > boxNE.getSouth()) {
+                return result;
+            }
+            latitude += latitudeSpan;
+        }
+    }
+
+    // GeocellUtils.compute as it was before the fixed point grid.
+    private static String floatWalkCompute(Point point, int resolution) {
+        float north = GeocellUtils.MAX_LATITUDE;
+        float south = GeocellUtils.MIN_LATITUDE;
+        float east = GeocellUtils.MAX_LONGITUDE;
+        float west = GeocellUtils.MIN_LONGITUDE;
+
+        StringBuilder cell = new StringBuilder();
+        while (cell.length() < resolution) {
+            float subcellLonSpan = (east - west) / GeocellUtils.GEOCELL_GRID_SIZE;
+            float subcellLatSpan = (north - south) / GeocellUtils.GEOCELL_GRID_SIZE;
+
+            int x = Math.min((int) (GeocellUtils.GEOCELL_GRID_SIZE * (point.getLongitude() - west) / (east - west)),
+                    GeocellUtils.GEOCELL_GRID_SIZE - 1);
+            int y = Math.min((int) (GeocellUtils.GEOCELL_GRID_SIZE * (point.getLatitude() - south) / (north - south)),
+                    GeocellUtils.GEOCELL_GRID_SIZE - 1);
+            cell.append(GeocellUtils.subdivChar(x, y));
+
+            south += subcellLatSpan * y;
+            north = south + subcellLatSpan;
+            west += subcellLonSpan * x;
+            east = west + subcellLonSpan;
+        }
+        return cell.toString();
+    }
+
+    // GeocellUtils.computeBox as it was before the fixed point grid.
+    private static BoundingBox walkComputeBox(String cell) {
+        BoundingBox bbox = new BoundingBox(90.0, 180.0, -90.0, -180.0);
+        for (int i = 0; i < cell.length(); i++) {
+            double subcellLonSpan = (bbox.getEast() - bbox.getWest()) / GeocellUtils.GEOCELL_GRID_SIZE;
+            double subcellLatSpan = (bbox.getNorth() - bbox.getSouth()) / GeocellUtils.GEOCELL_GRID_SIZE;
+            int x = GeocellUtils.subdivX(cell.charAt(i));
+            int y = GeocellUtils.subdivY(cell.charAt(i));
+            bbox = new BoundingBox(bbox.getSouth() + subcellLatSpan * (y + 1),
+                    bbox.getWest() + subcellLonSpan * (x + 1),
+                    bbox.getSouth() + subcellLatSpan * y,
+                    bbox.getWest() + subcellLonSpan * x);
+        }
+        return bbox;
+    }
+
+    private static Point randomPoint(Random random) {
+        return new Point(-90 + 180 * random.nextDouble(), -180 + 360 * random.nextDouble());
+    }
+}
@@ -0,0 +1,185 @@
+package com.ncalderini.geocell;
+
+import com.ncalderini.geocell.model.BoundingBox;
+import com.ncalderini.geocell.model.Circle;
+import com.ncalderini.geocell.model.Point;
+import com.ncalderini.geocell.model.Polygon;
+import com.ncalderini.geocell.model.Polyline;
+import com.ncalderini.geocell.model.Region;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the coverings of random regions are sound: every point of the region is in a cell of
+ * the covering, and every point of an interior cell is in the region.
+ */
+public class RegionCovererTest {
+
+    private static final int REGIONS = 300;
+    private static final int SAMPLES = 200;
+
+    @Test
+    public void testPolygonCoverings() {
+        Random random = new Random(1);
+        for (int i = 0; i < REGIONS; i++) {
+            checkCoverings(randomPolygon(random), random);
+        }
+    }
+
+    @Test
+    public void testPolylineCoverings() {
+        Random random = new Random(2);
+        for (int i = 0; i < REGIONS; i++) {
+            checkCoverings(randomPolyline(random), random);
+        }
+    }
+
+    @Test
+    public void testCircleCoverings() {
+        Random random = new Random(3);
+        for (int i = 0; i < REGIONS; i++) {
+            Point center = new Point(-85 + 170 * random.nextDouble(), -180 + 360 * random.nextDouble());
+            checkCoverings(new Circle(center, 100 + 500000 * Math.pow(random.nextDouble(), 3)), random);
+        }
+    }
+
+    @Test
+    public void testRelateAgreesWithContains() {
+        Random random = new Random(4);
+        for (int i = 0; i < REGIONS; i++) {
+            Region region = random.nextBoolean() ? randomPolygon(random) : randomPolyline(random);
+            BoundingBox bbox = region.getBoundingBox();
+            for (int j = 0; j < 50; j++) {
+                // a rectangle around a point of the bounding box, of up to a fifth of its size
+                Point point = randomPoint(bbox, random);
+                double latitudeSpan = (bbox.getNorth() - bbox.getSouth()) / 5 * random.nextDouble();
+                double longitudeSpan = (bbox.getEast() - bbox.getWest()) / 5 * random.nextDouble();
+                double north = Math.min(90, point.getLatitude() + latitudeSpan);
+                double south = Math.max(-90, point.getLatitude() - latitudeSpan);
+                double east = Math.min(180, point.getLongitude() + longitudeSpan);
+                double west = Math.max(-180, point.getLongitude() - longitudeSpan);
+                Region.Relation relation = region.relate(north, east, south, west);
+                if (relation == Region.Relation.BOUNDARY) {
+                    continue;
+                }
+                BoundingBox rectangle = new BoundingBox(north, east, south, west);
+                for (int k = 0; k < 50; k++) {
+                    Point sample = randomPoint(rectangle, random);
+                    assertEquals(sample + " in " + rectangle, relation == Region.Relation.INSIDE,
+                            region.contains(sample.getLatitude(), sample.getLongitude()));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCoverMixedRespectsBudget() {
+        Random random = new Random(5);
+        for (int i = 0; i < REGIONS; i++) {
+            int maxCells = 16 + random.nextInt(50);
+            GeocellCovering covering = RegionCoverer.coverMixed(randomPolygon(random), maxCells);
+            assertTrue(covering.size() + " cells", covering.size() <= maxCells);
+        }
+    }
+
+    private static void checkCoverings(Region region, Random random) {
+        checkCovering(region, RegionCoverer.cover(region, null), random);
+        checkCovering(region, RegionCoverer.coverMixed(region, RegionCoverer.DEFAULT_MIXED_MAX_CELLS), random);
+    }
+
+    private static void checkCovering(Region region, GeocellCovering covering, Random random) {
+        long[] cells = covering.getPackedCells();
+        BoundingBox bbox = region.getBoundingBox();
+        for (int i = 0; i < SAMPLES; i++) {
+            Point point = randomPoint(bbox, random);
+            if (region.contains(point.getLatitude(), point.getLongitude())) {
+                assertTrue(point + " not covered by " + covering, covered(cells, point));
+            }
+            if (covering.isInterior(point.getLatitude(), point.getLongitude())) {
+                assertTrue(point + " in an interior cell of " + covering, region.contains(point.getLatitude(), point.getLongitude()));
+            }
+        }
+
+        double[] box = new double[4];
+        for (long cell : cells) {
+            PackedGeocellUtils.computeBox(cell, box);
+            double centerLatitude = (box[0] + box[2]) / 2;
+            double centerLongitude = (box[1] + box[3]) / 2;
+            if (!covering.isInterior(centerLatitude, centerLongitude)) {
+                continue;
+            }
+            // the corners, then random points of the interior cell
+            for (double latitude : new double[] {box[0], box[2]}) {
+                for (double longitude : new double[] {box[1], box[3]}) {
+                    assertTrue(PackedGeocellUtils.toString(cell) + " is interior", region.contains(latitude, longitude));
+                }
+            }
+            for (int i = 0; i < 20; i++) {
+                Point point = randomPoint(new BoundingBox(box[0], box[1], box[2], box[3]), random);
+                assertTrue(point + " in " + PackedGeocellUtils.toString(cell), region.contains(point.getLatitude(), point.getLongitude()));
+            }
+        }
+    }
+
+    private static boolean covered(long[] cells, Point point) {
+        for (long cell : cells) {
+            if (PackedGeocellUtils.containsPoint(cell, point)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // A star-shaped polygon, hence simple, of up to a few degrees.
+    private static Polygon randomPolygon(Random random) {
+        double latitude = -80 + 160 * random.nextDouble();
+        double longitude = -170 + 340 * random.nextDouble();
+        double size = 5 * Math.pow(random.nextDouble(), 2) + 0.01;
+        int count = 3 + random.nextInt(10);
+        double[] angles = new double[count];
+        for (int i = 0; i < count; i++) {
+            angles[i] = 2 * Math.PI * random.nextDouble();
+        }
+        Arrays.sort(angles);
+        List<Point> vertices = new ArrayList<Point>(count);
+        for (double angle : angles) {
+            double radius = size * (0.2 + 0.8 * random.nextDouble());
+            vertices.add(new Point(latitude + radius * Math.sin(angle), longitude + radius * Math.cos(angle)));
+        }
+        return new Polygon(vertices);
+    }
+
+    // A route of a few segments, with a buffer from 100 meters to 50 kilometers.
+    private static Polyline randomPolyline(Random random) {
+        double latitude = -75 + 150 * random.nextDouble();
+        double longitude = -170 + 340 * random.nextDouble();
+        int count = 1 + random.nextInt(6);
+        List<Point> points = new ArrayList<Point>(count);
+        for (int i = 0; i < count; i++) {
+            points.add(new Point(latitude, longitude));
+            latitude += 2 * random.nextDouble() - 1;
+            longitude += 2 * random.nextDouble() - 1;
+        }
+        return new Polyline(points, 100 + 50000 * Math.pow(random.nextDouble(), 2));
+    }
+
+    // A random point of a box, which may cross the antimeridian.
+    private static Point randomPoint(BoundingBox box, Random random) {
+        double width = box.getEast() - box.getWest();
+        if (width < 0) {
+            width += 360;
+        }
+        double longitude = box.getWest() + width * random.nextDouble();
+        if (longitude > 180) {
+            longitude -= 360;
+        }
+        return new Point(box.getSouth() + (box.getNorth() - box.getSouth()) * random.nextDouble(), longitude);
+    }
+}
@@ -0,0 +1,279 @@
+package com.ncalderini.geocell;
+
+import com.ncalderini.geocell.model.GeocellQuery;
+import com.ncalderini.geocell.model.LocationCapable;
+import com.ncalderini.geocell.model.Point;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Pages through nearest searches with cursors passed as strings, and checks that malformed cursors are
+ * rejected before anything is queried.
+ */
+public class SearchCursorTest {
+
+    private static final int RESOLUTION = 13;
+
+    @Test
+    public void testPagesMatchBruteForce() {
+        Random random = new Random(1);
+        List<Entity> entities = new ArrayList<Entity>();
+        for (int i = 0; i < 500; i++) {
+            entities.add(new Entity("e" + i, new Point(48 + random.nextDouble(), 2 + random.nextDouble())));
+        }
+        InMemoryQueryEngine engine = new InMemoryQueryEngine(entities);
+
+        for (int i = 0; i < 10; i++) {
+            Point center = new Point(48 + random.nextDouble(), 2 + random.nextDouble());
+            int pageSize = 1 + random.nextInt(40);
+            double maxDistance = random.nextBoolean() ? 0 : 20000 + 40000 * random.nextDouble();
+
+            List<Entity> paged = new ArrayList<Entity>();
+            String cursor = null;
+            do {
+                SearchResults<Entity> page = GeocellManager.nearestSearchPage(center, pageSize, maxDistance, Entity.class,
+                        new GeocellQuery(), null, engine, RESOLUTION, cursor == null ? null : SearchCursor.fromWebSafeString(cursor));
+                assertTrue(page.getResults().size() <= pageSize);
+                paged.addAll(page.getResults());
+                if (page.getCursor() != null) {
+                    assertEquals(pageSize, page.getResults().size());
+                    cursor = page.getCursor().toWebSafeString();
+                    assertEquals(cursor, SearchCursor.fromWebSafeString(cursor).toWebSafeString());
+                } else {
+                    cursor = null;
+                }
+            } while (cursor != null);
+
+            assertEquals(nearest(entities, center, maxDistance), paged);
+        }
+    }
+
+    @Test
+    public void testRejectsCursorOfAnotherSearch() {
+        List<Entity> entities = Arrays.asList(new Entity("a", new Point(48.1, 2.1)), new Entity("b", new Point(48.2, 2.2)),
+                new Entity("c", new Point(48.3, 2.3)));
+        InMemoryQueryEngine engine = new InMemoryQueryEngine(entities);
+        SearchResults<Entity> page = GeocellManager.nearestSearchPage(new Point(48, 2), 1, 0, Entity.class,
+                new GeocellQuery(), null, engine, RESOLUTION, null);
+        SearchCursor cursor = page.getCursor();
+        assertNotNull(cursor);
+
+        int queries = engine.queries;
+        try {
+            GeocellManager.nearestSearchPage(new Point(48, 3), 1, 0, Entity.class, new GeocellQuery(), null, engine, RESOLUTION, cursor);
+            fail("cursor of another center accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            GeocellManager.nearestSearchPage(new Point(48, 2), 1, 0, Entity.class, new GeocellQuery(), null, engine, 5, cursor);
+            fail("cursor of a finer search accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(queries, engine.queries);
+    }
+
+    @Test
+    public void testRejectsMalformedCursors() throws IOException {
+        String cell = GeocellUtils.compute(new Point(48, 2), 5);
+        String parent = cell.substring(0, 4);
+        long packed = PackedGeocellUtils.fromString(cell);
+        long packedParent = PackedGeocellUtils.fromString(parent);
+
+        // a valid cursor first, to check that the encoding below is the one read
+        assertNotNull(SearchCursor.fromWebSafeString(cursor(1, parent, 1, packedParent, 1, packed, 1, packed, false)));
+
+        assertRejected(null);
+        assertRejected("");
+        assertRejected("not a cursor!");
+        assertRejected(Base64.getUrlEncoder().encodeToString(new byte[] {1, 2, 3}));
+        // unsupported version
+        assertRejected(cursor(2, parent, 1, packedParent, 1, packed, 1, packed, false));
+        // negative and huge numbers of cells
+        assertRejected(cursor(1, parent, -1, packedParent, 1, packed, 1, packed, false));
+        assertRejected(cursor(1, parent, 1, packedParent, Integer.MAX_VALUE, packed, 1, packed, false));
+        assertRejected(cursor(1, parent, 1, packedParent, 1, packed, 100000, packed, false));
+        // invalid cells
+        assertRejected(cursor(1, "xyz", 1, packedParent, 1, packed, 1, packed, false));
+        assertRejected(cursor(1, parent, 1, PackedGeocellUtils.NO_CELL, 1, packed, 1, packed, false));
+        assertRejected(cursor(1, parent, 1, packedParent, 1, packedParent - 1, 1, packed, false));
+        // current cells not of the resolution of the containing cell
+        assertRejected(cursor(1, parent, 1, packed, 1, packed, 1, packed, false));
+        // searched cells coarser than the current ones
+        assertRejected(cursor(1, cell, 1, packed, 1, packedParent, 1, packedParent, false));
+        // frontier cells not searched
+        assertRejected(cursor(1, parent, 1, packedParent, 1, packed, 1, PackedGeocellUtils.fromString(cell + "0"), false));
+        // trailing bytes
+        assertRejected(cursor(1, parent, 1, packedParent, 1, packed, 1, packed, true));
+    }
+
+    @Test
+    public void testJavaSerializationIsValidated() throws IOException, ClassNotFoundException {
+        List<Entity> entities = Arrays.asList(new Entity("a", new Point(48.1, 2.1)), new Entity("b", new Point(48.2, 2.2)));
+        SearchCursor cursor = GeocellManager.nearestSearchPage(new Point(48, 2), 1, 0, Entity.class,
+                new GeocellQuery(), null, new InMemoryQueryEngine(entities), RESOLUTION, null).getCursor();
+        assertNotNull(cursor);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(cursor);
+        out.close();
+        byte[] serialized = bytes.toByteArray();
+        SearchCursor copy = (SearchCursor) new ObjectInputStream(new ByteArrayInputStream(serialized)).readObject();
+        assertEquals(cursor.toWebSafeString(), copy.toWebSafeString());
+
+        // the same stream, with a cursor of the same length decoding to zeros: version 0
+        byte[] string = cursor.toWebSafeString().getBytes(StandardCharsets.US_ASCII);
+        int offset = indexOf(serialized, string);
+        assertTrue(offset >= 0);
+        Arrays.fill(serialized, offset, offset + string.length, (byte) 'A');
+        try {
+            new ObjectInputStream(new ByteArrayInputStream(serialized)).readObject();
+            fail("malformed serialized cursor accepted");
+        } catch (InvalidObjectException e) {
+            // expected
+        }
+    }
+
+    private static int indexOf(byte[] bytes, byte[] sequence) {
+        for (int i = 0; i + sequence.length <= bytes.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(bytes, i, i + sequence.length), sequence)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void assertRejected(String cursor) {
+        try {
+            SearchCursor.fromWebSafeString(cursor);
+            fail("malformed cursor accepted: " + cursor);
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    // Encodes a cursor around (48, 2) whose cell lists hold the given number of copies of a cell, with
+    // only the cells actually written.
+    private static String cursor(int version, String containingCell, int curCount, long curCell, int searchedCount,
+                                 long searchedCell, int frontierCount, long frontierCell, boolean trailingBytes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(version);
+        out.writeDouble(48);
+        out.writeDouble(2);
+        out.writeDouble(100);
+        out.writeBoolean(true);
+        out.writeUTF("key");
+        out.writeUTF(containingCell);
+        writeCells(out, curCount, curCell);
+        writeCells(out, searchedCount, searchedCell);
+        out.writeDouble(200);
+        out.writeBoolean(false);
+        out.writeBoolean(false);
+        writeCells(out, frontierCount, frontierCell);
+        if (trailingBytes) {
+            out.writeLong(0);
+        }
+        out.flush();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+    }
+
+    private static void writeCells(DataOutputStream out, int count, long cell) throws IOException {
+        out.writeInt(count);
+        for (int i = 0; i < Math.min(count, 16); i++) {
+            out.writeLong(cell);
+        }
+    }
+
+    private static List<Entity> nearest(List<Entity> entities, Point center, double maxDistance) {
+        List<Entity> result = new ArrayList<Entity>();
+        for (Entity entity : entities) {
+            if (maxDistance == 0 || GeocellUtils.distance(center, entity.location) <= maxDistance) {
+                result.add(entity);
+            }
+        }
+        Collections.sort(result, (first, second) -> {
+            int compare = Double.compare(GeocellUtils.distance(center, first.location), GeocellUtils.distance(center, second.location));
+            return compare != 0 ? compare : first.key.compareTo(second.key);
+        });
+        return result;
+    }
+
+    static final class Entity implements LocationCapable {
+        private final String key;
+        private final Point location;
+        private final List<String> geocells;
+
+        Entity(String key, Point location) {
+            this.key = key;
+            this.location = location;
+            this.geocells = GeocellManager.generateGeoCell(location);
+        }
+
+        @Override
+        public Point getLocation() {
+            return location;
+        }
+
+        @Override
+        public String getKeyString() {
+            return key;
+        }
+
+        @Override
+        public List<String> getGeocells() {
+            return geocells;
+        }
+
+        @Override
+        public String toString() {
+            return key;
+        }
+    }
+
+    // Returns the entities indexed in any of the queried cells, counting the queries.
+    static final class InMemoryQueryEngine implements GeocellQueryEngine {
+        private final List<Entity> entities;
+        private int queries;
+
+        InMemoryQueryEngine(List<Entity> entities) {
+            this.entities = entities;
+        }
+
+        @Override
+        public <T> List<T> query(GeocellQuery baseQuery, String orderBy, List<String> curGeocellsUnique, Class<T> entityClass) {
+            queries++;
+            Set<String> cells = new HashSet<String>(curGeocellsUnique);
+            List<T> results = new ArrayList<T>();
+            for (Entity entity : entities) {
+                if (!Collections.disjoint(cells, entity.getGeocells())) {
+                    results.add(entityClass.cast(entity));
+                }
+            }
+            return results;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.ncalderini.geocell;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Compares the pairs of spatial joins with the pairs of every left and right entity.
+ */
+public class SpatialJoinTest {
+
+    @Test
+    public void testJoinMatchesBruteForce() {
+        Random random = new Random(1);
+        // enough left entities to split the join across the pool
+        checkJoin(TestEntity.random(random, 3000, 48, 2, 48.5, 2.5), TestEntity.random(random, 1000, 48, 2, 48.5, 2.5), 1500);
+        checkJoin(TestEntity.random(random, 500, 48, 2, 48.5, 2.5), TestEntity.random(random, 500, 47, 1, 49, 3), 20000);
+    }
+
+    @Test
+    public void testJoinAcrossTheAntimeridianAndNearThePoles() {
+        Random random = new Random(2);
+        checkJoin(TestEntity.random(random, 500, -10, 179.5, 10, 180), TestEntity.random(random, 500, -10, -180, 10, -179.5), 30000);
+        checkJoin(TestEntity.random(random, 500, 88, -180, 90, 180), TestEntity.random(random, 500, 88, -180, 90, 180), 50000);
+    }
+
+    @Test
+    public void testJoinOfDistancesNoCellFits() {
+        Random random = new Random(3);
+        checkJoin(TestEntity.random(random, 200, -80, -180, 80, 180), TestEntity.random(random, 200, -80, -180, 80, 180), 5000000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNonPositiveDistances() {
+        List<TestEntity> entities = TestEntity.random(new Random(4), 10, 48, 2, 49, 3);
+        SpatialJoin.join(entities, entities, 0, (left, right, distance) -> { });
+    }
+
+    private static void checkJoin(List<TestEntity> left, List<TestEntity> right, double maxDistance) {
+        Map<String, Double> expected = new HashMap<String, Double>();
+        for (TestEntity first : left) {
+            for (TestEntity second : right) {
+                double distance = GeocellUtils.distance(first.getLocation(), second.getLocation());
+                if (distance <= maxDistance) {
+                    expected.put(first.getKeyString() + " " + second.getKeyString(), distance);
+                }
+            }
+        }
+
+        final Map<String, Double> actual = new ConcurrentHashMap<String, Double>();
+        long count = SpatialJoin.join(left, right, maxDistance, (first, second, distance) ->
+                assertNull(actual.put(first.getKeyString() + " " + second.getKeyString(), distance)));
+        assertEquals(expected.size(), count);
+        assertEquals(expected.keySet(), actual.keySet());
+        for (Map.Entry<String, Double> pair : expected.entrySet()) {
+            Double distance = actual.get(pair.getKey());
+            assertNotNull(distance);
+            assertEquals(pair.getKey(), pair.getValue(), distance, 1e-6 * Math.max(1, pair.getValue()));
+        }
+    }
+}
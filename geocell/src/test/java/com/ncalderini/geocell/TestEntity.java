@@ -0,0 +1,56 @@
+package com.ncalderini.geocell;
+
+import com.ncalderini.geocell.model.LocationCapable;
+import com.ncalderini.geocell.model.Point;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Entity of the tests, indexed in the geocells of its location.
+ */
+final class TestEntity implements LocationCapable {
+
+    private final String key;
+    private final Point location;
+    private final List<String> geocells;
+
+    TestEntity(String key, Point location) {
+        this.key = key;
+        this.location = location;
+        this.geocells = GeocellManager.generateGeoCell(location);
+    }
+
+    /**
+     * @return count entities at random locations of the box
+     */
+    static List<TestEntity> random(Random random, int count, double south, double west, double north, double east) {
+        List<TestEntity> entities = new ArrayList<TestEntity>(count);
+        for (int i = 0; i < count; i++) {
+            entities.add(new TestEntity("e" + i, new Point(south + (north - south) * random.nextDouble(),
+                    west + (east - west) * random.nextDouble())));
+        }
+        return entities;
+    }
+
+    @Override
+    public Point getLocation() {
+        return location;
+    }
+
+    @Override
+    public String getKeyString() {
+        return key;
+    }
+
+    @Override
+    public List<String> getGeocells() {
+        return geocells;
+    }
+
+    @Override
+    public String toString() {
+        return key;
+    }
+}